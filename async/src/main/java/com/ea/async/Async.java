@@ -73,6 +73,9 @@ public class Async
      * Ensure that if no pre instrumentation was done, that the Async runtime instrumentation is running.
      * <p/>
      * Attention! The build time instrumentation will remove calls to this method.
+     * <p/>
+     * Inside GraalVM native images this does nothing, the classes must be instrumented at build time.
+     * The agent is also not attached if all the class directories were instrumented at build time.
      */
     public static void init()
     {
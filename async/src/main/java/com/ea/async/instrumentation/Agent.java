@@ -29,6 +29,8 @@
 package com.ea.async.instrumentation;
 
 import java.lang.instrument.Instrumentation;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class called when a java agent is attached to the jvm in runtime.
@@ -48,29 +50,55 @@ public class Agent
      */
     public static void agentmain(String agentArgs, Instrumentation inst)
     {
-        Transformer transformer = new Transformer();
+        final long start = System.nanoTime();
+        Transformer transformer = Transformer.forRuntime(agentArgs);
         inst.addTransformer(transformer, true);
-        f1:
-        for (Class<?> clazz : inst.getAllLoadedClasses())
+        final Class<?>[] loadedClasses = inst.getAllLoadedClasses();
+        final long scanStart = System.nanoTime();
+        // reading the class files is the slow part, the class loaders are queried in parallel
+        final Class<?>[] candidates = Arrays.stream(loadedClasses)
+                .parallel()
+                .filter(clazz -> inst.isModifiableClass(clazz)
+                        && !clazz.getName().startsWith("java.")
+                        && !clazz.getName().startsWith("javax.")
+                        && !clazz.getName().startsWith("sun.")
+                        && transformer.isIncluded(clazz.getName().replace('.', '/'))
+                        && transformer.needsInstrumentation(clazz))
+                .toArray(Class<?>[]::new);
+        final long retransformStart = System.nanoTime();
+        if (candidates.length > 0)
         {
-            if (inst.isModifiableClass(clazz)
-                    && !clazz.getName().startsWith("java.")
-                    && !clazz.getName().startsWith("javax.")
-                    && !clazz.getName().startsWith("sun."))
+            try
             {
-                try
+                // a single call for all the classes
+                inst.retransformClasses(candidates);
+            }
+            catch (Exception | Error e)
+            {
+                // no class is retransformed if one fails, isolating it
+                for (Class<?> clazz : candidates)
                 {
-                    if (transformer.needsInstrumentation(clazz))
+                    try
                     {
                         inst.retransformClasses(clazz);
                     }
-                }
-                catch (Exception | Error e)
-                {
-                    e.printStackTrace();
+                    catch (Exception | Error e2)
+                    {
+                        e2.printStackTrace();
+                    }
                 }
             }
         }
+        final long end = System.nanoTime();
         System.setProperty(Transformer.EA_ASYNC_RUNNING, "true");
+        // java.util.logging isn't touched, initializing it here would configure it before the application does
+        if (Boolean.getBoolean(Transformer.EA_ASYNC_VERBOSE))
+        {
+            System.err.println(String.format("ea-async agent attached in %d ms: setup %d ms, scanned %d loaded classes in %d ms, retransformed %d classes in %d ms",
+                    TimeUnit.NANOSECONDS.toMillis(end - start),
+                    TimeUnit.NANOSECONDS.toMillis(scanStart - start),
+                    loadedClasses.length, TimeUnit.NANOSECONDS.toMillis(retransformStart - scanStart),
+                    candidates.length, TimeUnit.NANOSECONDS.toMillis(end - retransformStart)));
+        }
     }
 }
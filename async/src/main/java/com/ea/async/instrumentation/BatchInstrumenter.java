@@ -0,0 +1,689 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Instruments class files in parallel, used by the instrumentation tool and the maven and gradle plugins.
+ * <p>
+ * Each class file is read, checked for references to <code>Async</code>, instrumented and written back,
+ * or to the output directory, by a bounded pool of threads. The generated continuation classes are
+ * written next to the instrumented class. The results are returned in the order of the input files, and the errors
+ * reported by the transformer are forwarded to its error listener in that order, after all the files are done,
+ * so the output doesn't depend on the number of threads.
+ * <p>
+ * The transformer's listeners are replaced while instrumenting, so a transformer must not be shared
+ * by concurrent batches.
+ */
+public class BatchInstrumenter
+{
+    private final Transformer transformer;
+    private ClassLoader classLoader = getClass().getClassLoader();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Path outputDirectory;
+    private boolean continuationClasses;
+    private boolean nativeImage;
+
+    // 1980-01-01, the time of the entries added to jars
+    private static final int DOS_EPOCH = (1 << 21) | (1 << 16);
+    private static final long DOS_EPOCH_MILLIS = new GregorianCalendar(1980, Calendar.JANUARY, 1).getTimeInMillis();
+
+    // the result of the file being instrumented by each thread
+    private final ThreadLocal<Result> current = new ThreadLocal<>();
+
+    /**
+     * Outcome of the instrumentation of one class file.
+     */
+    public static class Result
+    {
+        private final Path source;
+        private final String entry;
+        private Path target;
+        private String className;
+        private final Map<String, byte[]> generatedClasses = new LinkedHashMap<>();
+        private final List<String> errors = new ArrayList<>();
+        private Exception exception;
+        // the instrumented bytes of a jar entry, until they are written
+        private byte[] bytes;
+
+        Result(final Path source, final String entry)
+        {
+            this.source = source;
+            this.entry = entry;
+        }
+
+        /**
+         * @return the class file, or the jar containing the class
+         */
+        public Path getSource()
+        {
+            return source;
+        }
+
+        /**
+         * @return the name of the class entry in the jar, or null for class files
+         */
+        public String getEntry()
+        {
+            return entry;
+        }
+
+        @Override
+        public String toString()
+        {
+            return entry != null ? source + "!/" + entry : source.toString();
+        }
+
+        /**
+         * @return the file or jar where the instrumented class was written, or null if it wasn't instrumented
+         */
+        public Path getTarget()
+        {
+            return target;
+        }
+
+        public boolean isInstrumented()
+        {
+            return target != null;
+        }
+
+        /**
+         * @return the internal name of the class, or null if the file couldn't be read
+         */
+        public String getClassName()
+        {
+            return className;
+        }
+
+        /**
+         * @return the internal names of the generated continuation classes
+         */
+        public List<String> getGeneratedClasses()
+        {
+            return new ArrayList<>(generatedClasses.keySet());
+        }
+
+        /**
+         * @return the errors reported by the transformer for this class
+         */
+        public List<String> getErrors()
+        {
+            return errors;
+        }
+
+        /**
+         * @return the exception that stopped the instrumentation of this file, or null
+         */
+        public Exception getException()
+        {
+            return exception;
+        }
+    }
+
+    /**
+     * @param transformer the configured transformer
+     */
+    public BatchInstrumenter(final Transformer transformer)
+    {
+        this.transformer = transformer;
+    }
+
+    /**
+     * Instruments the class files.
+     *
+     * @param files the class files
+     * @return the result of each file, in the same order
+     */
+    public List<Result> instrument(final List<Path> files) throws IOException
+    {
+        final List<Result> results = new ArrayList<>(files.size());
+        for (Path file : files)
+        {
+            results.add(new Result(file, null));
+        }
+        run(results, result -> {
+            final byte[] bytes = transform(result, Files.readAllBytes(result.source));
+            if (bytes != null)
+            {
+                final Path target = outputDirectory != null
+                        ? outputDirectory.resolve(result.className + ".class")
+                        : result.source;
+                write(target, bytes);
+                // the continuation classes are in the same package
+                for (Map.Entry<String, byte[]> generated : result.generatedClasses.entrySet())
+                {
+                    final String name = generated.getKey();
+                    write(target.resolveSibling(name.substring(name.lastIndexOf('/') + 1) + ".class"), generated.getValue());
+                }
+                result.target = target;
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Instruments the classes of a jar or zip file, writing a new jar.
+     * <p>
+     * The jar is mapped in memory and the entries that are not instrumented are copied to the new jar
+     * without being recompressed. The generated continuation classes are added after the instrumented class.
+     * Zip64 archives and archives larger than 2GB are rewritten with <code>java.util.zip</code>, recompressing all the entries.
+     * The signature files of signed jars are removed when classes are instrumented, the jars must be signed again.
+     * Entries with the same name are all kept, except when the jar is rewritten with <code>java.util.zip</code>.
+     * <p>
+     * If all the classes are instrumented without errors the jar gets the
+     * <code>META-INF/ea-async/instrumented</code> marker. With native image support
+     * the reflection configuration of the generated classes is added to the jar.
+     *
+     * @param jar    the jar file
+     * @param output the instrumented jar, can be the same as <code>jar</code>
+     * @return the result of each class entry, in the order of the entries
+     */
+    public List<Result> instrumentJar(final Path jar, final Path output) throws IOException
+    {
+        final Path parent = output.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        // not using createTempFile, it would only be readable by the owner
+        final Path temp = parent.resolve(output.getFileName() + ".tmp");
+        // a mapped jar can't be replaced on windows until the mapping is collected
+        final boolean inPlace = Files.exists(output) && Files.isSameFile(jar, output);
+        try
+        {
+            final List<Result> results = writeJar(jar, temp, inPlace);
+            for (Result result : results)
+            {
+                if (result.bytes != null)
+                {
+                    result.bytes = null;
+                    result.target = output;
+                }
+            }
+            Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+            return results;
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private List<Result> writeJar(final Path jar, final Path temp, final boolean inPlace) throws IOException
+    {
+        final ZipArchive archive;
+        try
+        {
+            archive = ZipArchive.open(jar, !inPlace);
+        }
+        catch (ZipException ex)
+        {
+            // zip64 or too large to be mapped
+            return instrumentZipFile(jar, temp);
+        }
+        try
+        {
+            return instrumentArchive(jar, archive, temp);
+        }
+        finally
+        {
+            archive.close();
+        }
+    }
+
+    private List<Result> instrumentArchive(final Path jar, final ZipArchive archive, final Path temp) throws IOException
+    {
+        // the entries are kept in a list, jars can have more than one entry with the same name
+        final List<ZipArchive.Entry> entries = archive.getEntries();
+        final Map<ZipArchive.Entry, Result> classes = new HashMap<>();
+        final Map<Result, ZipArchive.Entry> sources = new HashMap<>();
+        final List<Result> results = new ArrayList<>();
+        for (ZipArchive.Entry entry : entries)
+        {
+            if (entry.name.endsWith(".class"))
+            {
+                final Result result = new Result(jar, entry.name);
+                results.add(result);
+                classes.put(entry, result);
+                sources.put(result, entry);
+            }
+        }
+        run(results, result -> result.bytes = transform(result, archive.read(sources.get(result))));
+
+        try (ZipArchive.Output out = new ZipArchive.Writer(temp))
+        {
+            writeEntries(archive, classes, results, out);
+        }
+        catch (ZipException ex)
+        {
+            // more than 65535 entries or larger than 4GB, written again as zip64
+            try (ZipArchive.Output out = new ZipArchive.StreamWriter(temp))
+            {
+                writeEntries(archive, classes, results, out);
+            }
+        }
+        return results;
+    }
+
+    private void writeEntries(final ZipArchive archive, final Map<ZipArchive.Entry, Result> classes, final List<Result> results,
+                              final ZipArchive.Output out) throws IOException
+    {
+        final boolean changed = isChanged(results);
+        final NativeImageMetadata metadata = new NativeImageMetadata();
+        ZipArchive.Entry config = null;
+        boolean marked = false;
+        for (ZipArchive.Entry entry : archive.getEntries())
+        {
+            final Result result = classes.get(entry);
+            if (result != null && result.bytes != null)
+            {
+                out.write(entry.name, result.bytes, entry.dosTime());
+                // the continuation classes are in the same package
+                final String directory = entry.name.substring(0, entry.name.lastIndexOf('/') + 1);
+                for (Map.Entry<String, byte[]> generated : result.generatedClasses.entrySet())
+                {
+                    final String name = generated.getKey();
+                    out.write(directory + name.substring(name.lastIndexOf('/') + 1) + ".class", generated.getValue(), entry.dosTime());
+                    metadata.addClass(name);
+                }
+            }
+            else if (nativeImage && entry.name.equals(NativeImageMetadata.REFLECT_CONFIG))
+            {
+                config = config != null ? config : entry;
+            }
+            else if (!(changed && isSignatureFile(entry.name)))
+            {
+                marked |= entry.name.equals(Transformer.INSTRUMENTED_MARKER);
+                out.copy(archive, entry);
+            }
+        }
+        if (nativeImage && (!metadata.isEmpty() || config != null))
+        {
+            if (config != null)
+            {
+                metadata.merge(new String(archive.read(config), StandardCharsets.UTF_8));
+            }
+            out.write(NativeImageMetadata.REFLECT_CONFIG, metadata.toReflectConfig().getBytes(StandardCharsets.UTF_8), DOS_EPOCH);
+        }
+        if (!marked && !hasErrors(results))
+        {
+            // the agent is not needed for these classes
+            out.write(Transformer.INSTRUMENTED_MARKER, new byte[0], DOS_EPOCH);
+        }
+    }
+
+    // used when the jar can't be mapped
+    private List<Result> instrumentZipFile(final Path jar, final Path temp) throws IOException
+    {
+        try (ZipFile zipFile = new ZipFile(jar.toFile()))
+        {
+            final List<Result> results = new ArrayList<>();
+            final List<? extends ZipEntry> entries = Collections.list(zipFile.entries());
+            for (ZipEntry entry : entries)
+            {
+                if (entry.getName().endsWith(".class"))
+                {
+                    results.add(new Result(jar, entry.getName()));
+                }
+            }
+            run(results, result -> {
+                try (InputStream in = zipFile.getInputStream(zipFile.getEntry(result.entry)))
+                {
+                    result.bytes = transform(result, Transformer.readAllBytes(in));
+                }
+            });
+            final Map<String, Result> classes = new HashMap<>();
+            results.forEach(result -> classes.putIfAbsent(result.entry, result));
+            final boolean changed = isChanged(results);
+            final NativeImageMetadata metadata = new NativeImageMetadata();
+            // zip output streams reject duplicate names, only the entry the class loaders see is kept
+            final Set<String> written = new HashSet<>();
+            try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(temp)))
+            {
+                for (ZipEntry entry : entries)
+                {
+                    if (!written.add(entry.getName()))
+                    {
+                        continue;
+                    }
+                    final Result result = classes.get(entry.getName());
+                    if (result != null && result.bytes != null)
+                    {
+                        putEntry(out, entry.getName(), result.bytes, entry.getTime());
+                        final String directory = entry.getName().substring(0, entry.getName().lastIndexOf('/') + 1);
+                        for (Map.Entry<String, byte[]> generated : result.generatedClasses.entrySet())
+                        {
+                            final String name = generated.getKey();
+                            putEntry(out, directory + name.substring(name.lastIndexOf('/') + 1) + ".class", generated.getValue(), entry.getTime());
+                            metadata.addClass(name);
+                        }
+                    }
+                    else if (nativeImage && entry.getName().equals(NativeImageMetadata.REFLECT_CONFIG))
+                    {
+                        try (InputStream in = zipFile.getInputStream(entry))
+                        {
+                            metadata.merge(new String(Transformer.readAllBytes(in), StandardCharsets.UTF_8));
+                        }
+                    }
+                    else if (!(changed && isSignatureFile(entry.getName())))
+                    {
+                        final ZipEntry copy = new ZipEntry(entry);
+                        copy.setCompressedSize(-1);
+                        out.putNextEntry(copy);
+                        try (InputStream in = zipFile.getInputStream(entry))
+                        {
+                            out.write(Transformer.readAllBytes(in));
+                        }
+                        out.closeEntry();
+                    }
+                }
+                if (nativeImage && !metadata.isEmpty())
+                {
+                    putEntry(out, NativeImageMetadata.REFLECT_CONFIG, metadata.toReflectConfig().getBytes(StandardCharsets.UTF_8), DOS_EPOCH_MILLIS);
+                }
+                if (zipFile.getEntry(Transformer.INSTRUMENTED_MARKER) == null && !hasErrors(results))
+                {
+                    putEntry(out, Transformer.INSTRUMENTED_MARKER, new byte[0], DOS_EPOCH_MILLIS);
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * The signature files of a signed jar, they don't match the instrumented classes.
+     */
+    static boolean isSignatureFile(final String name)
+    {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', 9) >= 0)
+        {
+            return false;
+        }
+        final String upper = name.toUpperCase(Locale.ENGLISH);
+        return upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC")
+                || upper.startsWith("META-INF/SIG-");
+    }
+
+    private static boolean isChanged(final List<Result> results)
+    {
+        for (Result result : results)
+        {
+            if (result.bytes != null)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void putEntry(final ZipOutputStream out, final String name, final byte[] bytes, final long time) throws IOException
+    {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setTime(time);
+        out.putNextEntry(entry);
+        out.write(bytes);
+        out.closeEntry();
+    }
+
+    private static boolean hasErrors(final List<Result> results)
+    {
+        for (Result result : results)
+        {
+            if (result.exception != null)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private interface Task
+    {
+        void instrument(Result result) throws Exception;
+    }
+
+    /**
+     * Runs the task for each result in the thread pool, collecting the errors reported by the transformer.
+     */
+    private void run(final List<Result> results, final Task task) throws IOException
+    {
+        final Consumer<String> errorListener = transformer.getErrorListener();
+        final BiConsumer<String, byte[]> continuationClassListener = transformer.getContinuationClassListener();
+        final boolean heapFrames = transformer.isHeapFrames();
+        transformer.setErrorListener(error -> current.get().errors.add(error));
+        if (continuationClasses || nativeImage)
+        {
+            transformer.setHeapFrames(true);
+            transformer.setContinuationClassListener((name, bytes) -> current.get().generatedClasses.put(name, bytes));
+        }
+        try
+        {
+            final int poolSize = Math.min(threads, results.size());
+            if (poolSize <= 1)
+            {
+                for (Result result : results)
+                {
+                    run(result, task);
+                }
+            }
+            else
+            {
+                final AtomicInteger count = new AtomicInteger();
+                final ExecutorService executor = Executors.newFixedThreadPool(poolSize, r -> {
+                    final Thread thread = new Thread(r, "ea-async-instrumenter-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                try
+                {
+                    final List<Callable<Result>> tasks = new ArrayList<>(results.size());
+                    for (Result result : results)
+                    {
+                        tasks.add(() -> run(result, task));
+                    }
+                    for (Future<Result> future : executor.invokeAll(tasks))
+                    {
+                        future.get();
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while instrumenting", ex);
+                }
+                catch (ExecutionException ex)
+                {
+                    throw new IOException("Error instrumenting", ex.getCause());
+                }
+                finally
+                {
+                    executor.shutdownNow();
+                }
+            }
+        }
+        finally
+        {
+            transformer.setErrorListener(errorListener);
+            transformer.setContinuationClassListener(continuationClassListener);
+            transformer.setHeapFrames(heapFrames);
+        }
+        if (errorListener != null)
+        {
+            for (Result result : results)
+            {
+                result.errors.forEach(errorListener);
+            }
+        }
+    }
+
+    private Result run(final Result result, final Task task)
+    {
+        current.set(result);
+        try
+        {
+            task.instrument(result);
+        }
+        catch (Exception | LinkageError ex)
+        {
+            // a class that fails to link while its hierarchy is checked doesn't stop the others
+            result.exception = ex instanceof Exception ? (Exception) ex : new RuntimeException(ex);
+            result.bytes = null;
+            result.generatedClasses.clear();
+        }
+        finally
+        {
+            current.remove();
+        }
+        return result;
+    }
+
+    /**
+     * @return the instrumented class, or null if it doesn't need instrumentation
+     */
+    private byte[] transform(final Result result, final byte[] original)
+    {
+        result.className = new ClassReader(original).getClassName();
+        if (!Transformer.referencesAsync(original))
+        {
+            return null;
+        }
+        return transformer.instrument(classLoader, new ByteArrayInputStream(original));
+    }
+
+    private static void write(final Path path, final byte[] bytes) throws IOException
+    {
+        final Path parent = path.getParent();
+        if (parent != null && !Files.exists(parent))
+        {
+            Files.createDirectories(parent);
+        }
+        Files.write(path, bytes);
+    }
+
+    public ClassLoader getClassLoader()
+    {
+        return classLoader;
+    }
+
+    /**
+     * @param classLoader the class loader used to find the <code>CompletableFuture</code> subclasses
+     */
+    public void setClassLoader(final ClassLoader classLoader)
+    {
+        this.classLoader = classLoader;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * @param threads the maximum number of threads, defaults to the number of processors
+     */
+    public void setThreads(final int threads)
+    {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public Path getOutputDirectory()
+    {
+        return outputDirectory;
+    }
+
+    /**
+     * @param outputDirectory the directory where the instrumented classes are written, using the package as path,
+     *                        or null to replace the original files
+     */
+    public void setOutputDirectory(final Path outputDirectory)
+    {
+        this.outputDirectory = outputDirectory;
+    }
+
+    public boolean isContinuationClasses()
+    {
+        return continuationClasses;
+    }
+
+    /**
+     * Generates a continuation class for each async method, written next to the instrumented class.
+     * Implies heap frames.
+     *
+     * @param continuationClasses true to generate continuation classes
+     */
+    public void setContinuationClasses(final boolean continuationClasses)
+    {
+        this.continuationClasses = continuationClasses;
+    }
+
+    public boolean isNativeImage()
+    {
+        return nativeImage;
+    }
+
+    /**
+     * Adds the native-image reflection configuration of the generated classes to the instrumented jars.
+     * Implies continuation classes.
+     *
+     * @param nativeImage true to instrument for GraalVM native images
+     */
+    public void setNativeImage(final boolean nativeImage)
+    {
+        this.nativeImage = nativeImage;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+
+/**
+ * Directory of instrumented class files used by the runtime agent,
+ * so unchanged classes aren't instrumented again each time the jvm starts.
+ * <p>
+ * Entries are keyed by a hash of the original class bytes, the ea-async version, the transformer options,
+ * the class path and the loader of the class.
+ * Entries are written to a temporary file and moved in place, so concurrent jvms can share the directory.
+ */
+class ClassCache
+{
+    private final Path directory;
+    private final byte[] salt;
+
+    /**
+     * @param directory the cache directory, created if necessary
+     * @param options   the transformer options that affect the instrumented bytes
+     */
+    ClassCache(final Path directory, final String options) throws IOException
+    {
+        this.directory = Files.createDirectories(directory);
+        this.salt = (version() + ";" + options).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the instrumented bytes, or null if the class is not in the cache
+     */
+    byte[] get(final String key)
+    {
+        // the entries are a few kilobytes, a plain read is cheaper than mapping them
+        try
+        {
+            return Files.readAllBytes(directory.resolve(key));
+        }
+        catch (IOException ex)
+        {
+            // not cached or being replaced
+            return null;
+        }
+    }
+
+    void put(final String key, final byte[] bytes)
+    {
+        try
+        {
+            final Path tmp = Files.createTempFile(directory, key, ".tmp");
+            Files.write(tmp, bytes);
+            Files.move(tmp, directory.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ex)
+        {
+            // the cache is an optimization, failing to write it is not an error
+        }
+    }
+
+    /**
+     * @param classfileBuffer the original class bytes
+     * @param loader          fingerprint of where the class was loaded from,
+     *                        the instrumented bytes depend on the types its loader sees
+     * @return the cache key of the class
+     * @see #loaderFingerprint(ClassLoader, ProtectionDomain)
+     */
+    String key(final byte[] classfileBuffer, final String loader)
+    {
+        final MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        digest.update(salt);
+        digest.update(loader.getBytes(StandardCharsets.UTF_8));
+        final byte[] hash = digest.digest(classfileBuffer);
+        final StringBuilder sb = new StringBuilder(hash.length * 2 + 6);
+        for (byte b : hash)
+        {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.append(".class").toString();
+    }
+
+    /**
+     * Identifies the class path, the path of each entry with the size and modification time of the files.
+     * Changing a jar changes the fingerprint, the classes in it might have become <code>CompletableFuture</code> subclasses.
+     */
+    static String classPathFingerprint(final String classPath)
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (String entry : classPath.split(File.pathSeparator))
+        {
+            if (!entry.isEmpty())
+            {
+                sb.append(fileFingerprint(new File(entry))).append(';');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Identifies the loader of a class and the location the class came from.
+     */
+    static String loaderFingerprint(final ClassLoader loader, final ProtectionDomain protectionDomain)
+    {
+        final StringBuilder sb = new StringBuilder(loader != null ? loader.getClass().getName() : "bootstrap");
+        final CodeSource codeSource = protectionDomain != null ? protectionDomain.getCodeSource() : null;
+        if (codeSource != null && codeSource.getLocation() != null)
+        {
+            sb.append(' ');
+            try
+            {
+                sb.append(fileFingerprint(new File(codeSource.getLocation().toURI())));
+            }
+            catch (URISyntaxException | IllegalArgumentException e)
+            {
+                // not a file
+                sb.append(codeSource.getLocation());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String fileFingerprint(final File file)
+    {
+        return file.isFile() ? file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified() : file.getAbsolutePath();
+    }
+
+    /**
+     * The ea-async version, or a hash of the transformer class when running from a development build.
+     */
+    static String version() throws IOException
+    {
+        final String version = Transformer.class.getPackage() != null ? Transformer.class.getPackage().getImplementationVersion() : null;
+        if (version != null && !version.endsWith("-SNAPSHOT"))
+        {
+            return version;
+        }
+        try (InputStream in = Transformer.class.getResourceAsStream("Transformer.class"))
+        {
+            if (in == null)
+            {
+                return String.valueOf(version);
+            }
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) > 0; )
+            {
+                digest.update(buffer, 0, read);
+            }
+            return version + ";" + new BigInteger(1, digest.digest()).toString(16);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
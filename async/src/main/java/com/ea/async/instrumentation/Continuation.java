@@ -0,0 +1,426 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Heap frame of one invocation of an async method, used when the instrumentation runs with heap frames.
+ * <p>
+ * It is created the first time the invocation suspends and reused by all the following suspensions
+ * of that invocation. It holds the saved locals and stack values, the key of the await where
+ * the invocation is suspended and the future returned to the caller.
+ * It registers itself as the callback of the awaited futures and resumes the
+ * <code>async$</code> continuation method when they complete.
+ * <p>
+ * Resumptions go through a per thread trampoline: a continuation that becomes ready while
+ * {@link #MAX_DEPTH} others are already being resumed in the same thread is queued, and resumed
+ * when the outermost one suspends or returns. Below that depth continuations are resumed synchronously,
+ * like the dependents of a <code>CompletableFuture</code>, so completing a future and joining a stage
+ * that depends on it still works. This bounds the stack depth when futures are completed from inside async methods,
+ * for instance by loops that await futures completed by other async methods.
+ * <p>
+ * Build time instrumentation can generate a subclass for each async method that
+ * resumes the continuation method directly instead of using a method handle.
+ * <p>
+ * Async methods returning <code>CompletableFuture</code> or <code>CompletionStage</code> return a
+ * {@link Result}. When another invocation awaits it, that continuation is linked directly to the result
+ * and resumed when it completes, no dependent stage is created.
+ * <p>
+ * This class is only meant to be used by instrumented code.
+ */
+public class Continuation implements BiConsumer<Object, Throwable>
+{
+    // state used while waiting for the future returned by the continuation method
+    static final int RETURNED = -1;
+
+    static final String NAME = "com/ea/async/instrumentation/Continuation";
+
+    // nested resumptions in the same thread before they are queued
+    static final int MAX_DEPTH = 64;
+
+    private static final ThreadLocal<Trampoline> TRAMPOLINE = ThreadLocal.withInitial(Trampoline::new);
+
+    private final MethodHandle resume;
+    private final CompletableFuture<Object> result;
+
+    /**
+     * Saved object values.
+     */
+    public final Object[] objects;
+
+    /**
+     * Saved primitive values, <code>int</code>, <code>float</code> and <code>double</code>
+     * values are stored with their raw bits.
+     */
+    public final long[] primitives;
+
+    /**
+     * Key of the await where the invocation is suspended.
+     */
+    public int state;
+
+    /**
+     * @param resume     handle to the continuation method: <code>(Continuation)V</code>
+     * @param result     the future returned to the caller of the async method
+     * @param objects    number of object slots
+     * @param primitives number of primitive slots
+     */
+    public Continuation(final MethodHandle resume, final CompletableFuture<Object> result, final int objects, final int primitives)
+    {
+        this.resume = resume;
+        this.result = result;
+        this.objects = new Object[objects];
+        this.primitives = new long[primitives];
+    }
+
+    /**
+     * Creates a continuation whose result is a {@link Result},
+     * used by async methods returning <code>CompletableFuture</code> or <code>CompletionStage</code>.
+     *
+     * @param resume     handle to the continuation method: <code>(Continuation)V</code>
+     * @param objects    number of object slots
+     * @param primitives number of primitive slots
+     */
+    public Continuation(final MethodHandle resume, final int objects, final int primitives)
+    {
+        this(resume, new Result(), objects, primitives);
+    }
+
+    /**
+     * Used by the generated continuation classes, which override {@link #run()}.
+     *
+     * @param result     the future returned to the caller of the async method
+     * @param objects    number of object slots
+     * @param primitives number of primitive slots
+     */
+    protected Continuation(final CompletableFuture<Object> result, final int objects, final int primitives)
+    {
+        this(null, result, objects, primitives);
+    }
+
+    /**
+     * Used by the generated continuation classes, which override {@link #run()}.
+     *
+     * @param objects    number of object slots
+     * @param primitives number of primitive slots
+     */
+    protected Continuation(final int objects, final int primitives)
+    {
+        this(null, new Result(), objects, primitives);
+    }
+
+    public CompletableFuture<Object> getResult()
+    {
+        return result;
+    }
+
+    /**
+     * Suspends the invocation until the stage is completed.
+     *
+     * @param stage the stage being awaited
+     * @param state the key of the await, used to resume the invocation
+     */
+    public void await(final CompletionStage<?> stage, final int state)
+    {
+        this.state = state;
+        if (stage instanceof Result && ((Result) stage).link(this))
+        {
+            return;
+        }
+        stage.whenComplete(this);
+    }
+
+    /**
+     * Suspends the invocation until the stage is completed, unless it's already completed.
+     * <p>
+     * Used by the segment methods of split continuation methods,
+     * which call the next segment themselves instead of resuming through the stage.
+     *
+     * @param stage the stage being awaited
+     * @param state the key of the await, used to resume the invocation
+     * @return true if the stage is completed and the caller continues the invocation
+     */
+    public boolean awaitUnlessDone(final CompletionStage<?> stage, final int state)
+    {
+        if (stage.toCompletableFuture().isDone())
+        {
+            this.state = state;
+            return true;
+        }
+        await(stage, state);
+        return false;
+    }
+
+    /**
+     * Completes the result with the outcome of the stage returned by the async method.
+     *
+     * @param stage the value returned by the continuation method
+     */
+    public void complete(final CompletionStage<?> stage)
+    {
+        final CompletableFuture<?> future = stage.toCompletableFuture();
+        if (future.isDone() && !future.isCompletedExceptionally())
+        {
+            result.complete(future.join());
+            return;
+        }
+        state = RETURNED;
+        if (stage instanceof Result && ((Result) stage).link(this))
+        {
+            return;
+        }
+        stage.whenComplete(this);
+    }
+
+    @Override
+    public void accept(final Object value, final Throwable exception)
+    {
+        if (state == RETURNED)
+        {
+            if (exception != null)
+            {
+                result.completeExceptionally(exception);
+            }
+            else
+            {
+                result.complete(value);
+            }
+            return;
+        }
+        final Trampoline trampoline = TRAMPOLINE.get();
+        if (trampoline.depth >= MAX_DEPTH)
+        {
+            trampoline.pending.add(this);
+            return;
+        }
+        trampoline.depth++;
+        try
+        {
+            resume();
+            if (trampoline.depth == 1)
+            {
+                for (Continuation next; (next = trampoline.pending.poll()) != null; )
+                {
+                    next.resume();
+                }
+            }
+        }
+        finally
+        {
+            trampoline.depth--;
+        }
+    }
+
+    private void resume()
+    {
+        try
+        {
+            // the value is not used, the continuation method will join the awaited future
+            run();
+        }
+        catch (Throwable ex)
+        {
+            result.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Calls the continuation method.
+     */
+    protected void run() throws Throwable
+    {
+        resume.invokeExact(this);
+    }
+
+    /**
+     * Completes the future with the outcome of the stage, used instead of a lambda by the classes
+     * instrumented with continuation classes.
+     *
+     * @param stage  the stage being relayed
+     * @param future the future to complete
+     */
+    public static void relay(final CompletionStage<?> stage, final CompletableFuture<Object> future)
+    {
+        stage.whenComplete(new Relay(future));
+    }
+
+    /**
+     * Result of an async method that links the continuation awaiting it.
+     * <p>
+     * Only one continuation can be linked, later ones use <code>whenComplete</code>.
+     * The methods completing the future are overridden to resume the linked continuation,
+     * including <code>completeAsync</code>, which in JDK 9 and later doesn't call <code>complete</code>.
+     */
+    static final class Result extends CompletableFuture<Object>
+    {
+        private static final Object COMPLETED = new Object();
+        private static final AtomicReferenceFieldUpdater<Result, Object> WAITER =
+                AtomicReferenceFieldUpdater.newUpdater(Result.class, Object.class, "waiter");
+
+        // null, the linked continuation or COMPLETED
+        private volatile Object waiter;
+
+        boolean link(final Continuation continuation)
+        {
+            return !isDone() && WAITER.compareAndSet(this, null, continuation);
+        }
+
+        private void signal()
+        {
+            final Object linked = WAITER.getAndSet(this, COMPLETED);
+            if (linked instanceof Continuation)
+            {
+                // already completed, reads the outcome directly instead of creating a dependent stage
+                Object value = null;
+                Throwable exception = null;
+                try
+                {
+                    value = join();
+                }
+                catch (CompletionException ex)
+                {
+                    exception = ex.getCause() != null ? ex.getCause() : ex;
+                }
+                catch (CancellationException ex)
+                {
+                    exception = ex;
+                }
+                ((Continuation) linked).accept(value, exception);
+            }
+        }
+
+        @Override
+        public boolean complete(final Object value)
+        {
+            final boolean completed = super.complete(value);
+            signal();
+            return completed;
+        }
+
+        @Override
+        public boolean completeExceptionally(final Throwable ex)
+        {
+            final boolean completed = super.completeExceptionally(ex);
+            signal();
+            return completed;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning)
+        {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            signal();
+            return cancelled;
+        }
+
+        /**
+         * Same as the JDK 9 method, which completes the future without calling {@link #complete(Object)}.
+         */
+        public CompletableFuture<Object> completeAsync(final Supplier<?> supplier, final Executor executor)
+        {
+            if (supplier == null || executor == null)
+            {
+                throw new NullPointerException();
+            }
+            executor.execute(() -> {
+                try
+                {
+                    complete(supplier.get());
+                }
+                catch (Throwable ex)
+                {
+                    completeExceptionally(ex);
+                }
+            });
+            return this;
+        }
+
+        /**
+         * Same as the JDK 9 method, using the common pool.
+         */
+        public CompletableFuture<Object> completeAsync(final Supplier<?> supplier)
+        {
+            return completeAsync(supplier, ForkJoinPool.commonPool());
+        }
+
+        @Override
+        public void obtrudeValue(final Object value)
+        {
+            super.obtrudeValue(value);
+            signal();
+        }
+
+        @Override
+        public void obtrudeException(final Throwable ex)
+        {
+            super.obtrudeException(ex);
+            signal();
+        }
+    }
+
+    private static final class Relay implements BiConsumer<Object, Throwable>
+    {
+        private final CompletableFuture<Object> future;
+
+        Relay(final CompletableFuture<Object> future)
+        {
+            this.future = future;
+        }
+
+        @Override
+        public void accept(final Object value, final Throwable exception)
+        {
+            if (exception != null)
+            {
+                future.completeExceptionally(exception);
+            }
+            else
+            {
+                future.complete(value);
+            }
+        }
+    }
+
+    private static final class Trampoline
+    {
+        final ArrayDeque<Continuation> pending = new ArrayDeque<>();
+        int depth;
+    }
+}
@@ -44,6 +44,7 @@ import org.objectweb.asm.tree.analysis.Frame;
 import org.objectweb.asm.tree.analysis.Interpreter;
 
 import java.util.Arrays;
+import java.util.BitSet;
 
 // uses previous frames
 // consider uninitialized values
@@ -56,7 +57,6 @@ class FrameAnalyzer extends Analyzer
     private static final int FN_LONG = 4;
     private static final int FN_NULL = 5;
     private static final int FN_UNINITIALIZED_THIS = 6;
-    private final TypeInterpreter interpreter;
 
     static class ExtendedValue extends BasicValue
     {
@@ -277,7 +277,6 @@ class FrameAnalyzer extends Analyzer
     public FrameAnalyzer()
     {
         super(TypeInterpreter.instance);
-        interpreter = TypeInterpreter.instance;
     }
 
     @Override
@@ -298,7 +297,6 @@ class FrameAnalyzer extends Analyzer
 
         // populates frames from frame nodes
         AbstractInsnNode insnNode = m.instructions.getFirst();
-        FrameAnalyzer.TypeInterpreter interpreter = FrameAnalyzer.TypeInterpreter.instance;
         Frame lastFrame = frames[0];
         for (int insnIndex = 0; insnNode != null; insnNode = insnNode.getNext(), insnIndex++)
         {
@@ -311,38 +309,169 @@ class FrameAnalyzer extends Analyzer
                     ExtendedFrame frame = (ExtendedFrame) newFrame(lastFrame);
                     frame.force = true;
                     frames[insnIndex] = frame;
-                    int iLocal_w = 0;
-                    if (frameNode.local != null && frameNode.local.size() > 0)
-                    {
-                        for (int j = 0; j < frameNode.local.size(); j++)
-                        {
-                            BasicValue value = convertFrameNodeType(frameNode.local.get(j));
-                            frame.setLocal(iLocal_w, value);
-                            iLocal_w += value.getSize();
-                        }
-                    }
-                    BasicValue nullValue = interpreter.newValue(null);
-                    while (iLocal_w < m.maxLocals)
-                    {
-                        frame.setLocal(iLocal_w++, nullValue);
-                    }
-                    frame.clearStack();
-                    if (frameNode.stack != null && frameNode.stack.size() > 0)
+                    setFrame(frame, frameNode, m);
+                    lastFrame = frame;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the frames at some instructions without a full dataflow analysis.
+     * <p>
+     * The class files produced by the java compiler contain a stack map frame at each branch target,
+     * so the frame at an instruction can be computed by interpreting only the instructions
+     * after the nearest preceding stack map frame, or after the start of the method.
+     * This is the result of the full analysis, which also uses the stack map frames.
+     *
+     * @param owner   the internal name of the class that contains the method
+     * @param m       the method, read with expanded frames
+     * @param targets the indexes of the instructions whose frames are needed
+     * @return the frames, only the ones at <code>targets</code> and at the first instruction are computed,
+     * or null if the method must be fully analyzed, for instance if it has no stack map frames,
+     * uses monitors or subroutines, or has dead code between a frame and a target.
+     */
+    static Frame<BasicValue>[] analyzeFromStackMaps(final String owner, final MethodNode m, final BitSet targets) throws AnalyzerException
+    {
+        final AbstractInsnNode[] insns = m.instructions.toArray();
+        boolean hasFrames = false;
+        boolean hasBranches = m.tryCatchBlocks != null && !m.tryCatchBlocks.isEmpty();
+        for (AbstractInsnNode insn : insns)
+        {
+            switch (insn.getType())
+            {
+                case AbstractInsnNode.FRAME:
+                    if (((FrameNode) insn).type != F_NEW && ((FrameNode) insn).type != F_FULL)
                     {
-                        for (int j = 0; j < frameNode.stack.size(); j++)
-                        {
-                            frame.push(convertFrameNodeType(frameNode.stack.get(j)));
-                        }
+                        // not expanded
+                        return null;
                     }
-                    lastFrame = frame;
+                    hasFrames = true;
+                    break;
+                case AbstractInsnNode.JUMP_INSN:
+                case AbstractInsnNode.TABLESWITCH_INSN:
+                case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                    hasBranches = true;
+                    break;
+            }
+            switch (insn.getOpcode())
+            {
+                case MONITORENTER:
+                case MONITOREXIT:
+                    // only the full analysis tracks the monitors, stack map frames don't have them
+                    return null;
+                case JSR:
+                case RET:
+                    return null;
+            }
+        }
+        if (hasBranches && !hasFrames)
+        {
+            // without stack map frames the branch targets are unknown
+            return null;
+        }
+
+        final TypeInterpreter interpreter = TypeInterpreter.instance;
+        @SuppressWarnings("unchecked")
+        final Frame<BasicValue>[] frames = new Frame[insns.length];
+        final ExtendedFrame initial = new ExtendedFrame(m.maxLocals, m.maxStack);
+        initial.setReturn(interpreter.newReturnTypeValue(Type.getReturnType(m.desc)));
+        final boolean isInstanceMethod = (m.access & ACC_STATIC) == 0;
+        int local = 0;
+        if (isInstanceMethod)
+        {
+            initial.setLocal(local, interpreter.newParameterValue(true, local, Type.getObjectType(owner)));
+            local++;
+        }
+        for (Type argumentType : Type.getArgumentTypes(m.desc))
+        {
+            initial.setLocal(local, interpreter.newParameterValue(isInstanceMethod, local, argumentType));
+            local++;
+            if (argumentType.getSize() == 2)
+            {
+                initial.setLocal(local, interpreter.newEmptyValue(local));
+                local++;
+            }
+        }
+        while (local < m.maxLocals)
+        {
+            initial.setLocal(local, interpreter.newEmptyValue(local));
+            local++;
+        }
+        if (insns.length > 0)
+        {
+            frames[0] = new ExtendedFrame(initial);
+        }
+
+        // the frame before the instruction at currentIndex
+        ExtendedFrame current = initial;
+        int currentIndex = 0;
+        int frameIndex = -1;
+        for (int target = targets.nextSetBit(0); target >= 0; target = targets.nextSetBit(target + 1))
+        {
+            // starts again from the last stack map frame before the target, unless it was already used
+            for (int i = target; i >= currentIndex && i > frameIndex; i--)
+            {
+                if (insns[i] instanceof FrameNode)
+                {
+                    current = new ExtendedFrame(initial);
+                    setFrame(current, (FrameNode) insns[i], m);
+                    currentIndex = frameIndex = i;
+                    break;
+                }
+            }
+            for (; currentIndex < target; currentIndex++)
+            {
+                final AbstractInsnNode insn = insns[currentIndex];
+                final int opcode = insn.getOpcode();
+                if (opcode == GOTO || opcode == ATHROW || opcode == TABLESWITCH || opcode == LOOKUPSWITCH
+                        || (opcode >= IRETURN && opcode <= RETURN))
+                {
+                    // the target is not reached from the last frame by falling through
+                    return null;
+                }
+                if (opcode >= 0)
+                {
+                    current.execute(insn, interpreter);
                 }
             }
+            frames[target] = new ExtendedFrame(current);
+        }
+        return frames;
+    }
+
+    private static void setFrame(final ExtendedFrame frame, final FrameNode frameNode, final MethodNode m) throws AnalyzerException
+    {
+        final TypeInterpreter interpreter = TypeInterpreter.instance;
+        int iLocal_w = 0;
+        if (frameNode.local != null && frameNode.local.size() > 0)
+        {
+            for (int j = 0; j < frameNode.local.size(); j++)
+            {
+                BasicValue value = convertFrameNodeType(frameNode.local.get(j));
+                frame.setLocal(iLocal_w, value);
+                iLocal_w += value.getSize();
+            }
+        }
+        BasicValue nullValue = interpreter.newValue(null);
+        while (iLocal_w < m.maxLocals)
+        {
+            frame.setLocal(iLocal_w++, nullValue);
+        }
+        frame.clearStack();
+        if (frameNode.stack != null && frameNode.stack.size() > 0)
+        {
+            for (int j = 0; j < frameNode.stack.size(); j++)
+            {
+                frame.push(convertFrameNodeType(frameNode.stack.get(j)));
+            }
         }
     }
 
     // converts FrameNode information to the way Frame stores it
-    BasicValue convertFrameNodeType(final Object v) throws AnalyzerException
+    static BasicValue convertFrameNodeType(final Object v) throws AnalyzerException
     {
+        final TypeInterpreter interpreter = TypeInterpreter.instance;
         if (v instanceof String)
         {
             return interpreter.newValue(Type.getObjectType((String) v));
@@ -0,0 +1,156 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers which types are <code>CompletionStage</code> subclasses, separately for each class loader.
+ * <p>
+ * Lookups don't lock, so parallel capable class loaders don't wait on each other while classes are instrumented.
+ * The class loaders are weakly referenced, the entries of a class loader are dropped when it is collected.
+ */
+public class HierarchyCache
+{
+    private final ConcurrentMap<LoaderKey, ConcurrentMap<String, Boolean>> loaders = new ConcurrentHashMap<>();
+    // the bootstrap class loader is null
+    private final ConcurrentMap<String, Boolean> bootstrap = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param classLoader  the class loader used to find the type
+     * @param internalName the internal name of the type
+     * @return the cached result, or null if the type wasn't checked yet
+     */
+    Boolean get(final ClassLoader classLoader, final String internalName)
+    {
+        final ConcurrentMap<String, Boolean> types = classLoader == null ? bootstrap : loaders.get(new LoaderKey(classLoader, null));
+        final Boolean value = types != null ? types.get(internalName) : null;
+        (value != null ? hits : misses).increment();
+        return value;
+    }
+
+    void put(final ClassLoader classLoader, final String internalName, final boolean completionStage)
+    {
+        if (classLoader == null)
+        {
+            bootstrap.put(internalName, completionStage);
+            return;
+        }
+        expungeStaleEntries();
+        ConcurrentMap<String, Boolean> types = loaders.get(new LoaderKey(classLoader, null));
+        if (types == null)
+        {
+            final ConcurrentMap<String, Boolean> newTypes = new ConcurrentHashMap<>();
+            types = loaders.putIfAbsent(new LoaderKey(classLoader, queue), newTypes);
+            if (types == null)
+            {
+                types = newTypes;
+            }
+        }
+        types.put(internalName, completionStage);
+    }
+
+    private void expungeStaleEntries()
+    {
+        for (Object key; (key = queue.poll()) != null; )
+        {
+            loaders.remove(key);
+        }
+    }
+
+    /**
+     * @return the number of lookups that found a cached result
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups that had to read the type
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of class loaders with cached types
+     */
+    public int getClassLoaderCount()
+    {
+        expungeStaleEntries();
+        return loaders.size() + (bootstrap.isEmpty() ? 0 : 1);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HierarchyCache{hits=" + getHits() + ", misses=" + getMisses() + ", classLoaders=" + getClassLoaderCount() + "}";
+    }
+
+    private static final class LoaderKey extends WeakReference<ClassLoader>
+    {
+        private final int hash;
+
+        LoaderKey(final ClassLoader classLoader, final ReferenceQueue<ClassLoader> queue)
+        {
+            super(classLoader, queue);
+            this.hash = System.identityHashCode(classLoader);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            if (!(obj instanceof LoaderKey))
+            {
+                return false;
+            }
+            final ClassLoader classLoader = get();
+            return classLoader != null && classLoader == ((LoaderKey) obj).get();
+        }
+    }
+}
@@ -62,6 +62,21 @@ public class InitializeAsync
     // there is a test case that asserts that these constants contain the same value.
     static final String EA_ASYNC_RUNNING = "ea-async.running";
 
+    /**
+     * Set by GraalVM while building and running native images,
+     * where classes can't be instrumented at runtime.
+     */
+    static final String NATIVE_IMAGE_CODE = "org.graalvm.nativeimage.imagecode";
+
+    /**
+     * Resource written by the build time instrumentation at the root of the class directories it processed.
+     *
+     * @see InitializeAsync#INSTRUMENTED_MARKER
+     * @see Transformer#INSTRUMENTED_MARKER
+     */
+    // there is a test case that asserts that these constants contain the same value.
+    static final String INSTRUMENTED_MARKER = "META-INF/ea-async/instrumented";
+
     static boolean isRunning;
 
     /**
@@ -70,7 +85,9 @@ public class InitializeAsync
     static
     {
         isRunning = "true".equals(System.getProperty(InitializeAsync.EA_ASYNC_RUNNING, "false"));
-        if (!isRunning)
+        // native images must be instrumented at build time, there is no agent to attach
+        if (!isRunning && System.getProperty(NATIVE_IMAGE_CODE) == null
+                && !isPreInstrumented(InitializeAsync.class.getClassLoader()))
         {
             // the indirection is necessary to prevent
             // touching "com.sun.tools" when the agent was loaded via
@@ -101,6 +118,27 @@ public class InitializeAsync
         }
     }
 
+    /**
+     * Checks if the application was instrumented at build time, in which case the agent isn't needed.
+     * <p>
+     * That is the case when the marker written by the build time instrumentation is visible to the loader.
+     * The class path is not inspected, so it stays cheap with many jars: applications that mix
+     * instrumented classes with classes that still call <code>await</code> must start the agent
+     * with <code>-javaagent</code>.
+     */
+    static boolean isPreInstrumented(final ClassLoader loader)
+    {
+        try
+        {
+            return loader != null && loader.getResource(INSTRUMENTED_MARKER) != null;
+        }
+        catch (RuntimeException e)
+        {
+            // attaching the agent is always safe
+            return false;
+        }
+    }
+
     static URL getClassPathFor(Class<?> clazz) throws URISyntaxException, MalformedURLException
     {
         if (clazz == null)
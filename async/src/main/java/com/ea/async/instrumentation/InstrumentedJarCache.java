@@ -0,0 +1,220 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Directory of instrumented dependency jars, used by the maven plugin
+ * so the jars of the dependencies that call <code>await</code> are instrumented once per version.
+ * <p>
+ * The jars are stored under their coordinates and keyed by a hash of the coordinates, the original jar,
+ * the ea-async version, the instrumentation options and the resolved dependencies of the jar,
+ * where its <code>CompletableFuture</code> subclasses can be:
+ * <code>group/artifact/version/artifact-version-hash.jar</code>.
+ * The key doesn't depend on the project, so projects using the same dependency share its instrumented jar.
+ * Jars are written to a temporary file and moved in place, so concurrent builds can share the directory.
+ * <p>
+ * Jars that haven't been used for {@link #MAX_UNUSED_DAYS} days are deleted when another jar of the same artifact is instrumented,
+ * which removes the jars superseded by a new version of the artifact or of its dependencies.
+ */
+public class InstrumentedJarCache
+{
+    /**
+     * Days after which the jars that were not used are deleted.
+     */
+    public static final int MAX_UNUSED_DAYS = 30;
+
+    private static final long MAX_UNUSED_MILLIS = TimeUnit.DAYS.toMillis(MAX_UNUSED_DAYS);
+    // the modification time of the jars in use is refreshed at most once a day
+    private static final long TOUCH_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final Path directory;
+    private final byte[] salt;
+
+    /**
+     * @param directory the cache directory, created if necessary
+     * @param options   the options that affect the instrumented classes
+     */
+    public InstrumentedJarCache(final Path directory, final String options) throws IOException
+    {
+        this.directory = Files.createDirectories(directory);
+        this.salt = (ClassCache.version() + ";" + options).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the instrumented jar, instrumenting it if it's not in the cache.
+     * Jars with classes that couldn't be instrumented are not cached.
+     *
+     * @param group        the group id of the dependency
+     * @param artifact     the artifact id or module name of the dependency
+     * @param version      the version of the dependency
+     * @param jar          the dependency jar
+     * @param dependencies the resolved transitive dependencies of the jar, like <code>group:artifact:version</code>,
+     *                     identifying the classes its <code>CompletableFuture</code> subclasses can extend
+     * @param instrumenter the instrumenter used if the jar is not cached
+     * @return the instrumented jar in the cache
+     */
+    public Path instrument(final String group, final String artifact, final String version, final Path jar,
+                           final Collection<String> dependencies, final BatchInstrumenter instrumenter) throws IOException
+    {
+        final String coordinates = group + ":" + artifact + ":" + version;
+        final String fileName = jar.getFileName().toString();
+        final String baseName = fileName.endsWith(".jar") || fileName.endsWith(".zip")
+                ? fileName.substring(0, fileName.length() - 4) : fileName;
+        final Path artifactDir = directory.resolve(safeName(group)).resolve(safeName(artifact));
+        final Path cached = artifactDir.resolve(safeName(version))
+                .resolve(baseName + "-" + key(coordinates, jar, dependencies) + ".jar");
+        if (Files.isRegularFile(cached))
+        {
+            touch(cached);
+            return cached;
+        }
+        final Path temp = cached.resolveSibling(cached.getFileName() + "." + UUID.randomUUID() + ".part");
+        try
+        {
+            final List<BatchInstrumenter.Result> results = instrumenter.instrumentJar(jar, temp);
+            for (BatchInstrumenter.Result result : results)
+            {
+                if (result.getException() != null)
+                {
+                    throw new IOException("Error instrumenting " + result + " from " + coordinates, result.getException());
+                }
+            }
+            Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+        evictUnused(artifactDir);
+        return cached;
+    }
+
+    private static void touch(final Path cached)
+    {
+        try
+        {
+            final long now = System.currentTimeMillis();
+            if (now - Files.getLastModifiedTime(cached).toMillis() > TOUCH_INTERVAL_MILLIS)
+            {
+                Files.setLastModifiedTime(cached, FileTime.fromMillis(now));
+            }
+        }
+        catch (IOException e)
+        {
+            // only delays its eviction
+        }
+    }
+
+    /**
+     * Deletes the jars of all the versions of the artifact that were not used recently.
+     */
+    private static void evictUnused(final Path artifactDir) throws IOException
+    {
+        final long oldest = System.currentTimeMillis() - MAX_UNUSED_MILLIS;
+        try (DirectoryStream<Path> versions = Files.newDirectoryStream(artifactDir, Files::isDirectory))
+        {
+            for (Path versionDir : versions)
+            {
+                try (DirectoryStream<Path> jars = Files.newDirectoryStream(versionDir, "*.jar"))
+                {
+                    for (Path jar : jars)
+                    {
+                        if (Files.getLastModifiedTime(jar).toMillis() < oldest)
+                        {
+                            Files.deleteIfExists(jar);
+                        }
+                    }
+                }
+                catch (IOException e)
+                {
+                    // in use by another build on windows, or removed concurrently
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the first 16 hex digits of the hash of the coordinates, the jar and its dependencies
+     */
+    private String key(final String coordinates, final Path jar, final Collection<String> dependencies) throws IOException
+    {
+        final MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        digest.update(salt);
+        digest.update(coordinates.getBytes(StandardCharsets.UTF_8));
+        // independent of the order the build tool resolved them in
+        for (String dependency : new TreeSet<>(dependencies))
+        {
+            digest.update((";" + dependency).getBytes(StandardCharsets.UTF_8));
+        }
+        try (InputStream in = Files.newInputStream(jar))
+        {
+            final byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) > 0; )
+            {
+                digest.update(buffer, 0, read);
+            }
+        }
+        final byte[] hash = digest.digest();
+        final StringBuilder sb = new StringBuilder(16);
+        for (int i = 0; i < 8; i++)
+        {
+            sb.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String safeName(final String name)
+    {
+        return name.replaceAll("[^A-Za-z0-9._+-]", "_");
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import java.util.BitSet;
+
+// backward dataflow over the local variables.
+// computes which locals may be read before being written again, starting from each instruction.
+class LivenessAnalyzer
+{
+    private final InsnList instructions;
+    private final int[][] successors;
+    private final int[][] handlers;
+    private final BitSet[] liveIn;
+
+    private LivenessAnalyzer(final MethodNode method)
+    {
+        this.instructions = method.instructions;
+        final int size = instructions.size();
+        successors = new int[size][];
+        handlers = new int[size][];
+        liveIn = new BitSet[size];
+        for (int i = 0; i < size; i++)
+        {
+            successors[i] = successors(instructions.get(i), i);
+            handlers[i] = new int[0];
+            liveIn[i] = new BitSet(method.maxLocals);
+        }
+        if (method.tryCatchBlocks != null)
+        {
+            for (TryCatchBlockNode tcb : method.tryCatchBlocks)
+            {
+                final int handler = instructions.indexOf(tcb.handler);
+                for (int i = instructions.indexOf(tcb.start), end = instructions.indexOf(tcb.end); i < end; i++)
+                {
+                    handlers[i] = append(handlers[i], handler);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the live locals before each instruction of the method.
+     *
+     * @return one bit set per instruction, indexed like the method instructions,
+     * or null if the method uses subroutines (jsr/ret) which are not supported.
+     */
+    static BitSet[] analyze(final MethodNode method)
+    {
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext())
+        {
+            if (insn.getOpcode() == Opcodes.JSR || insn.getOpcode() == Opcodes.RET)
+            {
+                return null;
+            }
+        }
+        final LivenessAnalyzer analyzer = new LivenessAnalyzer(method);
+        analyzer.solve();
+        return analyzer.liveIn;
+    }
+
+    private void solve()
+    {
+        final int size = instructions.size();
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            // backwards, the most common case converges in few passes.
+            for (int i = size; --i >= 0; )
+            {
+                final BitSet live = new BitSet();
+                for (int s : successors[i])
+                {
+                    live.or(liveIn[s]);
+                }
+                final AbstractInsnNode insn = instructions.get(i);
+                final int opcode = insn.getOpcode();
+                if (opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE)
+                {
+                    live.clear(((VarInsnNode) insn).var);
+                }
+                else if (opcode >= Opcodes.ILOAD && opcode <= Opcodes.ALOAD)
+                {
+                    live.set(((VarInsnNode) insn).var);
+                }
+                else if (opcode == Opcodes.IINC)
+                {
+                    live.set(((IincInsnNode) insn).var);
+                }
+                // the instruction might throw before writing any local
+                for (int h : handlers[i])
+                {
+                    live.or(liveIn[h]);
+                }
+                if (!live.equals(liveIn[i]))
+                {
+                    liveIn[i] = live;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private int[] successors(final AbstractInsnNode insn, final int index)
+    {
+        final int next = index + 1 < instructions.size() ? index + 1 : -1;
+        if (insn instanceof JumpInsnNode)
+        {
+            final int target = instructions.indexOf(((JumpInsnNode) insn).label);
+            return insn.getOpcode() == Opcodes.GOTO || next < 0 ? new int[]{ target } : new int[]{ target, next };
+        }
+        if (insn instanceof TableSwitchInsnNode)
+        {
+            final TableSwitchInsnNode sw = (TableSwitchInsnNode) insn;
+            return targets(sw.dflt, sw.labels.toArray(new LabelNode[sw.labels.size()]));
+        }
+        if (insn instanceof LookupSwitchInsnNode)
+        {
+            final LookupSwitchInsnNode sw = (LookupSwitchInsnNode) insn;
+            return targets(sw.dflt, sw.labels.toArray(new LabelNode[sw.labels.size()]));
+        }
+        final int opcode = insn.getOpcode();
+        if ((opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) || opcode == Opcodes.ATHROW || next < 0)
+        {
+            return new int[0];
+        }
+        return new int[]{ next };
+    }
+
+    private int[] targets(final LabelNode dflt, final LabelNode[] labels)
+    {
+        int[] targets = new int[]{ instructions.indexOf(dflt) };
+        for (LabelNode label : labels)
+        {
+            targets = append(targets, instructions.indexOf(label));
+        }
+        return targets;
+    }
+
+    private static int[] append(final int[] array, final int value)
+    {
+        final int[] result = new int[array.length + 1];
+        System.arraycopy(array, 0, result, 0, array.length);
+        result[array.length] = value;
+        return result;
+    }
+}
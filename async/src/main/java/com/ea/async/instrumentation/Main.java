@@ -3,14 +3,21 @@ package com.ea.async.instrumentation;
 
 import org.objectweb.asm.ClassReader;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipFile;
 
 /**
  * Tool class to perform build time instrumentation.
@@ -18,7 +25,17 @@ import java.util.List;
 public class Main
 {
     private boolean verbose;
+    private boolean heapFrames;
+    private boolean sizes;
+    private boolean compact;
+    private int methodSizeLimit;
+    private boolean continuationClasses;
+    private boolean nativeImage;
+    private int threads;
     private List<Path> fileList;
+    private Set<Path> directoryList;
+    private List<Path> jarList;
+    private List<Path> classPath;
     private Path outputDirectory;
     private ClassLoader classLoader = getClass().getClassLoader();
 
@@ -36,6 +53,9 @@ public class Main
         outputDirectory = null;
 
         fileList = new ArrayList<>();
+        directoryList = new LinkedHashSet<>();
+        jarList = new ArrayList<>();
+        classPath = new ArrayList<>();
         if (args.length == 0)
         {
             printUsage();
@@ -54,6 +74,67 @@ public class Main
                 verbose = true;
                 continue;
             }
+            if ("-heapFrames".equals(arg))
+            {
+                heapFrames = true;
+                continue;
+            }
+            if ("-compact".equals(arg))
+            {
+                compact = true;
+                continue;
+            }
+            if ("-continuationClasses".equals(arg))
+            {
+                continuationClasses = true;
+                continue;
+            }
+            if ("-nativeImage".equals(arg))
+            {
+                nativeImage = true;
+                continue;
+            }
+            if ("-sizes".equals(arg))
+            {
+                sizes = true;
+                continue;
+            }
+            if ("-methodSizeLimit".equals(arg))
+            {
+                if (i + 1 == args.length)
+                {
+                    error("Invalid usage of the -methodSizeLimit option");
+                    return 1;
+                }
+                try
+                {
+                    methodSizeLimit = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException ex)
+                {
+                    error("Invalid method size limit: " + args[i]);
+                    return 1;
+                }
+                continue;
+            }
+            if ("-threads".equals(arg))
+            {
+                if (i + 1 == args.length)
+                {
+                    error("Invalid usage of the -threads option");
+                    return 1;
+                }
+                try
+                {
+                    threads = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException ex)
+                {
+                    error("Invalid number of threads: " + args[i]);
+                    return 1;
+                }
+                continue;
+            }
             if ("-d".equals(arg))
             {
                 if (i + 1 == args.length)
@@ -67,12 +148,20 @@ public class Main
             final Path path = Paths.get(arg);
             if (Files.isDirectory(path))
             {
+                classPath.add(path);
+                directoryList.add(path.toAbsolutePath().normalize());
                 Files.walk(path)
                         .filter(Files::isRegularFile)
                         .filter(p -> p.toString().endsWith(".class"))
                         .forEach(fileList::add);
                 continue;
             }
+            if (Files.isRegularFile(path) && (arg.endsWith(".jar") || arg.endsWith(".zip")))
+            {
+                classPath.add(path);
+                jarList.add(path);
+                continue;
+            }
             if (Files.isRegularFile(path))
             {
                 fileList.add(path);
@@ -86,51 +175,204 @@ public class Main
 
     public int transform() throws IOException
     {
+        if (getOutputDirectory() != null && jarList != null)
+        {
+            // the instrumented jars are written with the name of the original ones
+            final Map<Path, Path> jarNames = new HashMap<>();
+            for (Path jar : jarList)
+            {
+                final Path previous = jarNames.putIfAbsent(jar.getFileName(), jar);
+                if (previous != null)
+                {
+                    error("Jars with the same name would overwrite each other in " + getOutputDirectory() + ": " + previous + " and " + jar);
+                    return -1;
+                }
+            }
+        }
         final Transformer transformer = new Transformer();
         transformer.setErrorListener(System.err::println);
+        transformer.setHeapFrames(heapFrames);
+        transformer.setCompact(compact);
+        if (methodSizeLimit > 0)
+        {
+            transformer.setMethodSizeLimit(methodSizeLimit);
+        }
+        transformer.setHierarchyIndex(TypeHierarchyIndex.of(getIndexedClassPath()));
+        final BatchInstrumenter instrumenter = new BatchInstrumenter(transformer);
+        instrumenter.setClassLoader(classLoader);
+        instrumenter.setThreads(threads);
+        instrumenter.setContinuationClasses(continuationClasses || nativeImage);
+        instrumenter.setNativeImage(nativeImage);
+        final Path outputDir = getOutputDirectory();
+        instrumenter.setOutputDirectory(outputDir);
+        // class directory roots and the native-image metadata of their classes
+        final Map<Path, NativeImageMetadata> metadata = new LinkedHashMap<>();
+        final Set<Path> roots = new LinkedHashSet<>();
+        final Set<Path> partialRoots = new HashSet<>();
         boolean error = false;
         int count = 0;
-        final Path outputDir = getOutputDirectory();
-        for (Path path : fileList)
+        for (BatchInstrumenter.Result result : instrumenter.instrument(fileList))
         {
-            byte[] bytes = null;
-            try (InputStream in = new FileInputStream(path.toFile()))
+            final Path path = result.getSource();
+            if (result.getException() != null)
             {
-                bytes = transformer.instrument(classLoader, in);
+                error("Error instrumenting " + path, result.getException());
+                error = true;
+                continue;
             }
-            catch (Exception e)
+            final Path root = outputDir != null ? outputDir : getClassRoot(path, result.getClassName());
+            if (root != null)
             {
-                error("Error instrumenting " + path, e);
-                error = true;
+                roots.add(root);
+                if (outputDir == null ? !isWholeDirectory(root) : !isWholeDirectory(getClassRoot(path, result.getClassName())))
+                {
+                    // only some of the classes of this root were given, the others might not be instrumented
+                    partialRoots.add(root);
+                }
             }
-            if (bytes != null)
+            if (result.isInstrumented())
             {
                 if (verbose)
                 {
                     info("instrumented: " + path);
                 }
-                if (outputDir != null)
+                if (sizes)
+                {
+                    reportSizes(Files.readAllBytes(result.getTarget()));
+                }
+                if (nativeImage && !result.getGeneratedClasses().isEmpty() && root != null)
                 {
-                    // writing to the output directory, using the package name as path.
-                    final Path outPath = outputDir.resolve(new ClassReader(bytes).getClassName() + ".class");
-                    final Path outParent = outPath.getParent();
-                    if (!Files.exists(outParent))
+                    final NativeImageMetadata rootMetadata = metadata.computeIfAbsent(root, r -> new NativeImageMetadata());
+                    result.getGeneratedClasses().forEach(rootMetadata::addClass);
+                }
+                count++;
+            }
+        }
+        if (jarList != null)
+        {
+            for (Path jar : jarList)
+            {
+                final Path output = outputDir != null ? outputDir.resolve(jar.getFileName().toString()) : jar;
+                final List<BatchInstrumenter.Result> results;
+                try
+                {
+                    results = instrumenter.instrumentJar(jar, output);
+                }
+                catch (IOException e)
+                {
+                    error("Error instrumenting " + jar, e);
+                    error = true;
+                    continue;
+                }
+                final List<String> instrumented = new ArrayList<>();
+                for (BatchInstrumenter.Result result : results)
+                {
+                    if (result.getException() != null)
+                    {
+                        error("Error instrumenting " + result, result.getException());
+                        error = true;
+                    }
+                    else if (result.isInstrumented())
+                    {
+                        if (verbose)
+                        {
+                            info("instrumented: " + result);
+                        }
+                        instrumented.add(result.getEntry());
+                        count++;
+                    }
+                }
+                if (sizes && !instrumented.isEmpty())
+                {
+                    try (ZipFile zipFile = new ZipFile(output.toFile()))
                     {
-                        Files.createDirectories(outParent);
+                        for (String entry : instrumented)
+                        {
+                            try (InputStream in = zipFile.getInputStream(zipFile.getEntry(entry)))
+                            {
+                                reportSizes(Transformer.readAllBytes(in));
+                            }
+                        }
                     }
-                    Files.write(outPath, bytes);
                 }
-                else
+            }
+        }
+        for (Map.Entry<Path, NativeImageMetadata> entry : metadata.entrySet())
+        {
+            entry.getValue().write(entry.getKey());
+        }
+        if (!error)
+        {
+            // the agent is not needed for these classes
+            for (Path root : roots)
+            {
+                if (!partialRoots.contains(root))
                 {
-                    // replacing the original file
-                    Files.write(path, bytes);
+                    Transformer.writeInstrumentedMarker(root);
                 }
-                count++;
             }
         }
         return error ? -1 : count;
     }
 
+    private List<Path> getIndexedClassPath()
+    {
+        // the directories being instrumented and the class path of the tool
+        final List<Path> indexed = new ArrayList<>();
+        if (classPath != null)
+        {
+            indexed.addAll(classPath);
+        }
+        for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator))
+        {
+            if (!entry.isEmpty())
+            {
+                indexed.add(Paths.get(entry));
+            }
+        }
+        return indexed;
+    }
+
+    private boolean isWholeDirectory(final Path root)
+    {
+        return root != null && directoryList != null && directoryList.contains(root.normalize());
+    }
+
+    private static Path getClassRoot(final Path path, final String className)
+    {
+        if (!path.toAbsolutePath().endsWith(className + ".class"))
+        {
+            // not in a class directory
+            return null;
+        }
+        // one directory up for each package segment
+        Path root = path.toAbsolutePath().getParent();
+        for (int i = className.indexOf('/'); i >= 0; i = className.indexOf('/', i + 1))
+        {
+            root = root.getParent();
+        }
+        return root;
+    }
+
+    private void reportSizes(final byte[] bytes)
+    {
+        final String className = new ClassReader(bytes).getClassName().replace('/', '.');
+        for (Map.Entry<String, Integer> entry : MethodSizes.read(bytes).entrySet())
+        {
+            final int size = entry.getValue();
+            String msg = className + "." + entry.getKey() + ": " + size + " bytes";
+            if (size > MethodSizes.HUGE_METHOD_LIMIT)
+            {
+                msg += " (above HugeMethodLimit " + MethodSizes.HUGE_METHOD_LIMIT + ", not compiled)";
+            }
+            else if (size > MethodSizes.FREQ_INLINE_SIZE)
+            {
+                msg += " (above FreqInlineSize " + MethodSizes.FREQ_INLINE_SIZE + ", not inlined)";
+            }
+            info(msg);
+        }
+    }
+
     private void error(final String msg, final Exception e)
     {
         System.err.println(msg);
@@ -151,11 +393,32 @@ public class Main
     protected void printUsage()
     {
         System.out.println("usage:");
-        System.out.println(" java -cp project-class-path -jar ea-async.jar -d output-directory file1 input-dir1 input-dir2");
+        System.out.println(" java -cp project-class-path -jar ea-async.jar -d output-directory file1 input-dir1 input-dir2 input1.jar");
         System.out.println("options:");
         System.out.println("-d directory");
         System.out.println("   Set the destination directory for class files. ");
         System.out.println("   If not specified the original files will be modified in place");
+        System.out.println("   Jar and zip files are written to this directory with the same name");
+        System.out.println("-heapFrames");
+        System.out.println("   Keeps the state of suspended async methods in a single continuation object. ");
+        System.out.println("   The instrumented classes will require ea-async at runtime");
+        System.out.println("-compact");
+        System.out.println("   Async methods only start their continuation method instead of copying the method body. ");
+        System.out.println("-continuationClasses");
+        System.out.println("   Generates a continuation class for each async method, implies -heapFrames. ");
+        System.out.println("   The instrumented classes don't link lambdas or method handles at runtime");
+        System.out.println("-nativeImage");
+        System.out.println("   Instruments for GraalVM native images, implies -continuationClasses. ");
+        System.out.println("   Writes the native-image reflection configuration of the generated classes");
+        System.out.println("-methodSizeLimit bytes");
+        System.out.println("   Continuation methods larger than this have their suspension code moved to separate methods, ");
+        System.out.println("   and with -heapFrames the straight-line code between awaits. ");
+        System.out.println("   Defaults to 8000, the JIT's HugeMethodLimit");
+        System.out.println("-threads count");
+        System.out.println("   Number of threads instrumenting the classes. ");
+        System.out.println("   Defaults to the number of processors");
+        System.out.println("-sizes");
+        System.out.println("   Prints the bytecode size of the methods of the instrumented classes. ");
         System.out.println("-help");
         System.out.println("   Shows this help. ");
     }
@@ -170,6 +433,79 @@ public class Main
         this.verbose = verbose;
     }
 
+    public boolean isHeapFrames()
+    {
+        return heapFrames;
+    }
+
+    public void setHeapFrames(final boolean heapFrames)
+    {
+        this.heapFrames = heapFrames;
+    }
+
+    public boolean isCompact()
+    {
+        return compact;
+    }
+
+    public void setCompact(final boolean compact)
+    {
+        this.compact = compact;
+    }
+
+    public int getMethodSizeLimit()
+    {
+        return methodSizeLimit;
+    }
+
+    public void setMethodSizeLimit(final int methodSizeLimit)
+    {
+        this.methodSizeLimit = methodSizeLimit;
+    }
+
+    public boolean isContinuationClasses()
+    {
+        return continuationClasses;
+    }
+
+    public void setContinuationClasses(final boolean continuationClasses)
+    {
+        this.continuationClasses = continuationClasses;
+    }
+
+    public boolean isNativeImage()
+    {
+        return nativeImage;
+    }
+
+    public void setNativeImage(final boolean nativeImage)
+    {
+        this.nativeImage = nativeImage;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * @param threads the number of threads instrumenting the classes, 0 for the number of processors
+     */
+    public void setThreads(final int threads)
+    {
+        this.threads = threads;
+    }
+
+    public boolean isSizes()
+    {
+        return sizes;
+    }
+
+    public void setSizes(final boolean sizes)
+    {
+        this.sizes = sizes;
+    }
+
     public List<Path> getFileList()
     {
         return fileList;
@@ -180,6 +516,33 @@ public class Main
         this.fileList = fileList;
     }
 
+    public List<Path> getJarList()
+    {
+        return jarList;
+    }
+
+    /**
+     * @param jarList the jar or zip files whose classes are instrumented
+     */
+    public void setJarList(final List<Path> jarList)
+    {
+        this.jarList = jarList;
+    }
+
+    public List<Path> getClassPath()
+    {
+        return classPath;
+    }
+
+    /**
+     * @param classPath the class directories and jars indexed to find the <code>CompletableFuture</code> subclasses,
+     *                  in addition to the class path of the tool
+     */
+    public void setClassPath(final List<Path> classPath)
+    {
+        this.classPath = classPath;
+    }
+
     public Path getOutputDirectory()
     {
         return outputDirectory;
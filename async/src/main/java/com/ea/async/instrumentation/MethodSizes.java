@@ -0,0 +1,107 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the bytecode size of each method of a class.
+ * <p>
+ * Used to report methods that are too large to be inlined or compiled by the jit.
+ */
+public class MethodSizes
+{
+    /**
+     * Default value of the hotspot -XX:FreqInlineSize, hot methods larger than this are not inlined.
+     */
+    public static final int FREQ_INLINE_SIZE = 325;
+
+    /**
+     * Default value of the hotspot -XX:HugeMethodLimit, methods larger than this are not compiled.
+     */
+    public static final int HUGE_METHOD_LIMIT = 8000;
+
+    private MethodSizes()
+    {
+    }
+
+    /**
+     * Returns the length of the code attribute of each method, keyed by name and descriptor.
+     * Abstract and native methods are not included.
+     */
+    public static Map<String, Integer> read(final byte[] classBytes)
+    {
+        final ClassReader cr = new ClassReader(classBytes);
+        final char[] buf = new char[cr.getMaxStringLength()];
+        final Map<String, Integer> sizes = new LinkedHashMap<>();
+        // skips access, this, super and interfaces
+        int offset = cr.header + 6;
+        offset += 2 + 2 * cr.readUnsignedShort(offset);
+        // skips the fields
+        int count = cr.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < count; i++)
+        {
+            offset = skipAttributes(cr, offset + 6);
+        }
+        count = cr.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < count; i++)
+        {
+            final String name = cr.readUTF8(offset + 2, buf);
+            final String desc = cr.readUTF8(offset + 4, buf);
+            int attributes = cr.readUnsignedShort(offset + 6);
+            offset += 8;
+            for (int j = 0; j < attributes; j++)
+            {
+                if ("Code".equals(cr.readUTF8(offset, buf)))
+                {
+                    // attribute_name, attribute_length, max_stack, max_locals, code_length
+                    sizes.put(name + desc, cr.readInt(offset + 10));
+                }
+                offset += 6 + cr.readInt(offset + 2);
+            }
+        }
+        return sizes;
+    }
+
+    private static int skipAttributes(final ClassReader cr, int offset)
+    {
+        int attributes = cr.readUnsignedShort(offset);
+        offset += 2;
+        for (int j = 0; j < attributes; j++)
+        {
+            offset += 6 + cr.readInt(offset + 2);
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * GraalVM native-image metadata for classes instrumented at build time.
+ * <p>
+ * The instrumented classes don't use reflection, the continuation classes are created directly,
+ * so the metadata only registers the generated continuation classes in the reflection configuration,
+ * keeping them visible by name in the image. ea-async's own metadata is in its jar.
+ */
+public class NativeImageMetadata
+{
+    /**
+     * Location of the reflection configuration, relative to the root of the class directory.
+     */
+    public static final String REFLECT_CONFIG = "META-INF/native-image/ea-async/reflect-config.json";
+
+    private static final Pattern NAME = Pattern.compile("\"name\": \"([^\"]+)\"");
+
+    private final Set<String> classNames = new TreeSet<>();
+
+    /**
+     * @param internalName internal name of a generated class
+     */
+    public void addClass(final String internalName)
+    {
+        classNames.add(internalName.replace('/', '.'));
+    }
+
+    public boolean isEmpty()
+    {
+        return classNames.isEmpty();
+    }
+
+    /**
+     * @return the content of the reflection configuration
+     */
+    public String toReflectConfig()
+    {
+        final StringBuilder sb = new StringBuilder("[");
+        for (String name : classNames)
+        {
+            sb.append(sb.length() > 1 ? ",\n" : "\n").append("  { \"name\": \"").append(name).append("\" }");
+        }
+        return sb.append("\n]\n").toString();
+    }
+
+    /**
+     * Adds the classes of an existing reflection configuration.
+     *
+     * @param reflectConfig the content of the configuration
+     */
+    public void merge(final String reflectConfig)
+    {
+        final Matcher matcher = NAME.matcher(reflectConfig);
+        while (matcher.find())
+        {
+            classNames.add(matcher.group(1));
+        }
+    }
+
+    /**
+     * Writes the configuration files under the root of a class directory.
+     * The classes of an existing configuration are kept, since classes
+     * instrumented by a previous run are not instrumented again.
+     *
+     * @param root the class directory
+     */
+    public void write(final Path root) throws IOException
+    {
+        final Path path = root.resolve(REFLECT_CONFIG);
+        if (Files.exists(path))
+        {
+            merge(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+        }
+        Files.createDirectories(path.getParent());
+        Files.write(path, toReflectConfig().getBytes(StandardCharsets.UTF_8));
+    }
+}
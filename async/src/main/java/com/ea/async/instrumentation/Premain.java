@@ -48,7 +48,7 @@ public class Premain
      */
     public static void premain(String agentArgs, Instrumentation inst)
     {
-        inst.addTransformer(new Transformer(), true);
+        inst.addTransformer(Transformer.forRuntime(agentArgs), true);
         System.setProperty(Transformer.EA_ASYNC_RUNNING, "true");
     }
 }
@@ -28,10 +28,16 @@
 
 package com.ea.async.instrumentation;
 
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ByteVector;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodTooLargeException;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
@@ -40,34 +46,44 @@ import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FrameNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LineNumberNode;
 import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
 import org.objectweb.asm.tree.TypeInsnNode;
 import org.objectweb.asm.tree.VarInsnNode;
-import org.objectweb.asm.tree.analysis.Analyzer;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.BasicValue;
 import org.objectweb.asm.tree.analysis.Frame;
 import org.objectweb.asm.tree.analysis.Value;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.reflect.Modifier;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.IntFunction;
@@ -99,8 +115,69 @@ public class Transformer implements ClassFileTransformer
     // there is a test case that asserts that these constants contain the same value.
     static final String EA_ASYNC_RUNNING = "ea-async.running";
 
+    /**
+     * Name of the system property that turns on heap frames for the runtime agent,
+     * also accepted as the <code>heapFrames</code> agent argument.
+     *
+     * @see #setHeapFrames(boolean)
+     */
+    public static final String EA_ASYNC_HEAP_FRAMES = "ea-async.heapFrames";
+
+    /**
+     * Name of the system property that turns on compact async methods for the runtime agent.
+     *
+     * @see #setCompact(boolean)
+     */
+    public static final String EA_ASYNC_COMPACT = "ea-async.compact";
+
+    /**
+     * Name of the system property with the comma separated packages instrumented by the runtime agent,
+     * also accepted as the <code>include</code> agent argument.
+     *
+     * @see #setIncludes(String...)
+     */
+    public static final String EA_ASYNC_INCLUDE = "ea-async.include";
+
+    /**
+     * Name of the system property with the comma separated packages not instrumented by the runtime agent,
+     * also accepted as the <code>exclude</code> agent argument.
+     *
+     * @see #setExcludes(String...)
+     */
+    public static final String EA_ASYNC_EXCLUDE = "ea-async.exclude";
+
+    /**
+     * Name of the system property with the directory where the runtime agent caches the instrumented classes,
+     * also accepted as the <code>cacheDir</code> agent argument.
+     */
+    public static final String EA_ASYNC_CACHE_DIR = "ea-async.cacheDir";
+
+    /**
+     * Name of the system property that makes the runtime agent print to <code>System.err</code>
+     * the time it took to attach.
+     */
+    public static final String EA_ASYNC_VERBOSE = "ea-async.verbose";
+
+    /**
+     * Resource written by the build time instrumentation at the root of the class directories it processed.
+     * When it is in the class path the runtime agent is not attached.
+     *
+     * @see InitializeAsync#INSTRUMENTED_MARKER
+     * @see #writeInstrumentedMarker(Path)
+     */
+    // there is a test case that asserts that these constants contain the same value.
+    public static final String INSTRUMENTED_MARKER = "META-INF/ea-async/instrumented";
+
+    /**
+     * Name of the empty class attribute added to the instrumented classes.
+     */
+    public static final String INSTRUMENTED_ATTRIBUTE = "com.ea.async.Instrumented";
+
     private static final String ASYNC_NAME = "com/ea/async/Async";
 
+    private static final String[] MARKER_NAMES = { INSTRUMENTED_ATTRIBUTE };
+    private static final String[] ASYNC_AND_MARKER_NAMES = { ASYNC_NAME, INSTRUMENTED_ATTRIBUTE };
+
     //public static final String ASYNC_METHOD_DESC = "(Ljava/util/concurrent/CompletionStage;)Ljava/lang/Object;";
     public static final String ASYNC_METHOD_NAME = "await";
 
@@ -133,26 +210,57 @@ public class Transformer implements ClassFileTransformer
             "metafactory",
             LAMBDA_DESC);
 
-    public static WeakHashMap<URL, Boolean> futureMap = new WeakHashMap<>();
-    public static WeakHashMap<ClassLoader, Set<URL>> classLoaderMap = new WeakHashMap<>();
+    private static final HierarchyCache hierarchyCache = new HierarchyCache();
+
+    private static final String CONTINUATION_DESCRIPTOR = "L" + Continuation.NAME + ";";
+    private static final String CONTINUATION_METHOD_DESC = "(" + CONTINUATION_DESCRIPTOR + ")V";
 
     private Consumer<String> errorListener;
+    // the system properties are only read by the runtime agent, so build tools don't pick them up
+    private boolean heapFrames;
+    private boolean compact;
+    private int methodSizeLimit = MethodSizes.HUGE_METHOD_LIMIT;
+    private BiConsumer<String, byte[]> continuationClassListener;
+    // internal name prefixes
+    private String[] includes = new String[0];
+    private String[] excludes = new String[0];
+    private ClassCache cache;
+    private TypeHierarchyIndex hierarchyIndex;
 
     @Override
     public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined, final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException
     {
         try
         {
-            if (className != null && className.startsWith("java"))
+            if (className != null && (className.startsWith("java") || !isIncluded(className)))
+            {
+                return null;
+            }
+            // rejects most classes without parsing them
+            if (!referencesAsync(classfileBuffer))
             {
                 return null;
             }
             ClassReader cr = new ClassReader(classfileBuffer);
-            if (needsInstrumentation(cr))
+            if (!needsInstrumentation(cr))
+            {
+                return null;
+            }
+            if (cache == null)
             {
                 return transform(loader, cr);
             }
-            return null;
+            final String key = cache.key(classfileBuffer, ClassCache.loaderFingerprint(loader, protectionDomain));
+            byte[] bytes = cache.get(key);
+            if (bytes == null)
+            {
+                bytes = transform(loader, cr);
+                if (bytes != null)
+                {
+                    cache.put(key, bytes);
+                }
+            }
+            return bytes;
         }
         catch (Exception | Error e)
         {
@@ -177,6 +285,13 @@ public class Transformer implements ClassFileTransformer
         public int[] stackToNewLocal;
         public int[] argumentToLocal;
         public int[] localToiArgument;
+        // the awaited future feeds directly into the method return, it's returned instead of suspending
+        boolean tail;
+        // the straight-line code after the await, up to the next await or return,
+        // moved to a segment method when the continued method is split
+        AbstractInsnNode segmentStart;
+        AbstractInsnNode segmentEnd;
+        Handle segment;
 
         public SwitchEntry(final int key, final FrameAnalyzer.ExtendedFrame frame, final int index)
         {
@@ -193,10 +308,45 @@ public class Transformer implements ClassFileTransformer
         BasicValue value;
         String name;
         int iArgumentLocal;
+        // index in the continuation objects or primitives, when using heap frames
+        int heapSlot;
         // working space
         int tmpLocalMapping = -1;
     }
 
+    static class HeapFrame
+    {
+        // local variable holding the continuation object
+        final int local;
+        final int objects;
+        final int primitives;
+
+        HeapFrame(final int local, final int objects, final int primitives)
+        {
+            this.local = local;
+            this.objects = objects;
+            this.primitives = primitives;
+        }
+
+        // appends the continuation local to the locals of a frame
+        Object[] frameLocals(final int nLocal, final Object[] local)
+        {
+            final List<Object> locals = new ArrayList<>(this.local + 1);
+            int size = 0;
+            for (int i = 0; i < nLocal; i++)
+            {
+                locals.add(local[i]);
+                size += (Opcodes.LONG.equals(local[i]) || Opcodes.DOUBLE.equals(local[i])) ? 2 : 1;
+            }
+            for (; size < this.local; size++)
+            {
+                locals.add(TOP);
+            }
+            locals.add(Continuation.NAME);
+            return locals.toArray();
+        }
+    }
+
     public byte[] instrument(final ClassLoader classLoader, InputStream inputStream)
     {
         try
@@ -223,13 +373,35 @@ public class Transformer implements ClassFileTransformer
      */
     public byte[] transform(final ClassLoader classLoader, ClassReader cr) throws AnalyzerException
     {
-        ClassNode classNode = new ClassNode();
+        final Set<String> asyncMethods = findAsyncMethods(cr);
+        if (asyncMethods == null || asyncMethods.isEmpty())
+        {
+            return null;
+        }
+        // only the methods calling await or init are read into tree nodes and analyzed,
+        // the others are streamed from the class reader to the class writer
+        final ClassNode classNode = new ClassNode();
         // using EXPAND_FRAMES because F_SAME causes problems when inserting new frames
-        cr.accept(classNode, ClassReader.EXPAND_FRAMES);
+        cr.accept(new ClassVisitor(Opcodes.ASM7, classNode)
+        {
+            @Override
+            public MethodVisitor visitMethod(final int access, final String name, final String descriptor, final String signature, final String[] exceptions)
+            {
+                if (!asyncMethods.contains(name + descriptor))
+                {
+                    // keeps the position and name of the method, without code
+                    classNode.methods.add(new CopiedMethod(access, name, descriptor, signature, exceptions));
+                    return null;
+                }
+                return super.visitMethod(access, name, descriptor, signature, exceptions);
+            }
+        }, ClassReader.EXPAND_FRAMES);
 
         int countInstrumented = 0;
 
         Map<String, Integer> nameUseCount = new HashMap<>();
+        // continuation classes, only delivered if the instrumentation succeeds
+        final Map<String, byte[]> generatedClasses = new LinkedHashMap<>();
 
         for (MethodNode original : (List<MethodNode>) new ArrayList(classNode.methods))
         {
@@ -268,13 +440,21 @@ public class Transformer implements ClassFileTransformer
                     )
             {
                 // async method
-                transformAsyncMethod(classNode, original, nameUseCount);
+                transformAsyncMethod(classNode, original, nameUseCount, generatedClasses);
             }
             else
             {
                 // non async method
                 // Removing calls to `Await.init()`
                 // and advising on wrong uses of Await.await
+                final Type retType = Type.getReturnType(original.desc);
+                if (hasAwaitCall && hierarchyIndex != null && retType.getSort() == Type.OBJECT
+                        && Boolean.TRUE.equals(hierarchyIndex.isCompletionStage(retType.getInternalName())))
+                {
+                    // the instrumentation has to create the returned future
+                    notifyError("Async method %s.%s must return a CompletableFuture subclass, %s only implements CompletionStage",
+                            cr.getClassName(), original.name, retType.getClassName());
+                }
 
                 final MethodNode replacement = new MethodNode(original.access,
                         original.name, original.desc, original.signature, (String[]) original.exceptions.toArray(new String[original.exceptions.size()]));
@@ -320,7 +500,9 @@ public class Transformer implements ClassFileTransformer
         }
 
         // avoiding using COMPUTE_FRAMES
-        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS)
+        // sharing the class reader, the methods that aren't transformed and the constant pool are copied as is.
+        // the pool keeps the references to await and init, the marker is checked before them
+        final ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS)
         {
             @Override
             protected String getCommonSuperClass(final String type1, final String type2)
@@ -334,8 +516,75 @@ public class Transformer implements ClassFileTransformer
                 return type1.equals(type2) ? type1 : "java/lang/Object";
             }
         };
-        classNode.accept(cw);
+        cr.accept(new ClassVisitor(Opcodes.ASM7, cw)
+        {
+            private boolean marked;
+
+            /**
+             * The attributes are visited before the members of the class.
+             */
+            private void mark()
+            {
+                if (!marked)
+                {
+                    marked = true;
+                    super.visitAttribute(new InstrumentedAttribute());
+                }
+            }
+
+            @Override
+            public void visitNestMember(final String nestMember)
+            {
+                mark();
+                super.visitNestMember(nestMember);
+            }
+
+            @Override
+            public void visitInnerClass(final String name, final String outerName, final String innerName, final int access)
+            {
+                mark();
+                super.visitInnerClass(name, outerName, innerName, access);
+            }
+
+            @Override
+            public FieldVisitor visitField(final int access, final String name, final String descriptor, final String signature, final Object value)
+            {
+                mark();
+                return super.visitField(access, name, descriptor, signature, value);
+            }
+
+            @Override
+            public MethodVisitor visitMethod(final int access, final String name, final String descriptor, final String signature, final String[] exceptions)
+            {
+                mark();
+                if (asyncMethods.contains(name + descriptor))
+                {
+                    // replaced by the transformed methods
+                    return null;
+                }
+                // the class writer copies the code of the method from the class reader
+                return super.visitMethod(access, name, descriptor, signature, exceptions);
+            }
+
+            @Override
+            public void visitEnd()
+            {
+                mark();
+                for (MethodNode method : classNode.methods)
+                {
+                    if (!(method instanceof CopiedMethod))
+                    {
+                        method.accept(cv);
+                    }
+                }
+                super.visitEnd();
+            }
+        }, 0);
         byte[] bytes = cw.toByteArray();
+        if (continuationClassListener != null)
+        {
+            generatedClasses.forEach(continuationClassListener);
+        }
         // for development use: new ClassReader(bytes).accept(new TraceClassVisitor(new PrintWriter(System.out)), ClassReader.EXPAND_FRAMES);
         // for development use: DevDebug.debugSaveTrace(classNode.name + ".3", classNode);
         // for development use: DevDebug.debugSave(classNode, bytes);
@@ -364,32 +613,27 @@ public class Transformer implements ClassFileTransformer
         {
             return true;
         }
-        URL resource = classLoader.getResource(internalName + ".class");
-
-        Boolean aBoolean;
-        synchronized (futureMap)
-        {
-            aBoolean = futureMap.get(resource);
-        }
-        if (aBoolean != null)
+        if (internalName == null)
         {
-            return aBoolean;
+            return false;
         }
-        aBoolean = isCompletionStage(classLoader, classLoader.getResourceAsStream(internalName + ".class"));
-        synchronized (classLoaderMap)
+        if (hierarchyIndex != null)
         {
-            Set<URL> urls = classLoaderMap.get(classLoader);
-            if (urls == null)
+            final Boolean indexed = hierarchyIndex.isCompletableFuture(internalName);
+            if (indexed != null)
             {
-                // class loader hold the references to the urls
-                classLoaderMap.put(classLoader, urls = new HashSet<>());
+                return indexed;
             }
-            urls.add(resource);
         }
-        synchronized (futureMap)
+        Boolean aBoolean = hierarchyCache.get(classLoader, internalName);
+        if (aBoolean != null)
         {
-            futureMap.put(resource, aBoolean);
+            return aBoolean;
         }
+        // not computed inside the cache, the super classes are checked recursively
+        final ClassLoader loader = classLoader != null ? classLoader : ClassLoader.getSystemClassLoader();
+        aBoolean = isCompletionStage(classLoader, loader.getResourceAsStream(internalName + ".class"));
+        hierarchyCache.put(classLoader, internalName, aBoolean);
         return aBoolean;
     }
 
@@ -400,9 +644,9 @@ public class Transformer implements ClassFileTransformer
             return false;
         }
 
-        try
+        try (InputStream in = resource)
         {
-            return isCompletionStage(classLoader, new ClassReader(resource).getSuperName());
+            return isCompletionStage(classLoader, new ClassReader(in).getSuperName());
         }
         catch (IOException e)
         {
@@ -410,14 +654,38 @@ public class Transformer implements ClassFileTransformer
         }
     }
 
-    private void transformAsyncMethod(final ClassNode classNode, final MethodNode original, final Map<String, Integer> nameUseCount) throws AnalyzerException
+    /**
+     * Sets the index used to find the return types that are <code>CompletableFuture</code> subclasses.
+     * Types that aren't in the index are read through the class loader.
+     *
+     * @param hierarchyIndex the index of the class path, or null
+     */
+    public void setHierarchyIndex(final TypeHierarchyIndex hierarchyIndex)
+    {
+        this.hierarchyIndex = hierarchyIndex;
+    }
+
+    public TypeHierarchyIndex getHierarchyIndex()
+    {
+        return hierarchyIndex;
+    }
+
+    /**
+     * @return the cache of the types checked for being <code>CompletionStage</code> subclasses, and its statistics
+     */
+    public static HierarchyCache getHierarchyCache()
+    {
+        return hierarchyCache;
+    }
+
+    private void transformAsyncMethod(final ClassNode classNode, final MethodNode original, final Map<String, Integer> nameUseCount,
+                                      final Map<String, byte[]> generatedClasses) throws AnalyzerException
     {
         final List<SwitchEntry> switchEntries = new ArrayList<>();
         SwitchEntry entryPoint;
         List<Argument> arguments = new ArrayList<>();
         final List<Label> switchLabels = new ArrayList<>();
-        Analyzer analyzer = new FrameAnalyzer();
-        Frame[] frames = analyzer.analyze(classNode.name, original);
+        Frame[] frames = analyzeFrames(classNode, original);
 
         entryPoint = new SwitchEntry(0, (FrameAnalyzer.ExtendedFrame) frames[0], 0);
         switchLabels.add(entryPoint.resumeLabel);
@@ -430,6 +698,7 @@ public class Transformer implements ClassFileTransformer
             if ((o instanceof MethodInsnNode && isAwaitCall((MethodInsnNode) o)))
             {
                 SwitchEntry se = new SwitchEntry(++count, (FrameAnalyzer.ExtendedFrame) frames[ii], ii);
+                se.tail = isTailAwait(original, (MethodInsnNode) o, se);
                 switchLabels.add(se.resumeLabel);
                 switchEntries.add(se);
             }
@@ -446,8 +715,22 @@ public class Transformer implements ClassFileTransformer
         //       - as an int array: int[parameter_index] = local_index
         int newMaxLocals = 0;
         Set<AbstractInsnNode> uninitializedObjects = new HashSet<>();
-        for (SwitchEntry se : switchEntries)
+        // only the locals that are read after the await need to be saved
+        final BitSet[] liveLocals = LivenessAnalyzer.analyze(original);
+        // compact methods enter the continued method through the entry point, saving the method arguments
+        final List<SwitchEntry> savePoints = new ArrayList<>();
+        if (compact)
+        {
+            savePoints.add(entryPoint);
+        }
+        savePoints.addAll(switchEntries);
+        for (SwitchEntry se : savePoints)
         {
+            if (se.tail)
+            {
+                // nothing is saved, tail awaits never suspend
+                continue;
+            }
             // clear the used state
             arguments.forEach(new Consumer<Argument>()
             {
@@ -486,7 +769,8 @@ public class Transformer implements ClassFileTransformer
             for (int iLocal = 0; iLocal < se.frame.getLocals(); iLocal += valueSize(se.frame.getLocal(iLocal)))
             {
                 final BasicValue value = se.frame.getLocal(iLocal);
-                if (value != null && !isUninitialized(value) && value.getType() != null)
+                if (value != null && !isUninitialized(value) && value.getType() != null
+                        && isLive(original, se, liveLocals, iLocal))
                 {
                     mapLocalToLambdaArgument(original, se, arguments, iLocal, value);
                 }
@@ -524,6 +808,23 @@ public class Transformer implements ClassFileTransformer
         }
         original.maxLocals = Math.max(original.maxLocals, newMaxLocals);
 
+        final boolean staticSynchronized = ((original.access & ACC_SYNCHRONIZED) != 0 && (original.access & ACC_STATIC) != 0);
+        final boolean instanceSynchronized = ((original.access & ACC_SYNCHRONIZED) != 0 && (original.access & ACC_STATIC) == 0);
+
+        // the lock of synchronized instance methods is held by "this" which is
+        // the first argument of the continuation method, so those keep using lambdas.
+        HeapFrame heapFrame = null;
+        if (heapFrames && !instanceSynchronized)
+        {
+            int objects = 0;
+            int primitives = 0;
+            for (Argument a : arguments)
+            {
+                a.heapSlot = isReference(a.value) ? objects++ : primitives++;
+            }
+            heapFrame = new HeapFrame(Math.max(1, original.maxLocals), objects, primitives);
+        }
+
         arguments.forEach(new Consumer<Argument>()
         {
             @Override
@@ -573,31 +874,65 @@ public class Transformer implements ClassFileTransformer
         final MethodNode replacement = new MethodNode(original.access,
                 original.name, original.desc, original.signature, (String[]) original.exceptions.toArray(new String[original.exceptions.size()]));
 
-        final boolean staticSynchronized = ((original.access & ACC_SYNCHRONIZED) != 0 && (original.access & ACC_STATIC) != 0);
-        final boolean instanceSynchronized = ((original.access & ACC_SYNCHRONIZED) != 0 && (original.access & ACC_STATIC) == 0);
-        final MethodNode continued = new MethodNode(Opcodes.ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC | (staticSynchronized ? ACC_SYNCHRONIZED : 0),
-                original.name, original.desc, original.signature, (String[]) original.exceptions.toArray(new String[original.exceptions.size()]));
-
-        String continuedName = "async$" + original.name;
-        Integer countUses = nameUseCount.get(continuedName);
-        nameUseCount.put(continuedName, countUses == null ? 1 : countUses + 1);
+        final String asyncName = "async$" + original.name;
+        Integer countUses = nameUseCount.get(asyncName);
+        nameUseCount.put(asyncName, countUses == null ? 1 : countUses + 1);
 
-        continued.name = (countUses == null) ? continuedName : (continuedName + "$" + countUses);
-        continued.desc = Type.getMethodDescriptor(COMPLETABLE_FUTURE_TYPE, typeArguments);
-        continued.signature = null;
+        final String continuedName = (countUses == null) ? asyncName : (asyncName + "$" + countUses);
+        final String continuedDesc = heapFrame != null ? CONTINUATION_METHOD_DESC : Type.getMethodDescriptor(COMPLETABLE_FUTURE_TYPE, typeArguments);
         final boolean isInterface = (classNode.access & ACC_INTERFACE) == ACC_INTERFACE;
-        final Handle handle = new Handle(Opcodes.H_INVOKESTATIC, classNode.name, continued.name, continued.desc, isInterface);
+        final Handle handle = new Handle(Opcodes.H_INVOKESTATIC, classNode.name, continuedName, continuedDesc, isInterface);
+        // interfaces can't have package private methods to be called by a continuation class
+        final String continuationClass = heapFrame != null && continuationClassListener != null && !isInterface
+                ? classNode.name + "$" + continuedName : null;
+        if (continuationClass != null)
+        {
+            generatedClasses.put(continuationClass, generateContinuationClass(continuationClass, handle, nonCompFutReturnType(original)));
+        }
 
         final boolean nonCompFutReturn = !original.desc.endsWith(COMPLETABLE_FUTURE_RET) && !original.desc.endsWith(COMPLETION_STAGE_RET);
+        final HeapFrame finalHeapFrame = heapFrame;
+
+        // the suspension code of the replacement method is outlined to keep its synchronous path small
+        final Type[] suspendArguments = Arrays.copyOf(typeArguments, typeArguments.length);
+        suspendArguments[suspendArguments.length - 1] = COMPLETION_STAGE_TYPE;
+        final Handle suspend = new Handle(Opcodes.H_INVOKESTATIC, classNode.name,
+                "suspend$" + continuedName.substring("async$".length()),
+                Type.getMethodDescriptor(Type.getReturnType(original.desc), suspendArguments), isInterface);
+        if (!compact && switchEntries.stream().anyMatch(se -> !se.tail))
+        {
+            generateSuspend(classNode, original, suspend, handle, continuationClass, lambdaDesc, arguments, nonCompFutReturn, heapFrame);
+        }
+        // continued methods above the size limit also outline their suspension code
+        final Handle continuedSuspend = new Handle(Opcodes.H_INVOKESTATIC, classNode.name,
+                suspend.getName() + "$continued",
+                heapFrame != null
+                        ? "(" + CONTINUATION_DESCRIPTOR + suspend.getDesc().substring(1, suspend.getDesc().indexOf(')')) + ")V"
+                        : Type.getMethodDescriptor(COMPLETABLE_FUTURE_TYPE, suspendArguments),
+                isInterface);
+        // with heap frames the straight-line code between awaits can also be moved to segment methods,
+        // they suspend through this method or continue in the next segment if the future is done
+        final Handle segmentSuspend = new Handle(Opcodes.H_INVOKESTATIC, classNode.name,
+                suspend.getName() + "$segment",
+                continuedSuspend.getDesc().substring(0, continuedSuspend.getDesc().length() - 1) + "Z",
+                isInterface);
 
         // embedding this class here because it has so many captured vars
         class MyMethodVisitor extends MethodVisitor
         {
             int awaitIndex;
+            final boolean isContinued;
+            // the method that suspends the invocation, or null to suspend inline
+            final Handle suspendMethod;
+            // the generated method, mv is null while the code moved to a segment method is dropped
+            final MethodNode target;
 
-            public MyMethodVisitor(final MethodNode mv)
+            public MyMethodVisitor(final MethodNode mv, final Handle suspendMethod)
             {
                 super(Opcodes.ASM5, mv);
+                this.isContinued = mv != replacement;
+                this.suspendMethod = suspendMethod;
+                this.target = mv;
             }
 
             @Override
@@ -605,8 +940,40 @@ public class Transformer implements ClassFileTransformer
             {
                 if (isAwaitCall(opcode, owner, name, desc))
                 {
-                    // passing 'this' here could create problems if the transformAwait starts adding calls to Await.await()
-                    transformAwait(classNode, original, this, switchEntries.get(awaitIndex++), lambdaDesc, arguments, mv == continued, nonCompFutReturn, handle);
+                    final SwitchEntry se = switchEntries.get(awaitIndex++);
+                    if (mv == null)
+                    {
+                        // end of a segment, this await is only reached from the segment method.
+                        // code: futureIsDoneLabel: future.join();
+                        mv = target;
+                        if (se.segment == null)
+                        {
+                            // the resume code jumps here
+                            mv.visitLabel(se.futureIsDoneLabel);
+                            fullFrame(this, se.frame, null);
+                            if (!checkType(se.frame, COMPLETABLE_FUTURE_TYPE))
+                            {
+                                mv.visitMethodInsn(INVOKEINTERFACE, COMPLETION_STAGE_NAME, "toCompletableFuture", "()Ljava/util/concurrent/CompletableFuture;", true);
+                            }
+                            mv.visitMethodInsn(INVOKEVIRTUAL, COMPLETABLE_FUTURE_NAME, JOIN_METHOD_NAME, JOIN_METHOD_DESC, false);
+                        }
+                        else
+                        {
+                            // and the start of the next one
+                            mv = null;
+                        }
+                    }
+                    else if (isContinued && se.segment != null)
+                    {
+                        // the code up to the next await or return is in the segment method, it's dropped from this method
+                        continueInSegment(target, se, arguments, finalHeapFrame, segmentSuspend, se.segment);
+                        mv = null;
+                    }
+                    else
+                    {
+                        // passing 'this' here could create problems if the transformAwait starts adding calls to Await.await()
+                        transformAwait(classNode, original, this, se, lambdaDesc, arguments, isContinued, nonCompFutReturn, handle, finalHeapFrame, suspendMethod);
+                    }
                 }
                 else if (isAwaitInitCall(opcode, owner, name, desc))
                 {
@@ -622,14 +989,47 @@ public class Transformer implements ClassFileTransformer
             @Override
             public void visitFrame(final int type, final int nLocal, final Object[] local, final int nStack, final Object[] stack)
             {
+                if (isContinued && finalHeapFrame != null && (type == F_NEW || type == F_FULL))
+                {
+                    // the continuation object is kept in a local variable through the whole continuation method
+                    final Object[] heapLocals = finalHeapFrame.frameLocals(nLocal, local);
+                    super.visitFrame(F_FULL, heapLocals.length, heapLocals, nStack, stack);
+                    return;
+                }
                 // the use of EXPAND_FRAMES adds F_NEW which creates problems if not removed.
                 super.visitFrame((type == F_NEW) ? F_FULL : type, nLocal, local, nStack, stack);
             }
 
+            @Override
+            public void visitLabel(final Label label)
+            {
+                // the labels of the dropped code are kept, the debug information refers to them
+                target.visitLabel(label);
+            }
+
             @Override
             public void visitInsn(final int opcode)
             {
-                if (opcode == ARETURN && mv == continued && instanceSynchronized)
+                if (mv == null)
+                {
+                    if (opcode == ARETURN)
+                    {
+                        // end of a segment
+                        mv = target;
+                    }
+                    return;
+                }
+                if (opcode == ARETURN && isContinued && finalHeapFrame != null)
+                {
+                    // code: continuation.complete(returnValue);
+                    // code: return;
+                    mv.visitVarInsn(ALOAD, finalHeapFrame.local);
+                    mv.visitInsn(SWAP);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, Continuation.NAME, "complete", "(Ljava/util/concurrent/CompletionStage;)V", false);
+                    super.visitInsn(RETURN);
+                    return;
+                }
+                if (opcode == ARETURN && isContinued && instanceSynchronized)
                 {
                     mv.visitVarInsn(ALOAD, 0);
                     mv.visitInsn(MONITOREXIT);
@@ -637,87 +1037,220 @@ public class Transformer implements ClassFileTransformer
                 super.visitInsn(opcode);
             }
         }
-        original.accept(new MyMethodVisitor(replacement));
-
+        if (compact)
+        {
+            generateCompactEntry(classNode, original, replacement, entryPoint, handle, continuationClass, arguments, nonCompFutReturn, heapFrame);
+        }
+        else
+        {
+            original.accept(new MyMethodVisitor(replacement, suspend));
+        }
 
-        // if instanceSynchronized all exit paths must release the lock on "this"
-        // the exception path is easy, a global exception handler can do it.
-        // the return path demands a release before each return
 
-        Label thisMonitorStart = null;
-        Label thisMonitorEnd = null;
-        if (instanceSynchronized)
+        // methods above the size limit are not compiled by the jit,
+        // the continued method is generated again with its suspension code outlined if it gets too large,
+        // and with heap frames, once more with the straight-line code between awaits moved to segment methods.
+        MethodNode continued;
+        int continuedSize;
+        boolean outline = false;
+        boolean split = false;
+        while (true)
         {
-            // "this" must be in the first argument
-            thisMonitorStart = new Label();
-            thisMonitorEnd = new Label();
-            continued.visitVarInsn(ALOAD, 0);
-            continued.visitInsn(MONITORENTER);
-            continued.visitLabel(thisMonitorStart);
-            continued.visitTryCatchBlock(thisMonitorStart, thisMonitorEnd, thisMonitorEnd, null);
-        }
+            continued = new MethodNode((continuationClass != null ? 0 : ACC_PRIVATE) | ACC_STATIC | ACC_SYNTHETIC | (staticSynchronized ? ACC_SYNCHRONIZED : 0),
+                    continuedName, continuedDesc, null, (String[]) original.exceptions.toArray(new String[original.exceptions.size()]));
 
-        // get pos
-        continued.visitVarInsn(ILOAD, stateArgument.iArgumentLocal);
+            // if instanceSynchronized all exit paths must release the lock on "this"
+            // the exception path is easy, a global exception handler can do it.
+            // the return path demands a release before each return
 
-        final Label defaultLabel = new Label();
-        continued.visitTableSwitchInsn(0, switchLabels.size() - 1, defaultLabel, switchLabels.toArray(new Label[switchLabels.size()]));
+            Label thisMonitorStart = null;
+            Label thisMonitorEnd = null;
+            if (instanceSynchronized)
+            {
+                // "this" must be in the first argument
+                thisMonitorStart = new Label();
+                thisMonitorEnd = new Label();
+                continued.visitVarInsn(ALOAD, 0);
+                continued.visitInsn(MONITORENTER);
+                continued.visitLabel(thisMonitorStart);
+                continued.visitTryCatchBlock(thisMonitorStart, thisMonitorEnd, thisMonitorEnd, null);
+            }
+
+            final Label defaultLabel = new Label();
+            final Object[] resumeFrame;
+            if (heapFrame != null)
+            {
+                resumeFrame = heapFrame.frameLocals(1, new Object[]{ Continuation.NAME });
+                // get pos
+                continued.visitVarInsn(ALOAD, 0);
+                continued.visitVarInsn(ASTORE, heapFrame.local);
+                continued.visitVarInsn(ALOAD, heapFrame.local);
+                continued.visitFieldInsn(GETFIELD, Continuation.NAME, "state", "I");
+            }
+            else
+            {
+                resumeFrame = defaultFrame;
+                // get pos
+                continued.visitVarInsn(ILOAD, stateArgument.iArgumentLocal);
+            }
+            if (compact)
+            {
+                // the compact entry starts the continued method at the original entry point
+                continued.visitTableSwitchInsn(0, switchLabels.size() - 1, defaultLabel, switchLabels.toArray(new Label[switchLabels.size()]));
+                continued.visitLabel(entryPoint.futureIsDoneLabel);
+            }
+            else
+            {
+                // the continuation never resumes from the original entry point
+                // and the arguments of the original method might not be among the continuation arguments.
+                final List<Label> resumeLabels = switchLabels.subList(1, switchLabels.size());
+                continued.visitTableSwitchInsn(1, switchLabels.size() - 1, defaultLabel, resumeLabels.toArray(new Label[resumeLabels.size()]));
 
-        // original entry point
-        continued.visitLabel(entryPoint.resumeLabel);
-        continued.visitFrame(F_FULL, defaultFrame.length, defaultFrame, 0, new Object[0]);
-        restoreStackAndLocals(classNode, original, continued, entryPoint, arguments);
+                // original entry point, only reachable through the resume points
+                continued.visitLabel(entryPoint.resumeLabel);
+            }
+            if (!startsWithFrame(original))
+            {
+                fullFrame(continued, entryPoint.frame, heapFrame);
+            }
 
-        original.accept(new MyMethodVisitor(continued));
+            original.accept(new MyMethodVisitor(continued, outline ? continuedSuspend : null));
 
 
-        // add switch entries for the continuation state machine
-        Label lastRestorePoint = null;
-        for (SwitchEntry se : switchEntries)
-        {
-            // code: resumeLabel:
-            continued.visitLabel(se.resumeLabel);
-            continued.visitFrame(F_FULL, defaultFrame.length, defaultFrame, 0, new Object[0]);
+            // add switch entries for the continuation state machine
+            Label lastRestorePoint = null;
+            for (SwitchEntry se : savePoints)
+            {
+                if (se.tail)
+                {
+                    continue;
+                }
+                // code: resumeLabel:
+                continued.visitLabel(se.resumeLabel);
+                continued.visitFrame(F_FULL, resumeFrame.length, resumeFrame, 0, new Object[0]);
+                if (se.segment != null)
+                {
+                    // code:    async$method$segment(continuation); return;
+                    continued.visitVarInsn(ALOAD, heapFrame.local);
+                    continued.visitMethodInsn(INVOKESTATIC, se.segment.getOwner(), se.segment.getName(), se.segment.getDesc(), se.segment.isInterface());
+                    continued.visitInsn(RETURN);
+                    continue;
+                }
+
+                // code:    restoreStack;
+                // code:    restoreLocals;
+                if (heapFrame != null)
+                {
+                    restoreHeapFrame(classNode, original, continued, se, arguments, heapFrame);
+                }
+                else
+                {
+                    restoreStackAndLocals(classNode, original, continued, se, arguments);
+                }
+                if (!Modifier.isStatic(original.access))
+                {
+                    if (lastRestorePoint != null)
+                    {
+                        continued.visitLocalVariable(_THIS, "L" + classNode.name + ";", null, lastRestorePoint, se.resumeLabel, 0);
+                    }
+                    lastRestorePoint = new Label();
+                    continued.visitLabel(lastRestorePoint);
+                }
+                continued.visitJumpInsn(GOTO, se.futureIsDoneLabel);
+            }
 
-            // code:    restoreStack;
-            // code:    restoreLocals;
-            restoreStackAndLocals(classNode, original, continued, se, arguments);
+            // last switch case, tail awaits never resume
+            for (SwitchEntry se : switchEntries)
+            {
+                if (se.tail)
+                {
+                    continued.visitLabel(se.resumeLabel);
+                }
+            }
+            continued.visitLabel(defaultLabel);
+            continued.visitFrame(F_FULL, resumeFrame.length, resumeFrame, 0, new Object[0]);
+            continued.visitTypeInsn(NEW, "java/lang/IllegalArgumentException");
+            continued.visitInsn(DUP);
+            continued.visitMethodInsn(INVOKESPECIAL, "java/lang/IllegalArgumentException", "<init>", "()V", false);
+            continued.visitInsn(ATHROW);
             if (!Modifier.isStatic(original.access))
             {
                 if (lastRestorePoint != null)
                 {
-                    continued.visitLocalVariable(_THIS, "L" + classNode.name + ";", null, lastRestorePoint, se.resumeLabel, 0);
+                    Label endLabel = new Label();
+                    continued.visitLabel(endLabel);
+                    continued.visitLocalVariable(_THIS, "L" + classNode.name + ";", null, lastRestorePoint, endLabel, 0);
                 }
-                lastRestorePoint = new Label();
-                continued.visitLabel(lastRestorePoint);
             }
-            continued.visitJumpInsn(GOTO, se.futureIsDoneLabel);
-        }
+            if (instanceSynchronized)
+            {
+                // "this" must be in the first argument
+                continued.visitLabel(thisMonitorEnd);
+                continued.visitFrame(F_FULL, 1, new Object[]{ classNode.name }, 1, new Object[]{ Type.getType(Throwable.class).getInternalName() });
+                continued.visitVarInsn(ALOAD, 0);
+                continued.visitInsn(MONITOREXIT);
+                continued.visitInsn(ATHROW);
+            }
 
-        // last switch case
-        continued.visitLabel(defaultLabel);
-        continued.visitFrame(F_FULL, defaultFrame.length, defaultFrame, 0, new Object[0]);
-        continued.visitTypeInsn(NEW, "java/lang/IllegalArgumentException");
-        continued.visitInsn(DUP);
-        continued.visitMethodInsn(INVOKESPECIAL, "java/lang/IllegalArgumentException", "<init>", "()V", false);
-        continued.visitInsn(ATHROW);
-        if (!Modifier.isStatic(original.access))
-        {
-            if (lastRestorePoint != null)
+            continued.maxLocals = Math.max(16, continued.maxLocals + 16);
+            continued.maxStack = Math.max(16, continued.maxStack + 16);
+            continuedSize = codeSize(continued);
+            if (split || continuedSize <= methodSizeLimit || switchEntries.stream().allMatch(se -> se.tail))
+            {
+                break;
+            }
+            if (!outline)
+            {
+                outline = true;
+                if (heapFrame != null)
+                {
+                    generateContinuedSuspend(classNode, continuedSuspend, arguments, false);
+                }
+                else
+                {
+                    generateSuspend(classNode, original, continuedSuspend, handle, null, lambdaDesc, arguments, false, null);
+                }
+            }
+            else if (heapFrame != null && findSegments(original, switchEntries))
+            {
+                // the live values are already saved in the continuation at each await,
+                // the segment methods restore them like the resume code does.
+                split = true;
+                generateContinuedSuspend(classNode, segmentSuspend, arguments, true);
+                for (SwitchEntry se : switchEntries)
+                {
+                    if (se.segmentStart != null)
+                    {
+                        se.segment = new Handle(Opcodes.H_INVOKESTATIC, classNode.name, continuedName + "$segment" + se.key, CONTINUATION_METHOD_DESC, isInterface);
+                    }
+                }
+                for (int i = 0; i < switchEntries.size(); i++)
+                {
+                    final SwitchEntry se = switchEntries.get(i);
+                    if (se.segment != null)
+                    {
+                        generateSegment(classNode, original, se, i + 1 < switchEntries.size() ? switchEntries.get(i + 1) : null,
+                                arguments, heapFrame, handle, segmentSuspend);
+                    }
+                }
+            }
+            else
+            {
+                break;
+            }
+            // the labels are bound to the nodes of the discarded method
+            entryPoint.resumeLabel.info = null;
+            entryPoint.futureIsDoneLabel.info = null;
+            for (SwitchEntry se : switchEntries)
             {
-                Label endLabel = new Label();
-                continued.visitLabel(endLabel);
-                continued.visitLocalVariable(_THIS, "L" + classNode.name + ";", null, lastRestorePoint, endLabel, 0);
+                se.resumeLabel.info = null;
+                se.futureIsDoneLabel.info = null;
             }
         }
-        if (instanceSynchronized)
+        if (continuedSize > methodSizeLimit)
         {
-            // "this" must be in the first argument
-            continued.visitLabel(thisMonitorEnd);
-            continued.visitFrame(F_FULL, 1, new Object[]{ classNode.name }, 1, new Object[]{ Type.getType(Throwable.class).getInternalName() });
-            continued.visitVarInsn(ALOAD, 0);
-            continued.visitInsn(MONITOREXIT);
-            continued.visitInsn(ATHROW);
+            notifyError("%s.%s: the continuation method has %d bytes, it's above the method size limit and might not be compiled by the jit, split it into smaller methods",
+                    classNode.name.replace('/', '.'), original.name, continuedSize);
         }
 
         // removing original method
@@ -727,8 +1260,6 @@ public class Transformer implements ClassFileTransformer
         replacement.accept(classNode);
 
 
-        continued.maxLocals = Math.max(16, continued.maxLocals + 16);
-        continued.maxStack = Math.max(16, continued.maxStack + 16);
         // adding the continuation method
         continued.accept(classNode);
 
@@ -740,6 +1271,29 @@ public class Transformer implements ClassFileTransformer
         //System.out.println(in);
     }
 
+    private boolean isLive(final MethodNode original, final SwitchEntry se, final BitSet[] liveLocals, final int iLocal)
+    {
+        if (liveLocals == null)
+        {
+            return true;
+        }
+        if (iLocal == 0 && (original.access & ACC_STATIC) == 0)
+        {
+            // "this" is always kept, synchronized methods and the debug information depend on it.
+            return true;
+        }
+        final BasicValue value = se.frame.getLocal(iLocal);
+        for (BasicValue monitor : se.frame.monitors)
+        {
+            if (monitor == value)
+            {
+                // the monitors are released and reacquired through the locals that hold them
+                return true;
+            }
+        }
+        return liveLocals[se.index].get(iLocal);
+    }
+
     private Argument mapLocalToLambdaArgument(final MethodNode originalMethod, SwitchEntry se, final List<Argument> arguments, final int local, final BasicValue value)
     {
         if (ACONST_NULL_TYPE.equals(value.getType()))
@@ -823,8 +1377,30 @@ public class Transformer implements ClassFileTransformer
         return local == null ? 1 : local.getSize();
     }
 
-    // replacing only the initialization of objects that are uninitialized at the moment of an await call.
-    void replaceObjectInitialization(
+    /**
+     * Computes the frames used by the instrumentation: at the start of the method, at each await call
+     * and at each constructor call. They are computed from the stack map frames when possible,
+     * falling back to the full analysis.
+     */
+    private Frame[] analyzeFrames(final ClassNode classNode, final MethodNode original) throws AnalyzerException
+    {
+        final BitSet targets = new BitSet();
+        targets.set(0);
+        int index = 0;
+        for (AbstractInsnNode insn = original.instructions.getFirst(); insn != null; insn = insn.getNext(), index++)
+        {
+            if (insn instanceof MethodInsnNode
+                    && (isAwaitCall((MethodInsnNode) insn) || ((MethodInsnNode) insn).name.equals("<init>")))
+            {
+                targets.set(index);
+            }
+        }
+        final Frame[] frames = FrameAnalyzer.analyzeFromStackMaps(classNode.name, original, targets);
+        return frames != null ? frames : new FrameAnalyzer().analyze(classNode.name, original);
+    }
+
+    // replacing only the initialization of objects that are uninitialized at the moment of an await call.
+    void replaceObjectInitialization(
             final MethodNode methodNode,
             final Frame<BasicValue>[] frames,
             final Set<AbstractInsnNode> objectCreationNodes)
@@ -1043,6 +1619,7 @@ public class Transformer implements ClassFileTransformer
      * @param mv          the method node whose instructions are being modified
      * @param lambdaDesc
      * @param isContinued if this is the continuation method
+     * @param suspend     the method that suspends the invocation, or null to suspend inline
      * @param handle      @return a list of switch entries to finish the continuation state machine
      */
     private void transformAwait(
@@ -1054,7 +1631,9 @@ public class Transformer implements ClassFileTransformer
             final List<Argument> lambdaArguments,
             final boolean isContinued,
             final boolean nonCompFutReturn,
-            final Handle handle)
+            final Handle handle,
+            final HeapFrame heapFrame,
+            final Handle suspend)
     {
 
 
@@ -1093,6 +1672,21 @@ public class Transformer implements ClassFileTransformer
         // code: jump futureIsDoneLabel:
         mv.visitJumpInsn(IFNE, futureIsDoneLabel);
 
+        if (switchEntry.tail)
+        {
+            // code:    return future;
+            returnTailAwait(classNode, original, mv, switchEntry, isContinued, heapFrame, needsConversion);
+            // code: futureIsDone:
+            mv.visitLabel(futureIsDoneLabel);
+            fullFrame(mv, switchEntry.frame, null);
+            if (needsConversion)
+            {
+                mv.visitMethodInsn(INVOKEINTERFACE, COMPLETION_STAGE_NAME, "toCompletableFuture", "()Ljava/util/concurrent/CompletableFuture;", true);
+            }
+            mv.visitMethodInsn(INVOKEVIRTUAL, COMPLETABLE_FUTURE_NAME, JOIN_METHOD_NAME, JOIN_METHOD_DESC, false);
+            return;
+        }
+
         // code:    saveStack to new state
         // code:    push the future
         // code:    push all lambda parameters
@@ -1102,6 +1696,46 @@ public class Transformer implements ClassFileTransformer
         // stack: { ... future }
         saveStack(mv, switchEntry);
         // stack: { }
+        if (suspend != null)
+        {
+            // code:    return suspend$method(...arguments..., state, future);
+            // or in continued methods with heap frames:
+            // code:    suspend$method$continued(continuation, ...arguments..., state, future); return;
+            final boolean reusesContinuation = isContinued && heapFrame != null;
+            if (reusesContinuation)
+            {
+                mv.visitVarInsn(ALOAD, heapFrame.local);
+            }
+            pushArguments(mv, switchEntry, lambdaArguments);
+            mv.visitIntInsn(SIPUSH, switchEntry.key);
+            mv.visitVarInsn(ALOAD, switchEntry.stackToNewLocal[switchEntry.frame.getStackSize() - 1]);
+            mv.visitMethodInsn(INVOKESTATIC, suspend.getOwner(), suspend.getName(), suspend.getDesc(), suspend.isInterface());
+            releaseMonitors(classNode, original, mv, switchEntry);
+            mv.visitInsn(reusesContinuation ? RETURN : ARETURN);
+            mv.visitLabel(futureIsDoneLabel);
+            fullFrame(mv, switchEntry.frame, null);
+            if (needsConversion)
+            {
+                mv.visitMethodInsn(INVOKEINTERFACE, COMPLETION_STAGE_NAME, "toCompletableFuture", "()Ljava/util/concurrent/CompletableFuture;", true);
+            }
+            mv.visitMethodInsn(INVOKEVIRTUAL, COMPLETABLE_FUTURE_NAME, JOIN_METHOD_NAME, JOIN_METHOD_DESC, false);
+            return;
+        }
+        if (heapFrame != null)
+        {
+            suspendToHeapFrame(mv, switchEntry, lambdaArguments, heapFrame);
+            releaseMonitors(classNode, original, mv, switchEntry);
+            mv.visitInsn(RETURN);
+            mv.visitLabel(futureIsDoneLabel);
+            // the continued method visitor adds the continuation local to the frame
+            fullFrame(mv, switchEntry.frame, null);
+            if (needsConversion)
+            {
+                mv.visitMethodInsn(INVOKEINTERFACE, COMPLETION_STAGE_NAME, "toCompletableFuture", "()Ljava/util/concurrent/CompletableFuture;", true);
+            }
+            mv.visitMethodInsn(INVOKEVIRTUAL, COMPLETABLE_FUTURE_NAME, JOIN_METHOD_NAME, JOIN_METHOD_DESC, false);
+            return;
+        }
         mv.visitVarInsn(ALOAD, switchEntry.stackToNewLocal[switchEntry.frame.getStackSize() - 1]);
         // stack: { future  }
         mv.visitMethodInsn(INVOKESTATIC, Type.getType(Function.class).getInternalName(), "identity", "()Ljava/util/function/Function;", true);
@@ -1146,59 +1780,14 @@ public class Transformer implements ClassFileTransformer
             mv.visitMethodInsn(INVOKEINTERFACE, COMPLETION_STAGE_NAME, "toCompletableFuture", "()Ljava/util/concurrent/CompletableFuture;", true);
         }
         // stack: { new_future_02 }
-        if (!isContinued && nonCompFutReturn)
-        {
-            // since this is not the continued method (!isContinued)
-            // we need to return a Future of the same type the method returns.
-            // the simplest way is to call a void constructor for that class and connect it using whenComplete
-            final String retType = Type.getReturnType(original.desc).getInternalName();
-            final String castFunction = "lambda$checkCast$" + retType.replace('/', '_');
-            generateCheckCast(classNode, castFunction, retType);
-            final boolean isInterface = (classNode.access & ACC_INTERFACE) == ACC_INTERFACE;
-            mv.visitMethodInsn(INVOKESTATIC, classNode.name, castFunction, "(Ljava/util/concurrent/CompletionStage;)L" + retType + ";", isInterface);
-            mv.visitTypeInsn(CHECKCAST, retType);
-
-
-            // Old approach for orbit tasks
-            //            mv.visitMethodInsn(INVOKESTATIC,
-            //                    TASK_NAME, "from",
-            //                    Type.getMethodDescriptor(TASK_TYPE, COMPLETION_STAGE_TYPE),
-            //                    false);
-        }
         // release monitors
-        if (switchEntry.frame.monitors.length > 0)
-
-        {
-            for (int i = switchEntry.frame.monitors.length; --i >= 0; )
-            {
-                final BasicValue monitorValue = switchEntry.frame.monitors[i];
-                int monitorLocal = -1;
-                for (int iLocal = 0; iLocal < switchEntry.frame.getLocals(); iLocal += valueSize(switchEntry.frame.getLocal(iLocal)))
-                {
-                    if (switchEntry.frame.getLocal(iLocal) == monitorValue)
-                    {
-                        monitorLocal = iLocal;
-                        // don't break; prefer using the last one
-                    }
-                }
-                // only release if a local variable containing the monitor was found
-                if (monitorLocal != -1)
-                {
-                    mv.visitVarInsn(ALOAD, monitorLocal);
-                    mv.visitInsn(MONITOREXIT);
-                }
-                else
-                {
-                    notifyError("Error restoring monitors in synchronized method. monitorLocal=%d, at %s.%s", monitorLocal, classNode.name, original.name);
-                }
-            }
-        }
+        releaseMonitors(classNode, original, mv, switchEntry);
 
         mv.visitInsn(ARETURN);
         // code: futureIsDone:
         mv.visitLabel(futureIsDoneLabel);
 
-        fullFrame(mv, switchEntry.frame);
+        fullFrame(mv, switchEntry.frame, null);
 
         if (needsConversion)
         {
@@ -1209,210 +1798,1071 @@ public class Transformer implements ClassFileTransformer
         // end of instruction loop
     }
 
-    private boolean checkType(final FrameAnalyzer.ExtendedFrame frame, final Type type)
+    /**
+     * Checks if the result of the await is directly wrapped in a completed future and returned:
+     * <code>return CompletableFuture.completedFuture(await(future));</code>
+     * <p>
+     * In that case, if the future is not done, the method can return it instead of suspending.
+     * Awaits inside try blocks or holding monitors are never tail awaits,
+     * nor are those with other values in the stack.
+     */
+    private boolean isTailAwait(final MethodNode original, final MethodInsnNode awaitInsn, final SwitchEntry se)
     {
-        if (frame != null)
+        if (se.frame == null || se.frame.getStackSize() != 1 || se.frame.monitors.length > 0)
         {
-            final BasicValue value = frame.getStack(frame.getStackSize() - 1);
-            if (value != null && value.getType() != null && type.equals(value.getType()))
+            return false;
+        }
+        final AbstractInsnNode wrap = nextInstruction(awaitInsn);
+        if (!(wrap instanceof MethodInsnNode) || wrap.getOpcode() != INVOKESTATIC)
+        {
+            return false;
+        }
+        final MethodInsnNode wrapInsn = (MethodInsnNode) wrap;
+        final String retType = Type.getReturnType(original.desc).getInternalName();
+        final boolean completedFuture = COMPLETABLE_FUTURE_NAME.equals(wrapInsn.owner)
+                && "completedFuture".equals(wrapInsn.name)
+                && ("(Ljava/lang/Object;)" + COMPLETABLE_FUTURE_DESCRIPTOR).equals(wrapInsn.desc);
+        // same convention for subclasses, i.e.: Task.fromValue(value)
+        final boolean fromValue = retType.equals(wrapInsn.owner)
+                && ("completedFuture".equals(wrapInsn.name) || "fromValue".equals(wrapInsn.name))
+                && ("(Ljava/lang/Object;)L" + retType + ";").equals(wrapInsn.desc);
+        if (!completedFuture && !fromValue)
+        {
+            return false;
+        }
+        final AbstractInsnNode ret = nextInstruction(wrap);
+        if (ret == null || ret.getOpcode() != ARETURN)
+        {
+            return false;
+        }
+        if (original.tryCatchBlocks != null)
+        {
+            for (TryCatchBlockNode tcb : original.tryCatchBlocks)
             {
-                return true;
+                if (original.instructions.indexOf(tcb.start) <= se.index && se.index < original.instructions.indexOf(tcb.end))
+                {
+                    return false;
+                }
             }
         }
-        return false;
+        return true;
     }
 
-    private void generateCheckCast(final ClassNode classNode, final String castFunction, final String retType)
+    /**
+     * Finds the awaits followed by straight-line code up to the next await or return,
+     * the code that can be moved to a segment method when the continued method is too large.
+     * <p>
+     * The code must not have branches, jump targets, try blocks or monitors, so it's only entered from the await.
+     * The values at both awaits are saved and restored like in any other suspension.
+     *
+     * @return true if any segment was found
+     */
+    private boolean findSegments(final MethodNode original, final List<SwitchEntry> switchEntries)
     {
-        for (MethodNode m : classNode.methods)
+        final Set<LabelNode> targets = new HashSet<>();
+        final List<MethodInsnNode> awaits = new ArrayList<>();
+        for (AbstractInsnNode insn = original.instructions.getFirst(); insn != null; insn = insn.getNext())
         {
-            if (m.name.equals(castFunction))
+            if (insn instanceof JumpInsnNode)
             {
-                return;
+                targets.add(((JumpInsnNode) insn).label);
             }
-        }
-        final MethodVisitor mv = classNode.visitMethod(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC, castFunction, "(Ljava/util/concurrent/CompletionStage;)L" + retType + ";", null, null);
-        {
-            mv.visitCode();
-            Label beginLabel = new Label();
-            Label elseLabel = new Label();
-            Label varLabel = new Label();
-            mv.visitLabel(beginLabel);
-            mv.visitVarInsn(ALOAD, 0);
-            mv.visitTypeInsn(INSTANCEOF, retType);
-            mv.visitJumpInsn(IFEQ, elseLabel);
+            else if (insn instanceof TableSwitchInsnNode)
             {
-                Label l2 = new Label();
-                mv.visitLabel(l2);
-                mv.visitVarInsn(ALOAD, 0);
-                mv.visitTypeInsn(CHECKCAST, retType);
-                mv.visitInsn(ARETURN);
+                targets.add(((TableSwitchInsnNode) insn).dflt);
+                targets.addAll(((TableSwitchInsnNode) insn).labels);
             }
-            mv.visitLabel(elseLabel);
+            else if (insn instanceof LookupSwitchInsnNode)
             {
-                mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
-                mv.visitTypeInsn(NEW, retType);
-                mv.visitInsn(DUP);
-                mv.visitMethodInsn(INVOKESPECIAL, retType, "<init>", "()V", false);
-                mv.visitVarInsn(ASTORE, 1);
-                mv.visitLabel(varLabel);
-                mv.visitVarInsn(ALOAD, 0);
-                mv.visitVarInsn(ALOAD, 1);
-                final String whenCompleteName = "lambda$cast$whenComplete";
-                mv.visitInvokeDynamicInsn("accept", "(Ljava/util/concurrent/CompletableFuture;)Ljava/util/function/BiConsumer;",
-                        METAFACTORY_HANDLE,
-                        Type.getType("(Ljava/lang/Object;Ljava/lang/Object;)V"),
-                        new Handle(Opcodes.H_INVOKESTATIC, classNode.name,
-                                whenCompleteName,
-                                "(Ljava/util/concurrent/CompletableFuture;Ljava/lang/Object;Ljava/lang/Throwable;)V"),
-                        Type.getType("(Ljava/lang/Object;Ljava/lang/Throwable;)V"));
-                generateWhenComplete(classNode, whenCompleteName);
-                mv.visitMethodInsn(INVOKEINTERFACE, "java/util/concurrent/CompletionStage", "whenComplete", "(Ljava/util/function/BiConsumer;)Ljava/util/concurrent/CompletionStage;", true);
-                mv.visitInsn(POP);
-                mv.visitVarInsn(ALOAD, 1);
-                mv.visitInsn(ARETURN);
-
+                targets.add(((LookupSwitchInsnNode) insn).dflt);
+                targets.addAll(((LookupSwitchInsnNode) insn).labels);
+            }
+            else if (insn instanceof MethodInsnNode && isAwaitCall((MethodInsnNode) insn))
+            {
+                awaits.add((MethodInsnNode) insn);
             }
-            Label endLabel = new Label();
-            mv.visitLabel(endLabel);
-            mv.visitLocalVariable("stage", "Ljava/util/concurrent/CompletionStage;", null, beginLabel, endLabel, 0);
-            mv.visitLocalVariable("t", "L" + retType + ";", null, varLabel, endLabel, 1);
-            mv.visitMaxs(2, 2);
-            mv.visitEnd();
         }
-    }
-
-    private void generateWhenComplete(ClassNode classNode, String lambdaName)
-    {
-        for (MethodNode m : classNode.methods)
+        if (original.tryCatchBlocks != null)
         {
-            if (m.name.equals(lambdaName))
+            for (TryCatchBlockNode tcb : original.tryCatchBlocks)
             {
-                return;
+                targets.add(tcb.start);
+                targets.add(tcb.end);
+                targets.add(tcb.handler);
             }
         }
-        final MethodVisitor mv = classNode.visitMethod(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC, lambdaName,
-                "(Ljava/util/concurrent/CompletableFuture;Ljava/lang/Object;Ljava/lang/Throwable;)V", null, null);
+        boolean found = false;
+        for (int i = 0; i < switchEntries.size(); i++)
         {
-            mv.visitCode();
-
-            Label beginLabel = new Label();
-            Label elseLabel = new Label();
-            Label skip = new Label();
-            Label endLabel = new Label();
-
-            mv.visitLabel(beginLabel);
-            mv.visitVarInsn(ALOAD, 2);
-            mv.visitJumpInsn(IFNULL, elseLabel);
-            // completed exceptionally
+            final SwitchEntry se = switchEntries.get(i);
+            if (se.tail || !isSegmentBoundary(se) || insideTryBlock(original, awaits.get(i)))
             {
-                Label exceptionLabel = new Label();
-                mv.visitLabel(exceptionLabel);
-                mv.visitVarInsn(ALOAD, 0);
-                mv.visitVarInsn(ALOAD, 2);
-                mv.visitMethodInsn(INVOKEVIRTUAL, COMPLETABLE_FUTURE_NAME, "completeExceptionally", "(Ljava/lang/Throwable;)Z", false);
-                mv.visitInsn(POP);
-                mv.visitJumpInsn(GOTO, skip);
+                continue;
             }
-            // completed normally
+            AbstractInsnNode insn = awaits.get(i).getNext();
+            int nextAwait = i + 1;
+            while (insn != null)
             {
-                mv.visitLabel(elseLabel);
-                mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
-                mv.visitVarInsn(ALOAD, 0);
-                mv.visitVarInsn(ALOAD, 1);
-                mv.visitMethodInsn(INVOKEVIRTUAL, COMPLETABLE_FUTURE_NAME, "complete", "(Ljava/lang/Object;)Z", false);
-                mv.visitInsn(POP);
+                if (insn instanceof FrameNode || targets.contains(insn))
+                {
+                    insn = null;
+                }
+                else if (nextAwait < awaits.size() && insn == awaits.get(nextAwait))
+                {
+                    if (switchEntries.get(nextAwait).tail || !isSegmentBoundary(switchEntries.get(nextAwait)))
+                    {
+                        insn = null;
+                    }
+                    break;
+                }
+                else if (insn.getOpcode() == ARETURN)
+                {
+                    break;
+                }
+                else if (insn instanceof JumpInsnNode || insn instanceof TableSwitchInsnNode || insn instanceof LookupSwitchInsnNode
+                        || (insn.getOpcode() >= IRETURN && insn.getOpcode() <= RETURN)
+                        || insn.getOpcode() == ATHROW || insn.getOpcode() == MONITORENTER || insn.getOpcode() == MONITOREXIT)
+                {
+                    insn = null;
+                }
+                else
+                {
+                    insn = insn.getNext();
+                }
+            }
+            if (insn != null)
+            {
+                se.segmentStart = awaits.get(i).getNext();
+                se.segmentEnd = insn;
+                found = true;
             }
-            mv.visitLabel(skip);
-            mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
-            mv.visitInsn(RETURN);
-            mv.visitLabel(endLabel);
-            mv.visitLocalVariable("future", COMPLETABLE_FUTURE_DESCRIPTOR, null, beginLabel, endLabel, 0);
-            mv.visitLocalVariable("result", "Ljava/lang/Object;", null, beginLabel, endLabel, 1);
-            mv.visitLocalVariable("exception", "Ljava/lang/Throwable;", null, beginLabel, endLabel, 2);
-            mv.visitMaxs(2, 3);
-            mv.visitEnd();
         }
+        return found;
     }
 
-    private void fullFrame(final MethodVisitor mv, final Frame frame)
+    /**
+     * Awaits that start or end a segment can't have monitors or uninitialized objects in their frame.
+     */
+    private boolean isSegmentBoundary(final SwitchEntry se)
     {
-        Object[] locals = new Object[frame.getLocals()];
-        Object[] stack = new Object[frame.getStackSize()];
-        int nStack = 0;
-        int nLocals = 0;
-        int maxLocal = 0;
-        for (int i = 0; i < locals.length; i++)
+        if (se.frame.monitors.length > 0)
         {
-            BasicValue value = (BasicValue) frame.getLocal(i);
-            Type type = value.getType();
-            if (type == null)
-            {
-                locals[nLocals++] = TOP;
-            }
-            else
+            return false;
+        }
+        for (int i = 0; i < se.frame.getStackSize(); i++)
+        {
+            if (isUninitialized(se.frame.getStack(i)))
             {
-                locals[nLocals++] = toFrameType(value);
-                if (value.getSize() == 2) i++;
-                maxLocal = nLocals;
+                return false;
             }
         }
-        for (int i = 0; i < frame.getStackSize(); i++)
+        for (int i = 0; i < se.frame.getLocals(); i++)
         {
-            BasicValue value = (BasicValue) frame.getStack(i);
-            Type type = value.getType();
-            if (type == null)
+            if (isUninitialized(se.frame.getLocal(i)))
             {
-                continue;
+                return false;
             }
-            stack[nStack++] = toFrameType(value);
         }
-        stack = nStack == stack.length ? stack : Arrays.copyOf(stack, nStack);
-        locals = nLocals == locals.length ? locals : Arrays.copyOf(locals, maxLocal);
-        mv.visitFrame(F_FULL, maxLocal, locals, nStack, stack);
+        return true;
     }
 
-    private Object toFrameType(final BasicValue value)
+    private boolean insideTryBlock(final MethodNode original, final AbstractInsnNode insn)
     {
-        final Type type = value.getType();
-        switch (type.getSort())
-        {
-            case Type.BOOLEAN:
-            case Type.BYTE:
-            case Type.INT:
-            case Type.CHAR:
-            case Type.SHORT:
-                return Opcodes.INTEGER;
-            case Type.LONG:
-                return Opcodes.LONG;
-            case Type.FLOAT:
-                return Opcodes.FLOAT;
-            case Type.DOUBLE:
-                return Opcodes.DOUBLE;
-        }
-        final String internalName = type.getInternalName();
-        if (ACONST_NULL_TYPE.equals(type))
+        if (original.tryCatchBlocks != null)
         {
-            return Opcodes.NULL;
+            final int index = original.instructions.indexOf(insn);
+            for (TryCatchBlockNode tcb : original.tryCatchBlocks)
+            {
+                if (original.instructions.indexOf(tcb.start) <= index && index < original.instructions.indexOf(tcb.end))
+                {
+                    return true;
+                }
+            }
         }
-        return internalName;
+        return false;
     }
 
-    private boolean isAwaitCall(final MethodInsnNode methodIns)
+    private AbstractInsnNode nextInstruction(final AbstractInsnNode insn)
     {
-        return isAwaitCall(methodIns.getOpcode(), methodIns.owner, methodIns.name, methodIns.desc);
+        AbstractInsnNode next = insn.getNext();
+        while (next != null && next.getOpcode() < 0)
+        {
+            next = next.getNext();
+        }
+        return next;
     }
 
-    private boolean isAwaitCall(int opcode, String owner, String name, String desc)
+    /**
+     * Returns the awaited future, adapting it to the return type of the method if necessary.
+     */
+    private void returnTailAwait(
+            final ClassNode classNode,
+            final MethodNode original,
+            final MethodVisitor mv,
+            final SwitchEntry switchEntry,
+            final boolean isContinued,
+            final HeapFrame heapFrame,
+            final boolean needsConversion)
     {
-        return opcode == Opcodes.INVOKESTATIC
-                && ASYNC_METHOD_NAME.equals(name)
-                && ASYNC_NAME.equals(owner)
-                //&& ASYNC_METHOD_DESC.equals(desc)
-                ;
-    }
-
-    private boolean isAwaitInitCall(final MethodInsnNode methodIns)
+        // stack: { future }
+        final Type retType = Type.getReturnType(original.desc);
+        if (isContinued && heapFrame != null)
+        {
+            // the continuation completes its result with the future
+        }
+        else if (isContinued || COMPLETABLE_FUTURE_TYPE.equals(retType))
+        {
+            if (needsConversion)
+            {
+                mv.visitMethodInsn(INVOKEINTERFACE, COMPLETION_STAGE_NAME, "toCompletableFuture", "()Ljava/util/concurrent/CompletableFuture;", true);
+            }
+        }
+        else if (!COMPLETION_STAGE_TYPE.equals(retType) && !checkType(switchEntry.frame, retType))
+        {
+            final String castFunction = "lambda$checkCast$" + retType.getInternalName().replace('/', '_');
+            generateCheckCast(classNode, castFunction, retType.getInternalName());
+            final boolean isInterface = (classNode.access & ACC_INTERFACE) == ACC_INTERFACE;
+            mv.visitMethodInsn(INVOKESTATIC, classNode.name, castFunction, "(Ljava/util/concurrent/CompletionStage;)L" + retType.getInternalName() + ";", isInterface);
+        }
+        // the continued method visitor handles the monitor of synchronized methods and heap frames
+        mv.visitInsn(ARETURN);
+    }
+
+    /**
+     * Saves the live values to the continuation object and registers it with the awaited future.
+     * <p>
+     * Used by the continued method, the continuation object was created by the suspend method.
+     */
+    private void suspendToHeapFrame(
+            final MethodVisitor mv,
+            final SwitchEntry switchEntry,
+            final List<Argument> lambdaArguments,
+            final HeapFrame heapFrame)
+    {
+        // code: continuation.objects[slot] = local; continuation.primitives[slot] = local;
+        for (int i = 0, l = lambdaArguments.size() - 2; i < l; i++)
+        {
+            final int iLocal = i < switchEntry.argumentToLocal.length ? switchEntry.argumentToLocal[i] : -1;
+            final Argument argument = lambdaArguments.get(i);
+            if (iLocal >= 0)
+            {
+                storeHeapSlot(mv, heapFrame.local, argument, iLocal);
+            }
+            else if (isReference(argument.value))
+            {
+                // doesn't keep stale references alive
+                mv.visitVarInsn(ALOAD, heapFrame.local);
+                mv.visitFieldInsn(GETFIELD, Continuation.NAME, "objects", "[Ljava/lang/Object;");
+                pushInt(mv, argument.heapSlot);
+                mv.visitInsn(ACONST_NULL);
+                mv.visitInsn(AASTORE);
+            }
+        }
+        // code: continuation.await(future, state);
+        mv.visitVarInsn(ALOAD, heapFrame.local);
+        mv.visitVarInsn(ALOAD, switchEntry.stackToNewLocal[switchEntry.frame.getStackSize() - 1]);
+        mv.visitIntInsn(SIPUSH, switchEntry.key);
+        mv.visitMethodInsn(INVOKEVIRTUAL, Continuation.NAME, "await", "(Ljava/util/concurrent/CompletionStage;I)V", false);
+    }
+
+    /**
+     * Generates the method that suspends the replacement method:
+     * <code>suspend$method(...arguments..., int state, CompletionStage future)</code>
+     * <p>
+     * Keeping this code out of the replacement method leaves only the synchronous path there,
+     * which keeps it small enough to be inlined by the jit.
+     */
+    private void generateSuspend(
+            final ClassNode classNode,
+            final MethodNode original,
+            final Handle suspend,
+            final Handle handle,
+            final String continuationClass,
+            final String lambdaDesc,
+            final List<Argument> arguments,
+            final boolean nonCompFutReturn,
+            final HeapFrame heapFrame)
+    {
+        final MethodVisitor mv = classNode.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, suspend.getName(), suspend.getDesc(), null, null);
+        mv.visitCode();
+        final int stateLocal = arguments.get(arguments.size() - 2).iArgumentLocal;
+        final int futureLocal = arguments.get(arguments.size() - 1).iArgumentLocal;
+        final String retType = Type.getReturnType(original.desc).getInternalName();
+        if (heapFrame != null)
+        {
+            final int continuationLocal = futureLocal + 1;
+            newContinuation(mv, handle, continuationClass, nonCompFutReturn, retType, heapFrame);
+            mv.visitVarInsn(ASTORE, continuationLocal);
+            // code: continuation.objects[slot] = argument; continuation.primitives[slot] = argument;
+            for (int i = 0, l = arguments.size() - 2; i < l; i++)
+            {
+                storeHeapSlot(mv, continuationLocal, arguments.get(i), arguments.get(i).iArgumentLocal);
+            }
+            // code: continuation.await(future, state);
+            mv.visitVarInsn(ALOAD, continuationLocal);
+            mv.visitVarInsn(ALOAD, futureLocal);
+            mv.visitVarInsn(ILOAD, stateLocal);
+            mv.visitMethodInsn(INVOKEVIRTUAL, Continuation.NAME, "await", "(Ljava/util/concurrent/CompletionStage;I)V", false);
+            // code: return continuation.getResult();
+            mv.visitVarInsn(ALOAD, continuationLocal);
+            mv.visitMethodInsn(INVOKEVIRTUAL, Continuation.NAME, "getResult", "()Ljava/util/concurrent/CompletableFuture;", false);
+            if (nonCompFutReturn)
+            {
+                mv.visitTypeInsn(CHECKCAST, retType);
+            }
+        }
+        else
+        {
+            // code: return future.exceptionally(x -> x).thenCompose(x -> async$method(...arguments..., state, x));
+            mv.visitVarInsn(ALOAD, futureLocal);
+            mv.visitMethodInsn(INVOKESTATIC, Type.getType(Function.class).getInternalName(), "identity", "()Ljava/util/function/Function;", true);
+            // this discards any exception. the exception will be thrown by calling join.
+            mv.visitMethodInsn(INVOKEINTERFACE, COMPLETION_STAGE_NAME, "exceptionally", "(Ljava/util/function/Function;)Ljava/util/concurrent/CompletionStage;", true);
+            for (int i = 0, l = arguments.size() - 1; i < l; i++)
+            {
+                final Argument argument = arguments.get(i);
+                mv.visitVarInsn(argument.value.getType().getOpcode(ILOAD), argument.iArgumentLocal);
+            }
+            mv.visitInvokeDynamicInsn("apply", lambdaDesc,
+                    METAFACTORY_HANDLE,
+                    Type.getType("(Ljava/lang/Object;)Ljava/lang/Object;"),
+                    handle,
+                    Type.getType("(Ljava/lang/Object;)Ljava/util/concurrent/CompletableFuture;"));
+            mv.visitMethodInsn(INVOKEINTERFACE, COMPLETION_STAGE_NAME, "thenCompose", "(Ljava/util/function/Function;)Ljava/util/concurrent/CompletionStage;", true);
+            mv.visitMethodInsn(INVOKEINTERFACE, COMPLETION_STAGE_NAME, "toCompletableFuture", "()Ljava/util/concurrent/CompletableFuture;", true);
+            if (nonCompFutReturn)
+            {
+                // we need to return a Future of the same type the method returns.
+                final String castFunction = "lambda$checkCast$" + retType.replace('/', '_');
+                generateCheckCast(classNode, castFunction, retType);
+                mv.visitMethodInsn(INVOKESTATIC, classNode.name, castFunction, "(Ljava/util/concurrent/CompletionStage;)L" + retType + ";", suspend.isInterface());
+                mv.visitTypeInsn(CHECKCAST, retType);
+            }
+        }
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Generates the body of a compact async method, which only starts the continued method:
+     * <code>return async$method(...arguments..., 0, null);</code>
+     */
+    private void generateCompactEntry(
+            final ClassNode classNode,
+            final MethodNode original,
+            final MethodVisitor mv,
+            final SwitchEntry entryPoint,
+            final Handle handle,
+            final String continuationClass,
+            final List<Argument> arguments,
+            final boolean nonCompFutReturn,
+            final HeapFrame heapFrame)
+    {
+        final String retType = Type.getReturnType(original.desc).getInternalName();
+        mv.visitCode();
+        if (heapFrame != null)
+        {
+            // code: continuation.objects[slot] = argument; continuation.primitives[slot] = argument;
+            // code: async$method(continuation);
+            // code: return continuation.getResult();
+            newContinuation(mv, handle, continuationClass, nonCompFutReturn, retType, heapFrame);
+            mv.visitVarInsn(ASTORE, heapFrame.local);
+            for (int i = 0; i < entryPoint.argumentToLocal.length; i++)
+            {
+                if (entryPoint.argumentToLocal[i] >= 0)
+                {
+                    storeHeapSlot(mv, heapFrame.local, arguments.get(i), entryPoint.argumentToLocal[i]);
+                }
+            }
+            mv.visitVarInsn(ALOAD, heapFrame.local);
+            mv.visitMethodInsn(INVOKESTATIC, handle.getOwner(), handle.getName(), handle.getDesc(), handle.isInterface());
+            mv.visitVarInsn(ALOAD, heapFrame.local);
+            mv.visitMethodInsn(INVOKEVIRTUAL, Continuation.NAME, "getResult", "()Ljava/util/concurrent/CompletableFuture;", false);
+            if (nonCompFutReturn)
+            {
+                mv.visitTypeInsn(CHECKCAST, retType);
+            }
+        }
+        else
+        {
+            pushArguments(mv, entryPoint, arguments);
+            mv.visitInsn(ICONST_0);
+            mv.visitInsn(ACONST_NULL);
+            mv.visitMethodInsn(INVOKESTATIC, handle.getOwner(), handle.getName(), handle.getDesc(), handle.isInterface());
+            if (nonCompFutReturn)
+            {
+                // the continued method returns a plain future if it suspends
+                final String castFunction = "lambda$checkCast$" + retType.replace('/', '_');
+                generateCheckCast(classNode, castFunction, retType);
+                mv.visitMethodInsn(INVOKESTATIC, classNode.name, castFunction, "(Ljava/util/concurrent/CompletionStage;)L" + retType + ";", handle.isInterface());
+            }
+        }
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        // the annotations are kept in the public method
+        final MethodVisitor replacement = mv;
+        original.accept(new MethodVisitor(Opcodes.ASM5)
+        {
+            @Override
+            public AnnotationVisitor visitAnnotation(final String descriptor, final boolean visible)
+            {
+                return replacement.visitAnnotation(descriptor, visible);
+            }
+
+            @Override
+            public void visitAnnotableParameterCount(final int parameterCount, final boolean visible)
+            {
+                replacement.visitAnnotableParameterCount(parameterCount, visible);
+            }
+
+            @Override
+            public AnnotationVisitor visitParameterAnnotation(final int parameter, final String descriptor, final boolean visible)
+            {
+                return replacement.visitParameterAnnotation(parameter, descriptor, visible);
+            }
+
+            @Override
+            public void visitParameter(final String name, final int access)
+            {
+                replacement.visitParameter(name, access);
+            }
+        });
+    }
+
+    /**
+     * Generates the method that suspends the continued method when using heap frames:
+     * <code>suspend$method$continued(Continuation continuation, ...arguments..., int state, CompletionStage future)</code>
+     * <p>
+     * The unused references are passed as null, clearing them from the continuation.
+     *
+     * @param continues if the future is done the method returns true instead of suspending,
+     *                  used by the segment methods: <code>suspend$method$segment</code>
+     */
+    private void generateContinuedSuspend(final ClassNode classNode, final Handle suspend, final List<Argument> arguments, final boolean continues)
+    {
+        final MethodVisitor mv = classNode.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, suspend.getName(), suspend.getDesc(), null, null);
+        mv.visitCode();
+        // the continuation is the first argument, the others are shifted by one
+        for (int i = 0, l = arguments.size() - 2; i < l; i++)
+        {
+            storeHeapSlot(mv, 0, arguments.get(i), arguments.get(i).iArgumentLocal + 1);
+        }
+        // code: continuation.await(future, state);
+        // or: return continuation.awaitUnlessDone(future, state);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, arguments.get(arguments.size() - 1).iArgumentLocal + 1);
+        mv.visitVarInsn(ILOAD, arguments.get(arguments.size() - 2).iArgumentLocal + 1);
+        if (continues)
+        {
+            mv.visitMethodInsn(INVOKEVIRTUAL, Continuation.NAME, "awaitUnlessDone", "(Ljava/util/concurrent/CompletionStage;I)Z", false);
+            mv.visitInsn(IRETURN);
+        }
+        else
+        {
+            mv.visitMethodInsn(INVOKEVIRTUAL, Continuation.NAME, "await", "(Ljava/util/concurrent/CompletionStage;I)V", false);
+            mv.visitInsn(RETURN);
+        }
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Generates a segment method of a split continued method:
+     * <code>async$method$segmentN(Continuation continuation)</code>
+     * <p>
+     * It restores the values saved at the await <code>N</code> and runs the code after it
+     * up to the next await, where it continues in the next segment if the future is done, or up to the return.
+     */
+    private void generateSegment(
+            final ClassNode classNode,
+            final MethodNode original,
+            final SwitchEntry se,
+            final SwitchEntry next,
+            final List<Argument> arguments,
+            final HeapFrame heapFrame,
+            final Handle continued,
+            final Handle segmentSuspend)
+    {
+        final MethodVisitor mv = classNode.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, se.segment.getName(), se.segment.getDesc(), null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ASTORE, heapFrame.local);
+        restoreHeapFrame(classNode, original, mv, se, arguments, heapFrame);
+        if (!checkType(se.frame, COMPLETABLE_FUTURE_TYPE))
+        {
+            mv.visitMethodInsn(INVOKEINTERFACE, COMPLETION_STAGE_NAME, "toCompletableFuture", "()Ljava/util/concurrent/CompletableFuture;", true);
+        }
+        mv.visitMethodInsn(INVOKEVIRTUAL, COMPLETABLE_FUTURE_NAME, JOIN_METHOD_NAME, JOIN_METHOD_DESC, false);
+        for (AbstractInsnNode insn = se.segmentStart; insn != se.segmentEnd; insn = insn.getNext())
+        {
+            if (insn instanceof LineNumberNode)
+            {
+                // the labels of the original method belong to the continued method
+                final Label start = new Label();
+                mv.visitLabel(start);
+                mv.visitLineNumber(((LineNumberNode) insn).line, start);
+            }
+            else if (insn instanceof MethodInsnNode && isAwaitInitCall((MethodInsnNode) insn))
+            {
+                mv.visitInsn(NOP);
+            }
+            else if (insn.getOpcode() >= 0)
+            {
+                insn.accept(mv);
+            }
+        }
+        if (se.segmentEnd.getOpcode() == ARETURN)
+        {
+            // code: continuation.complete(returnValue);
+            // code: return;
+            mv.visitVarInsn(ALOAD, heapFrame.local);
+            mv.visitInsn(SWAP);
+            mv.visitMethodInsn(INVOKEVIRTUAL, Continuation.NAME, "complete", "(Ljava/util/concurrent/CompletionStage;)V", false);
+            mv.visitInsn(RETURN);
+        }
+        else
+        {
+            // the next await resumes in the continued method unless it starts another segment
+            continueInSegment(mv, next, arguments, heapFrame, segmentSuspend, next.segment != null ? next.segment : continued);
+        }
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Saves the values at an await followed by a segment method, and calls it if the future is done.
+     * <code>if (suspend$method$segment(continuation, ...arguments..., state, future)) segment(continuation); return;</code>
+     */
+    private void continueInSegment(
+            final MethodVisitor mv,
+            final SwitchEntry switchEntry,
+            final List<Argument> lambdaArguments,
+            final HeapFrame heapFrame,
+            final Handle segmentSuspend,
+            final Handle segment)
+    {
+        // stack: { ... future }
+        saveStack(mv, switchEntry);
+        // stack: { }
+        mv.visitVarInsn(ALOAD, heapFrame.local);
+        pushArguments(mv, switchEntry, lambdaArguments);
+        mv.visitIntInsn(SIPUSH, switchEntry.key);
+        mv.visitVarInsn(ALOAD, switchEntry.stackToNewLocal[switchEntry.frame.getStackSize() - 1]);
+        mv.visitMethodInsn(INVOKESTATIC, segmentSuspend.getOwner(), segmentSuspend.getName(), segmentSuspend.getDesc(), segmentSuspend.isInterface());
+        final Label suspended = new Label();
+        mv.visitJumpInsn(IFEQ, suspended);
+        mv.visitVarInsn(ALOAD, heapFrame.local);
+        mv.visitMethodInsn(INVOKESTATIC, segment.getOwner(), segment.getName(), segment.getDesc(), segment.isInterface());
+        mv.visitLabel(suspended);
+        final Object[] locals = heapFrame.frameLocals(0, new Object[0]);
+        mv.visitFrame(F_FULL, locals.length, locals, 0, new Object[0]);
+        mv.visitInsn(RETURN);
+    }
+
+    /**
+     * Returns the bytecode size of a generated method.
+     * <p>
+     * Writing the method is only needed when the upper bound computed from its instructions exceeds the limit,
+     * most continuation methods are far below it.
+     */
+    private int codeSize(final MethodNode method)
+    {
+        final int bound = maxCodeSize(method);
+        if (bound <= methodSizeLimit)
+        {
+            return bound;
+        }
+        final ClassWriter cw = new ClassWriter(0);
+        cw.visit(V1_8, ACC_PUBLIC, "async$Size", null, "java/lang/Object", null);
+        method.accept(cw);
+        cw.visitEnd();
+        try
+        {
+            return MethodSizes.read(cw.toByteArray()).get(method.name + method.desc);
+        }
+        catch (MethodTooLargeException ex)
+        {
+            return ex.getCodeSize();
+        }
+    }
+
+    /**
+     * Upper bound of the bytecode size of a method, without writing it.
+     * Jumps are counted as if asm had to replace them with a negated jump and a <code>goto_w</code>,
+     * and switches with their maximum padding.
+     */
+    static int maxCodeSize(final MethodNode method)
+    {
+        int size = 0;
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext())
+        {
+            switch (insn.getType())
+            {
+                case AbstractInsnNode.LABEL:
+                case AbstractInsnNode.LINE:
+                case AbstractInsnNode.FRAME:
+                    break;
+                case AbstractInsnNode.JUMP_INSN:
+                    size += 8;
+                    break;
+                case AbstractInsnNode.TABLESWITCH_INSN:
+                    size += 16 + 4 * ((TableSwitchInsnNode) insn).labels.size();
+                    break;
+                case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                    size += 12 + 8 * ((LookupSwitchInsnNode) insn).labels.size();
+                    break;
+                case AbstractInsnNode.IINC_INSN:
+                    size += 6;
+                    break;
+                case AbstractInsnNode.VAR_INSN:
+                    // wide
+                    size += 4;
+                    break;
+                default:
+                    // invokeinterface, invokedynamic, multianewarray and the wide forms are at most 5 bytes
+                    size += 5;
+            }
+        }
+        return size;
+    }
+
+    private void newContinuation(final MethodVisitor mv, final Handle handle, final String continuationClass,
+                                 final boolean nonCompFutReturn, final String retType, final HeapFrame heapFrame)
+    {
+        // code: new Continuation(async$method, new ResultType(), objects, primitives);
+        // or with continuation classes:
+        // code: new Type$async$method(new ResultType(), objects, primitives);
+        final String owner = continuationClass != null ? continuationClass : Continuation.NAME;
+        final String handleDesc = continuationClass != null ? "" : "Ljava/lang/invoke/MethodHandle;";
+        mv.visitTypeInsn(NEW, owner);
+        mv.visitInsn(DUP);
+        if (continuationClass == null)
+        {
+            mv.visitLdcInsn(handle);
+        }
+        if (nonCompFutReturn)
+        {
+            mv.visitTypeInsn(NEW, retType);
+            mv.visitInsn(DUP);
+            mv.visitMethodInsn(INVOKESPECIAL, retType, "<init>", "()V", false);
+        }
+        pushInt(mv, heapFrame.objects);
+        pushInt(mv, heapFrame.primitives);
+        if (nonCompFutReturn)
+        {
+            mv.visitMethodInsn(INVOKESPECIAL, owner, "<init>", "(" + handleDesc + "Ljava/util/concurrent/CompletableFuture;II)V", false);
+        }
+        else
+        {
+            // code: new Continuation(async$method, objects, primitives);
+            // the result can be linked directly to the continuation of other async methods
+            mv.visitMethodInsn(INVOKESPECIAL, owner, "<init>", "(" + handleDesc + "II)V", false);
+        }
+    }
+
+    private String nonCompFutReturnType(final MethodNode original)
+    {
+        final boolean nonCompFutReturn = !original.desc.endsWith(COMPLETABLE_FUTURE_RET) && !original.desc.endsWith(COMPLETION_STAGE_RET);
+        return nonCompFutReturn ? Type.getReturnType(original.desc).getInternalName() : null;
+    }
+
+    /**
+     * Generates the continuation class of an async method, that resumes the continued method with a direct call:
+     * <pre>
+     * final class Type$async$method extends Continuation
+     * {
+     *     protected void run()
+     *     {
+     *         Type.async$method(this);
+     *     }
+     * }
+     * </pre>
+     * The class is in the same package of the async method, so the continued method can be package private.
+     *
+     * @param resultType the return type of the async method, or null if it's completable future or completion stage
+     */
+    private byte[] generateContinuationClass(final String name, final Handle continued, final String resultType)
+    {
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, name, null, Continuation.NAME, null);
+        final String initDesc = resultType != null ? "(Ljava/util/concurrent/CompletableFuture;II)V" : "(II)V";
+        MethodVisitor mv = cw.visitMethod(0, "<init>", initDesc, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        int iLocal = 1;
+        if (resultType != null)
+        {
+            mv.visitVarInsn(ALOAD, iLocal++);
+        }
+        mv.visitVarInsn(ILOAD, iLocal++);
+        mv.visitVarInsn(ILOAD, iLocal);
+        mv.visitMethodInsn(INVOKESPECIAL, Continuation.NAME, "<init>", initDesc, false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PROTECTED, "run", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESTATIC, continued.getOwner(), continued.getName(), continued.getDesc(), false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private void storeHeapSlot(final MethodVisitor mv, final int continuationLocal, final Argument argument, final int iLocal)
+    {
+        final Type type = argument.value.getType();
+        mv.visitVarInsn(ALOAD, continuationLocal);
+        if (isReference(argument.value))
+        {
+            mv.visitFieldInsn(GETFIELD, Continuation.NAME, "objects", "[Ljava/lang/Object;");
+            pushInt(mv, argument.heapSlot);
+            mv.visitVarInsn(ALOAD, iLocal);
+            mv.visitInsn(AASTORE);
+            return;
+        }
+        mv.visitFieldInsn(GETFIELD, Continuation.NAME, "primitives", "[J");
+        pushInt(mv, argument.heapSlot);
+        mv.visitVarInsn(type.getOpcode(ILOAD), iLocal);
+        switch (type.getSort())
+        {
+            case Type.FLOAT:
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToRawIntBits", "(F)I", false);
+                mv.visitInsn(I2L);
+                break;
+            case Type.DOUBLE:
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J", false);
+                break;
+            case Type.LONG:
+                break;
+            default:
+                mv.visitInsn(I2L);
+        }
+        mv.visitInsn(LASTORE);
+    }
+
+    private void loadHeapSlot(final MethodVisitor mv, final HeapFrame heapFrame, final Argument argument)
+    {
+        final Type type = argument.value.getType();
+        mv.visitVarInsn(ALOAD, heapFrame.local);
+        if (isReference(argument.value))
+        {
+            mv.visitFieldInsn(GETFIELD, Continuation.NAME, "objects", "[Ljava/lang/Object;");
+            pushInt(mv, argument.heapSlot);
+            mv.visitInsn(AALOAD);
+            if (!"java/lang/Object".equals(type.getInternalName()))
+            {
+                mv.visitTypeInsn(CHECKCAST, type.getInternalName());
+            }
+            return;
+        }
+        mv.visitFieldInsn(GETFIELD, Continuation.NAME, "primitives", "[J");
+        pushInt(mv, argument.heapSlot);
+        mv.visitInsn(LALOAD);
+        switch (type.getSort())
+        {
+            case Type.FLOAT:
+                mv.visitInsn(L2I);
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "intBitsToFloat", "(I)F", false);
+                break;
+            case Type.DOUBLE:
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "longBitsToDouble", "(J)D", false);
+                break;
+            case Type.LONG:
+                break;
+            default:
+                mv.visitInsn(L2I);
+        }
+    }
+
+    private boolean isReference(final BasicValue value)
+    {
+        final Type type = value.getType();
+        return type == null || type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+    }
+
+    private void pushInt(final MethodVisitor mv, final int value)
+    {
+        if (value <= 5)
+        {
+            mv.visitInsn(ICONST_0 + value);
+        }
+        else if (value <= Byte.MAX_VALUE)
+        {
+            mv.visitIntInsn(BIPUSH, value);
+        }
+        else
+        {
+            mv.visitIntInsn(SIPUSH, value);
+        }
+    }
+
+    private boolean startsWithFrame(final MethodNode original)
+    {
+        for (AbstractInsnNode insn = original.instructions.getFirst(); insn != null; insn = insn.getNext())
+        {
+            if (insn instanceof FrameNode)
+            {
+                return true;
+            }
+            if (insn.getOpcode() >= 0)
+            {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void releaseMonitors(final ClassNode classNode, final MethodNode original, final MethodVisitor mv, final SwitchEntry switchEntry)
+    {
+        for (int i = switchEntry.frame.monitors.length; --i >= 0; )
+        {
+            final BasicValue monitorValue = switchEntry.frame.monitors[i];
+            int monitorLocal = -1;
+            for (int iLocal = 0; iLocal < switchEntry.frame.getLocals(); iLocal += valueSize(switchEntry.frame.getLocal(iLocal)))
+            {
+                if (switchEntry.frame.getLocal(iLocal) == monitorValue)
+                {
+                    monitorLocal = iLocal;
+                    // don't break; prefer using the last one
+                }
+            }
+            // only release if a local variable containing the monitor was found
+            if (monitorLocal != -1)
+            {
+                mv.visitVarInsn(ALOAD, monitorLocal);
+                mv.visitInsn(MONITOREXIT);
+            }
+            else
+            {
+                notifyError("Error restoring monitors in synchronized method. monitorLocal=%d, at %s.%s", monitorLocal, classNode.name, original.name);
+            }
+        }
+    }
+
+    private boolean checkType(final FrameAnalyzer.ExtendedFrame frame, final Type type)
+    {
+        if (frame != null)
+        {
+            final BasicValue value = frame.getStack(frame.getStackSize() - 1);
+            if (value != null && value.getType() != null && type.equals(value.getType()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void generateCheckCast(final ClassNode classNode, final String castFunction, final String retType)
+    {
+        for (MethodNode m : classNode.methods)
+        {
+            if (m.name.equals(castFunction))
+            {
+                return;
+            }
+        }
+        final MethodVisitor mv = classNode.visitMethod(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC, castFunction, "(Ljava/util/concurrent/CompletionStage;)L" + retType + ";", null, null);
+        {
+            mv.visitCode();
+            Label beginLabel = new Label();
+            Label elseLabel = new Label();
+            Label varLabel = new Label();
+            mv.visitLabel(beginLabel);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitTypeInsn(INSTANCEOF, retType);
+            mv.visitJumpInsn(IFEQ, elseLabel);
+            {
+                Label l2 = new Label();
+                mv.visitLabel(l2);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitTypeInsn(CHECKCAST, retType);
+                mv.visitInsn(ARETURN);
+            }
+            mv.visitLabel(elseLabel);
+            {
+                mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+                mv.visitTypeInsn(NEW, retType);
+                mv.visitInsn(DUP);
+                mv.visitMethodInsn(INVOKESPECIAL, retType, "<init>", "()V", false);
+                mv.visitVarInsn(ASTORE, 1);
+                mv.visitLabel(varLabel);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, 1);
+                if (continuationClassListener != null)
+                {
+                    // no lambdas, the instrumented classes already depend on ea-async
+                    mv.visitMethodInsn(INVOKESTATIC, Continuation.NAME, "relay", "(Ljava/util/concurrent/CompletionStage;Ljava/util/concurrent/CompletableFuture;)V", false);
+                    mv.visitVarInsn(ALOAD, 1);
+                    mv.visitInsn(ARETURN);
+                }
+                else
+                {
+                    final String whenCompleteName = "lambda$cast$whenComplete";
+                    mv.visitInvokeDynamicInsn("accept", "(Ljava/util/concurrent/CompletableFuture;)Ljava/util/function/BiConsumer;",
+                            METAFACTORY_HANDLE,
+                            Type.getType("(Ljava/lang/Object;Ljava/lang/Object;)V"),
+                            new Handle(Opcodes.H_INVOKESTATIC, classNode.name,
+                                    whenCompleteName,
+                                    "(Ljava/util/concurrent/CompletableFuture;Ljava/lang/Object;Ljava/lang/Throwable;)V"),
+                            Type.getType("(Ljava/lang/Object;Ljava/lang/Throwable;)V"));
+                    generateWhenComplete(classNode, whenCompleteName);
+                    mv.visitMethodInsn(INVOKEINTERFACE, "java/util/concurrent/CompletionStage", "whenComplete", "(Ljava/util/function/BiConsumer;)Ljava/util/concurrent/CompletionStage;", true);
+                    mv.visitInsn(POP);
+                    mv.visitVarInsn(ALOAD, 1);
+                    mv.visitInsn(ARETURN);
+                }
+            }
+            Label endLabel = new Label();
+            mv.visitLabel(endLabel);
+            mv.visitLocalVariable("stage", "Ljava/util/concurrent/CompletionStage;", null, beginLabel, endLabel, 0);
+            mv.visitLocalVariable("t", "L" + retType + ";", null, varLabel, endLabel, 1);
+            mv.visitMaxs(2, 2);
+            mv.visitEnd();
+        }
+    }
+
+    private void generateWhenComplete(ClassNode classNode, String lambdaName)
+    {
+        for (MethodNode m : classNode.methods)
+        {
+            if (m.name.equals(lambdaName))
+            {
+                return;
+            }
+        }
+        final MethodVisitor mv = classNode.visitMethod(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC, lambdaName,
+                "(Ljava/util/concurrent/CompletableFuture;Ljava/lang/Object;Ljava/lang/Throwable;)V", null, null);
+        {
+            mv.visitCode();
+
+            Label beginLabel = new Label();
+            Label elseLabel = new Label();
+            Label skip = new Label();
+            Label endLabel = new Label();
+
+            mv.visitLabel(beginLabel);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitJumpInsn(IFNULL, elseLabel);
+            // completed exceptionally
+            {
+                Label exceptionLabel = new Label();
+                mv.visitLabel(exceptionLabel);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, 2);
+                mv.visitMethodInsn(INVOKEVIRTUAL, COMPLETABLE_FUTURE_NAME, "completeExceptionally", "(Ljava/lang/Throwable;)Z", false);
+                mv.visitInsn(POP);
+                mv.visitJumpInsn(GOTO, skip);
+            }
+            // completed normally
+            {
+                mv.visitLabel(elseLabel);
+                mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitMethodInsn(INVOKEVIRTUAL, COMPLETABLE_FUTURE_NAME, "complete", "(Ljava/lang/Object;)Z", false);
+                mv.visitInsn(POP);
+            }
+            mv.visitLabel(skip);
+            mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+            mv.visitInsn(RETURN);
+            mv.visitLabel(endLabel);
+            mv.visitLocalVariable("future", COMPLETABLE_FUTURE_DESCRIPTOR, null, beginLabel, endLabel, 0);
+            mv.visitLocalVariable("result", "Ljava/lang/Object;", null, beginLabel, endLabel, 1);
+            mv.visitLocalVariable("exception", "Ljava/lang/Throwable;", null, beginLabel, endLabel, 2);
+            mv.visitMaxs(2, 3);
+            mv.visitEnd();
+        }
+    }
+
+    private void fullFrame(final MethodVisitor mv, final Frame frame, final HeapFrame heapFrame)
+    {
+        Object[] locals = new Object[frame.getLocals()];
+        Object[] stack = new Object[frame.getStackSize()];
+        int nStack = 0;
+        int nLocals = 0;
+        int maxLocal = 0;
+        for (int i = 0; i < locals.length; i++)
+        {
+            BasicValue value = (BasicValue) frame.getLocal(i);
+            Type type = value.getType();
+            if (type == null)
+            {
+                locals[nLocals++] = TOP;
+            }
+            else
+            {
+                locals[nLocals++] = toFrameType(value);
+                if (value.getSize() == 2) i++;
+                maxLocal = nLocals;
+            }
+        }
+        for (int i = 0; i < frame.getStackSize(); i++)
+        {
+            BasicValue value = (BasicValue) frame.getStack(i);
+            Type type = value.getType();
+            if (type == null)
+            {
+                continue;
+            }
+            stack[nStack++] = toFrameType(value);
+        }
+        stack = nStack == stack.length ? stack : Arrays.copyOf(stack, nStack);
+        locals = nLocals == locals.length ? locals : Arrays.copyOf(locals, maxLocal);
+        if (heapFrame != null)
+        {
+            locals = heapFrame.frameLocals(maxLocal, locals);
+            maxLocal = locals.length;
+        }
+        mv.visitFrame(F_FULL, maxLocal, locals, nStack, stack);
+    }
+
+    private Object toFrameType(final BasicValue value)
+    {
+        final Type type = value.getType();
+        switch (type.getSort())
+        {
+            case Type.BOOLEAN:
+            case Type.BYTE:
+            case Type.INT:
+            case Type.CHAR:
+            case Type.SHORT:
+                return Opcodes.INTEGER;
+            case Type.LONG:
+                return Opcodes.LONG;
+            case Type.FLOAT:
+                return Opcodes.FLOAT;
+            case Type.DOUBLE:
+                return Opcodes.DOUBLE;
+        }
+        final String internalName = type.getInternalName();
+        if (ACONST_NULL_TYPE.equals(type))
+        {
+            return Opcodes.NULL;
+        }
+        return internalName;
+    }
+
+    private boolean isAwaitCall(final MethodInsnNode methodIns)
+    {
+        return isAwaitCall(methodIns.getOpcode(), methodIns.owner, methodIns.name, methodIns.desc);
+    }
+
+    private boolean isAwaitCall(int opcode, String owner, String name, String desc)
+    {
+        return opcode == Opcodes.INVOKESTATIC
+                && ASYNC_METHOD_NAME.equals(name)
+                && ASYNC_NAME.equals(owner)
+                //&& ASYNC_METHOD_DESC.equals(desc)
+                ;
+    }
+
+    private boolean isAwaitInitCall(final MethodInsnNode methodIns)
     {
         return isAwaitInitCall(methodIns.getOpcode(), methodIns.owner, methodIns.name, methodIns.desc);
     }
@@ -1538,24 +2988,69 @@ public class Transformer implements ClassFileTransformer
         // stores the values that came from arguments
         for (int iLocal = frame.getLocals(); --iLocal >= 0; )
         {
-            if (se.localToiArgument[iLocal] >= 0 && se.localToiArgument[iLocal] != iLocal)
+            if (se.localToiArgument[iLocal] >= 0 && se.localToiArgument[iLocal] != iLocal)
+            {
+                mv.visitVarInsn(frame.getLocal(iLocal).getType().getOpcode(ISTORE), iLocal);
+            }
+        }
+        // restore values that were initialized as constants (i.e.: ACONST_NULL)
+        for (int iLocal = 0; iLocal < frame.getLocals(); iLocal += valueSize(frame.getLocal(iLocal)))
+        {
+            final BasicValue value = frame.getLocal(iLocal);
+            if (se.localToiArgument[iLocal] < 0 && value != null && value.getType() != null)
+            {
+                pushDefault(mv, value);
+                mv.visitVarInsn(value.getType().getOpcode(ISTORE), iLocal);
+            }
+        }
+
+        reacquireMonitors(classNode, original, mv, frame);
+    }
+
+    private void restoreHeapFrame(final ClassNode classNode, final MethodNode original, final MethodVisitor mv, SwitchEntry se, List<Argument> lambdaArguments, HeapFrame heapFrame)
+    {
+        // the values are read directly from the continuation object, no reordering is necessary
+        final FrameAnalyzer.ExtendedFrame frame = se.frame;
+        final Argument[] localToArgument = new Argument[se.localToiArgument.length];
+        for (int j = 0; j < se.argumentToLocal.length; j++)
+        {
+            if (se.argumentToLocal[j] >= 0)
+            {
+                localToArgument[se.argumentToLocal[j]] = lambdaArguments.get(j);
+            }
+        }
+        for (int i = 0; i < frame.getStackSize(); i++)
+        {
+            final int iLocal = se.stackToNewLocal[i];
+            if (iLocal >= 0 && localToArgument[iLocal] != null)
             {
-                mv.visitVarInsn(frame.getLocal(iLocal).getType().getOpcode(ISTORE), iLocal);
+                loadHeapSlot(mv, heapFrame, localToArgument[iLocal]);
+            }
+            else
+            {
+                pushDefault(mv, frame.getStack(i));
             }
         }
-        // restore values that were initialized as constants (i.e.: ACONST_NULL)
         for (int iLocal = 0; iLocal < frame.getLocals(); iLocal += valueSize(frame.getLocal(iLocal)))
         {
             final BasicValue value = frame.getLocal(iLocal);
-            if (se.localToiArgument[iLocal] < 0 && value != null && value.getType() != null)
+            if (localToArgument[iLocal] != null)
+            {
+                loadHeapSlot(mv, heapFrame, localToArgument[iLocal]);
+                mv.visitVarInsn(value.getType().getOpcode(ISTORE), iLocal);
+            }
+            else if (value != null && value.getType() != null)
             {
                 pushDefault(mv, value);
                 mv.visitVarInsn(value.getType().getOpcode(ISTORE), iLocal);
             }
         }
+        reacquireMonitors(classNode, original, mv, frame);
+    }
 
-        // reacquire monitors
-        for (int i = 0; i < se.frame.monitors.length; i++)
+    private void reacquireMonitors(final ClassNode classNode, final MethodNode original, final MethodVisitor mv, final FrameAnalyzer.ExtendedFrame frame)
+    {
+        for (int i = 0; i < frame.monitors.length; i++)
         {
             final BasicValue monitorValue = frame.monitors[i];
             int monitorLocal = -1;
@@ -1580,10 +3075,255 @@ public class Transformer implements ClassFileTransformer
         }
     }
 
+    /**
+     * @return the name and descriptor of the methods that call <code>await</code> or <code>init</code>,
+     * or null if the class was already instrumented
+     */
+    private Set<String> findAsyncMethods(final ClassReader cr)
+    {
+        final Set<String> asyncMethods = new HashSet<>();
+        final boolean[] instrumented = { false };
+        cr.accept(new ClassVisitor(Opcodes.ASM7)
+        {
+            @Override
+            public void visitAttribute(final Attribute attribute)
+            {
+                // also finds the marker when the class was not checked with isInstrumented before being parsed
+                if (INSTRUMENTED_ATTRIBUTE.equals(attribute.type))
+                {
+                    instrumented[0] = true;
+                }
+            }
+
+            @Override
+            public MethodVisitor visitMethod(final int access, final String name, final String descriptor, final String signature, final String[] exceptions)
+            {
+                return new MethodVisitor(Opcodes.ASM7)
+                {
+                    @Override
+                    public void visitMethodInsn(final int opcode, final String owner, final String methodName, final String methodDesc, final boolean isInterface)
+                    {
+                        if (isAwaitCall(opcode, owner, methodName, methodDesc) || isAwaitInitCall(opcode, owner, methodName, methodDesc))
+                        {
+                            asyncMethods.add(name + descriptor);
+                        }
+                    }
+                };
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return instrumented[0] ? null : asyncMethods;
+    }
+
+    /**
+     * Empty class attribute marking the instrumented classes.
+     */
+    private static class InstrumentedAttribute extends Attribute
+    {
+        InstrumentedAttribute()
+        {
+            super(INSTRUMENTED_ATTRIBUTE);
+        }
+
+        @Override
+        protected ByteVector write(final ClassWriter classWriter, final byte[] code, final int codeLength, final int maxStack, final int maxLocals)
+        {
+            return new ByteVector(0);
+        }
+    }
+
+    /**
+     * Checks if the class was instrumented by ea-async, looking for the marker attribute.
+     * <p>
+     * This is a linear scan of the constant pool, to find the name of the attribute,
+     * followed by a skip over the fields and methods that only reads their lengths.
+     * The marker isn't at a fixed offset: instrumented classes keep the constant pool of the original class,
+     * so the name of the attribute is appended at its end.
+     *
+     * @param b the class file bytes
+     * @return true if the class was instrumented
+     */
+    public static boolean isInstrumented(final byte[] b)
+    {
+        final int[] indexes = new int[1];
+        final int offset = scanConstantPool(b, MARKER_NAMES, indexes);
+        return offset > 0 && indexes[0] > 0 && hasClassAttribute(b, offset, indexes[0]);
+    }
+
+    private boolean isInstrumented(final ClassReader cr)
+    {
+        for (int i = 1, c = cr.getItemCount(); i < c; i++)
+        {
+            final int address = cr.getItem(i);
+            if (address > 0 && cr.readByte(address - 1) == 1 && equalsAscii(cr.b, address + 2, INSTRUMENTED_ATTRIBUTE)
+                    && cr.readUnsignedShort(address) == INSTRUMENTED_ATTRIBUTE.length())
+            {
+                return hasClassAttribute(cr.b, cr.header, i);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the index of the utf8 constants with the given values.
+     *
+     * @return the offset of the end of the constant pool, or -1 if it can't be read
+     */
+    private static int scanConstantPool(final byte[] b, final String[] values, final int[] indexes)
+    {
+        if (b == null || b.length < 10)
+        {
+            return -1;
+        }
+        final int count = ((b[8] & 0xFF) << 8) | (b[9] & 0xFF);
+        int address = 10;
+        for (int i = 1; i < count; i++)
+        {
+            if (address + 3 > b.length)
+            {
+                return -1;
+            }
+            switch (b[address])
+            {
+                case 1:
+                    // CONSTANT_Utf8_info
+                    final int length = ((b[address + 1] & 0xFF) << 8) | (b[address + 2] & 0xFF);
+                    for (int v = 0; v < values.length; v++)
+                    {
+                        if (indexes[v] == 0 && length == values[v].length() && equalsAscii(b, address + 3, values[v]))
+                        {
+                            indexes[v] = i;
+                        }
+                    }
+                    address += 3 + length;
+                    break;
+                case 5:
+                case 6:
+                    // long and double take two entries
+                    address += 9;
+                    i++;
+                    break;
+                case 3:
+                case 4:
+                case 9:
+                case 10:
+                case 11:
+                case 12:
+                case 17:
+                case 18:
+                    address += 5;
+                    break;
+                case 15:
+                    address += 4;
+                    break;
+                case 7:
+                case 8:
+                case 16:
+                case 19:
+                case 20:
+                    address += 3;
+                    break;
+                default:
+                    // unknown constant
+                    return -1;
+            }
+        }
+        return address;
+    }
+
+    /**
+     * Skips the header, fields and methods of the class, reading only their lengths, and checks the class attributes.
+     *
+     * @param offset    the end of the constant pool
+     * @param nameIndex the constant with the name of the attribute
+     */
+    private static boolean hasClassAttribute(final byte[] b, final int offset, final int nameIndex)
+    {
+        try
+        {
+            // access, this and super classes
+            int address = offset + 6;
+            address += 2 + 2 * readUnsignedShort(b, address);
+            // fields and methods
+            for (int members = 0; members < 2; members++)
+            {
+                final int count = readUnsignedShort(b, address);
+                address += 2;
+                for (int i = 0; i < count; i++)
+                {
+                    address = skipAttributes(b, address + 6);
+                }
+            }
+            final int count = readUnsignedShort(b, address);
+            address += 2;
+            for (int i = 0; i < count; i++)
+            {
+                if (readUnsignedShort(b, address) == nameIndex)
+                {
+                    return true;
+                }
+                address += 6 + readInt(b, address + 2);
+            }
+            return false;
+        }
+        catch (ArrayIndexOutOfBoundsException ex)
+        {
+            // truncated class file
+            return false;
+        }
+    }
+
+    private static int skipAttributes(final byte[] b, int address)
+    {
+        final int count = readUnsignedShort(b, address);
+        address += 2;
+        for (int i = 0; i < count; i++)
+        {
+            address += 6 + readInt(b, address + 2);
+        }
+        return address;
+    }
+
+    private static int readUnsignedShort(final byte[] b, final int index)
+    {
+        return ((b[index] & 0xFF) << 8) | (b[index + 1] & 0xFF);
+    }
+
+    private static int readInt(final byte[] b, final int index)
+    {
+        return ((b[index] & 0xFF) << 24) | ((b[index + 1] & 0xFF) << 16) | ((b[index + 2] & 0xFF) << 8) | (b[index + 3] & 0xFF);
+    }
+
+    /**
+     * Placeholder of a method that isn't transformed, it's copied from the class reader to the instrumented class.
+     */
+    private static class CopiedMethod extends MethodNode
+    {
+        CopiedMethod(final int access, final String name, final String descriptor, final String signature, final String[] exceptions)
+        {
+            super(Opcodes.ASM7, access, name, descriptor, signature, exceptions);
+        }
+    }
+
+    /**
+     * Flags a class directory as instrumented at build time.
+     *
+     * @param classRoot the root of the class directory
+     */
+    public static void writeInstrumentedMarker(final Path classRoot) throws IOException
+    {
+        final Path marker = classRoot.resolve(INSTRUMENTED_MARKER);
+        Files.createDirectories(marker.getParent());
+        Files.write(marker, "# classes instrumented by ea-async at build time\n".getBytes(StandardCharsets.UTF_8));
+    }
+
     boolean needsInstrumentation(final ClassReader cr)
     {
         try
         {
+            if (isInstrumented(cr))
+            {
+                return false;
+            }
             // checks the class pool for references
             // to the class Await
             // and to the method Await.await(CompletableFuture)Object
@@ -1672,6 +3412,41 @@ public class Transformer implements ClassFileTransformer
         }
     }
 
+    /**
+     * Checks the constant pool of a class file for the name of the <code>Async</code> class.
+     * Classes without it can't call <code>await</code> or <code>init</code>.
+     *
+     * @return false if the class doesn't reference <code>Async</code> or was already instrumented
+     */
+    static boolean referencesAsync(final byte[] b)
+    {
+        final int[] indexes = new int[2];
+        final int offset = scanConstantPool(b, ASYNC_AND_MARKER_NAMES, indexes);
+        if (offset < 0)
+        {
+            // let the class reader decide
+            return true;
+        }
+        // the instrumented classes keep the name of Async in the constant pool
+        return indexes[0] > 0 && (indexes[1] == 0 || !hasClassAttribute(b, offset, indexes[1]));
+    }
+
+    private static boolean equalsAscii(final byte[] b, final int offset, final String str)
+    {
+        if (offset + str.length() > b.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++)
+        {
+            if (b[offset + i] != str.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private boolean equalsUtf8(final ClassReader cr, final int pointerToUtf8Index, final String str)
     {
         int utf8_index = cr.readUnsignedShort(pointerToUtf8Index);
@@ -1709,12 +3484,16 @@ public class Transformer implements ClassFileTransformer
     {
         try
         {
-            InputStream resourceAsStream = c.getClassLoader().getResourceAsStream(Type.getInternalName(c) + ".class");
-            if (resourceAsStream == null)
+            final byte[] bytes;
+            try (InputStream resourceAsStream = c.getClassLoader().getResourceAsStream(Type.getInternalName(c) + ".class"))
             {
-                return false;
+                if (resourceAsStream == null)
+                {
+                    return false;
+                }
+                bytes = readAllBytes(resourceAsStream);
             }
-            return needsInstrumentation(new ClassReader(resourceAsStream));
+            return referencesAsync(bytes) && needsInstrumentation(new ClassReader(bytes));
         }
         catch (Throwable ex)
         {
@@ -1723,6 +3502,17 @@ public class Transformer implements ClassFileTransformer
         return false;
     }
 
+    static byte[] readAllBytes(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 1024));
+        final byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) > 0; )
+        {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
     /**
      * Sets an error listener that gets called for invalid uses of await.
      *
@@ -1733,6 +3523,207 @@ public class Transformer implements ClassFileTransformer
         this.errorListener = errorListener;
     }
 
+    public Consumer<String> getErrorListener()
+    {
+        return errorListener;
+    }
+
+    /**
+     * When enabled the live values of an async method are kept in a single {@link Continuation}
+     * object that is reused by all the suspensions of the same invocation,
+     * instead of being captured by a new lambda at each await.
+     * <p>
+     * Synchronized instance methods always use lambdas.
+     * The instrumented classes will depend on ea-async being available at runtime.
+     *
+     * @param heapFrames true to use heap frames
+     */
+    public void setHeapFrames(final boolean heapFrames)
+    {
+        this.heapFrames = heapFrames;
+    }
+
+    public boolean isHeapFrames()
+    {
+        return heapFrames;
+    }
+
+    /**
+     * When enabled the instrumented method only starts the continued method,
+     * instead of containing its own copy of the method body.
+     * <p>
+     * This halves the bytecode generated for each async method,
+     * at the cost of an extra call, and with heap frames a continuation object, for each invocation.
+     *
+     * @param compact true to generate compact async methods
+     */
+    public void setCompact(final boolean compact)
+    {
+        this.compact = compact;
+    }
+
+    public boolean isCompact()
+    {
+        return compact;
+    }
+
+    /**
+     * Continued methods larger than this have their suspension code moved to a separate method.
+     * If they are still larger and heap frames are used, the straight-line code between awaits is moved to segment methods.
+     * The error listener is notified if they are still larger, the rest of the method keeps running in the interpreter.
+     * Defaults to the hotspot <code>HugeMethodLimit</code>, larger methods are not compiled by the jit.
+     *
+     * @param methodSizeLimit the limit in bytes of bytecode
+     */
+    public void setMethodSizeLimit(final int methodSizeLimit)
+    {
+        this.methodSizeLimit = methodSizeLimit;
+    }
+
+    public int getMethodSizeLimit()
+    {
+        return methodSizeLimit;
+    }
+
+    /**
+     * Makes the async methods that use heap frames resume through continuation classes
+     * generated by the instrumentation, instead of method handles.
+     * The instrumented classes then contain no <code>invokedynamic</code> or method handle constants
+     * that would be linked at runtime, except for the synchronized instance methods that use lambdas.
+     * <p>
+     * The listener receives the internal name and the bytes of each generated class,
+     * which must be written next to the instrumented class. Only for build time instrumentation.
+     *
+     * @param continuationClassListener the listener or null to use method handles
+     */
+    public void setContinuationClassListener(final BiConsumer<String, byte[]> continuationClassListener)
+    {
+        this.continuationClassListener = continuationClassListener;
+    }
+
+    public BiConsumer<String, byte[]> getContinuationClassListener()
+    {
+        return continuationClassListener;
+    }
+
+    /**
+     * Restricts the runtime instrumentation to classes in these packages, and their sub packages.
+     * All classes are instrumented if none is set.
+     *
+     * @param packages package names, like <code>com.example</code>
+     */
+    public void setIncludes(final String... packages)
+    {
+        this.includes = toPrefixes(packages);
+    }
+
+    /**
+     * Classes in these packages, and their sub packages, are not instrumented at runtime.
+     * Excludes take precedence over includes.
+     *
+     * @param packages package names, like <code>com.example.generated</code>
+     */
+    public void setExcludes(final String... packages)
+    {
+        this.excludes = toPrefixes(packages);
+    }
+
+    private static String[] toPrefixes(final String... packages)
+    {
+        return Stream.of(packages)
+                .map(String::trim)
+                .filter(p -> !p.isEmpty())
+                .map(p -> p.replace('.', '/'))
+                .map(p -> p.endsWith("/") ? p : p + "/")
+                .toArray(String[]::new);
+    }
+
+    /**
+     * @param className the internal name of a class
+     * @return true if the include and exclude filters accept the class
+     */
+    boolean isIncluded(final String className)
+    {
+        for (String exclude : excludes)
+        {
+            if (className.startsWith(exclude))
+            {
+                return false;
+            }
+        }
+        if (includes.length == 0)
+        {
+            return true;
+        }
+        for (String include : includes)
+        {
+            if (className.startsWith(include))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates the transformer used by the runtime agent.
+     * Heap frames are opt-in, since they change the order in which deeply nested resumptions run.
+     */
+    static Transformer forRuntime()
+    {
+        return forRuntime(null);
+    }
+
+    /**
+     * Creates the transformer used by the runtime agent.
+     * Heap frames are opt-in, since they change the order in which deeply nested resumptions run.
+     *
+     * @param agentArgs the agent arguments, like <code>include=com.example,org.example;exclude=com.example.generated</code>,
+     *                  the system properties are used for the arguments that are not set
+     */
+    static Transformer forRuntime(final String agentArgs)
+    {
+        final Transformer transformer = new Transformer();
+        final Map<String, String> args = parseAgentArgs(agentArgs);
+        transformer.setHeapFrames(Boolean.parseBoolean(args.getOrDefault("heapFrames", System.getProperty(EA_ASYNC_HEAP_FRAMES))));
+        transformer.setCompact(Boolean.getBoolean(EA_ASYNC_COMPACT));
+        transformer.setIncludes(args.getOrDefault("include", System.getProperty(EA_ASYNC_INCLUDE, "")).split(","));
+        transformer.setExcludes(args.getOrDefault("exclude", System.getProperty(EA_ASYNC_EXCLUDE, "")).split(","));
+        final String cacheDir = args.getOrDefault("cacheDir", System.getProperty(EA_ASYNC_CACHE_DIR));
+        if (cacheDir != null && !cacheDir.isEmpty())
+        {
+            try
+            {
+                transformer.cache = new ClassCache(Paths.get(cacheDir), "heapFrames=" + transformer.heapFrames
+                        + ",compact=" + transformer.compact + ",methodSizeLimit=" + transformer.methodSizeLimit
+                        + ",classPath=" + ClassCache.classPathFingerprint(System.getProperty("java.class.path", "")));
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // running without the cache
+                new RuntimeException("Error opening the ea-async cache directory: " + cacheDir, e).printStackTrace();
+            }
+        }
+        return transformer;
+    }
+
+    static Map<String, String> parseAgentArgs(final String agentArgs)
+    {
+        final Map<String, String> args = new HashMap<>();
+        if (agentArgs != null)
+        {
+            for (String arg : agentArgs.split(";"))
+            {
+                final int idx = arg.indexOf('=');
+                if (idx > 0)
+                {
+                    args.put(arg.substring(0, idx).trim(), arg.substring(idx + 1).trim());
+                }
+            }
+        }
+        return args;
+    }
+
     private void notifyError(final String format, Object arg1, Object arg2)
     {
         if (errorListener != null)
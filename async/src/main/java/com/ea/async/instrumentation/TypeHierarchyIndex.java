@@ -0,0 +1,271 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Index of the class path types that are <code>CompletionStage</code>s or <code>CompletableFuture</code>s,
+ * used by the build time instrumentation instead of reading the super classes through a class loader.
+ * <p>
+ * The index reads the header of every class in the class path once, the queries are set lookups.
+ * The headers of each jar are kept while the jar is unchanged and there is enough memory,
+ * so the modules of a build share them.
+ * <p>
+ * JDK types are not indexed, other than <code>CompletableFuture</code> and <code>CompletionStage</code>
+ * they are assumed not to be completion stages.
+ */
+public class TypeHierarchyIndex
+{
+    private static final String COMPLETABLE_FUTURE = "java/util/concurrent/CompletableFuture";
+    private static final String COMPLETION_STAGE = "java/util/concurrent/CompletionStage";
+    private static final String[] NO_SUPER_TYPES = new String[0];
+
+    // super types of the classes of each jar, shared by all the indexes,
+    // softly referenced so long running builds and daemons don't keep every jar they have seen
+    private static final Map<Path, Entry> jars = new ConcurrentHashMap<>();
+
+    private final Set<String> types;
+    private final Set<String> completableFutures;
+    private final Set<String> completionStages;
+
+    private TypeHierarchyIndex(final Set<String> types, final Set<String> completableFutures, final Set<String> completionStages)
+    {
+        this.types = types;
+        this.completableFutures = completableFutures;
+        this.completionStages = completionStages;
+    }
+
+    /**
+     * Builds the index of a class path.
+     *
+     * @param classPath jars and class directories, in class path order
+     */
+    public static TypeHierarchyIndex of(final Collection<Path> classPath) throws IOException
+    {
+        // the first definition of a type wins, as in a class loader
+        final Map<String, String[]> superTypes = new HashMap<>();
+        for (Path path : classPath)
+        {
+            if (Files.isDirectory(path))
+            {
+                readDirectory(path).forEach(superTypes::putIfAbsent);
+            }
+            else if (Files.isRegularFile(path))
+            {
+                readJar(path).forEach(superTypes::putIfAbsent);
+            }
+        }
+        final Map<String, Boolean> futures = new HashMap<>();
+        final Map<String, Boolean> stages = new HashMap<>();
+        final Set<String> completableFutures = new HashSet<>();
+        final Set<String> completionStages = new HashSet<>();
+        for (String type : superTypes.keySet())
+        {
+            if (resolve(type, superTypes, futures, false))
+            {
+                completableFutures.add(type);
+            }
+            if (resolve(type, superTypes, stages, true))
+            {
+                completionStages.add(type);
+            }
+        }
+        return new TypeHierarchyIndex(new HashSet<>(superTypes.keySet()), completableFutures, completionStages);
+    }
+
+    /**
+     * @param internalName the internal name of a type
+     * @return if the type is a <code>CompletableFuture</code> subclass, or null if it's not in the index
+     */
+    public Boolean isCompletableFuture(final String internalName)
+    {
+        if (COMPLETABLE_FUTURE.equals(internalName))
+        {
+            return true;
+        }
+        return types.contains(internalName) ? completableFutures.contains(internalName) : null;
+    }
+
+    /**
+     * @param internalName the internal name of a type
+     * @return if the type implements <code>CompletionStage</code>, directly or through its super types,
+     * or null if it's not in the index
+     */
+    public Boolean isCompletionStage(final String internalName)
+    {
+        if (COMPLETABLE_FUTURE.equals(internalName) || COMPLETION_STAGE.equals(internalName))
+        {
+            return true;
+        }
+        return types.contains(internalName) ? completionStages.contains(internalName) : null;
+    }
+
+    public int size()
+    {
+        return types.size();
+    }
+
+    private static boolean resolve(final String type, final Map<String, String[]> superTypes,
+                                   final Map<String, Boolean> resolved, final boolean interfaces)
+    {
+        if (COMPLETABLE_FUTURE.equals(type) || (interfaces && COMPLETION_STAGE.equals(type)))
+        {
+            return true;
+        }
+        final Boolean known = resolved.get(type);
+        if (known != null)
+        {
+            return known;
+        }
+        final String[] supers = superTypes.get(type);
+        // breaks cycles in broken class paths
+        resolved.put(type, false);
+        boolean result = false;
+        if (supers != null)
+        {
+            // the super class comes first, followed by the interfaces
+            for (int i = 0, c = interfaces ? supers.length : Math.min(supers.length, 1); i < c && !result; i++)
+            {
+                result = supers[i] != null && resolve(supers[i], superTypes, resolved, interfaces);
+            }
+        }
+        resolved.put(type, result);
+        return result;
+    }
+
+    private static Map<String, String[]> readDirectory(final Path dir) throws IOException
+    {
+        final Map<String, String[]> superTypes = new HashMap<>();
+        final List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(dir))
+        {
+            walk.filter(p -> p.toString().endsWith(".class")).forEach(files::add);
+        }
+        for (Path file : files)
+        {
+            read(Files.readAllBytes(file), superTypes);
+        }
+        return superTypes;
+    }
+
+    private static Map<String, String[]> readJar(final Path jar) throws IOException
+    {
+        final BasicFileAttributes attributes = Files.readAttributes(jar, BasicFileAttributes.class);
+        final Entry cached = jars.get(jar);
+        final Map<String, String[]> cachedSuperTypes = cached != null ? cached.get() : null;
+        if (cachedSuperTypes != null && cached.lastModified == attributes.lastModifiedTime().toMillis() && cached.size == attributes.size())
+        {
+            return cachedSuperTypes;
+        }
+        final Map<String, String[]> superTypes = new HashMap<>();
+        try (ZipFile zip = new ZipFile(jar.toFile()))
+        {
+            for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); )
+            {
+                final ZipEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(".class") && !entry.getName().startsWith("META-INF/"))
+                {
+                    try (InputStream in = zip.getInputStream(entry))
+                    {
+                        read(in, superTypes);
+                    }
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            // not a jar
+            return superTypes;
+        }
+        // drops the entries collected by the gc
+        jars.values().removeIf(entry -> entry.get() == null);
+        jars.put(jar, new Entry(attributes.lastModifiedTime().toMillis(), attributes.size(), superTypes));
+        return superTypes;
+    }
+
+    private static void read(final InputStream in, final Map<String, String[]> superTypes) throws IOException
+    {
+        final byte[] bytes = Transformer.readAllBytes(in);
+        read(bytes, superTypes);
+    }
+
+    private static void read(final byte[] bytes, final Map<String, String[]> superTypes)
+    {
+        try
+        {
+            // only the header is read
+            final ClassReader cr = new ClassReader(bytes);
+            final String[] interfaces = cr.getInterfaces();
+            final String[] supers = interfaces.length == 0 && cr.getSuperName() == null ? NO_SUPER_TYPES : new String[interfaces.length + 1];
+            if (supers.length > 0)
+            {
+                supers[0] = cr.getSuperName();
+                System.arraycopy(interfaces, 0, supers, 1, interfaces.length);
+            }
+            superTypes.putIfAbsent(cr.getClassName(), supers);
+        }
+        catch (RuntimeException ex)
+        {
+            // ignoring invalid class files
+        }
+    }
+
+    private static final class Entry extends SoftReference<Map<String, String[]>>
+    {
+        final long lastModified;
+        final long size;
+
+        Entry(final long lastModified, final long size, final Map<String, String[]> superTypes)
+        {
+            super(superTypes);
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,526 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Zip file mapped in memory, or read into the heap, whose entries can be copied to another zip file without being recompressed.
+ * <p>
+ * Only supports the plain zip format, zip64 archives and archives larger than 2GB are rejected with a <code>ZipException</code>.
+ */
+final class ZipArchive implements Closeable
+{
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int DATA_DESCRIPTOR_FLAG = 0x08;
+    private static final int UTF8_FLAG = 0x800;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final List<Entry> entries = new ArrayList<>();
+
+    static final class Entry
+    {
+        final String name;
+        // the central directory header, including the name, extra field and comment
+        final ByteBuffer header;
+
+        Entry(final String name, final ByteBuffer header)
+        {
+            this.name = name;
+            this.header = header;
+        }
+
+        int flags()
+        {
+            return header.getShort(8) & 0xffff;
+        }
+
+        int method()
+        {
+            return header.getShort(10) & 0xffff;
+        }
+
+        /**
+         * @return the last modification time and date, in the dos format
+         */
+        int dosTime()
+        {
+            return header.getInt(12);
+        }
+
+        int compressedSize()
+        {
+            return header.getInt(20);
+        }
+
+        int size()
+        {
+            return header.getInt(24);
+        }
+
+        int localHeaderOffset()
+        {
+            return header.getInt(42);
+        }
+    }
+
+    private ZipArchive(final FileChannel channel, final ByteBuffer buffer)
+    {
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * @param map if the archive is mapped in memory, otherwise it's read into the heap.
+     *            A mapped file can't be replaced on windows until the mapping is collected.
+     */
+    static ZipArchive open(final Path path, final boolean map) throws IOException
+    {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try
+        {
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                throw new ZipException("Archive larger than 2GB: " + path);
+            }
+            final ByteBuffer buffer;
+            if (map)
+            {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            else
+            {
+                buffer = ByteBuffer.allocate((int) channel.size());
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+                {
+                    // reading the whole file
+                }
+                buffer.flip();
+            }
+            final ZipArchive archive = new ZipArchive(channel, buffer.order(ByteOrder.LITTLE_ENDIAN));
+            archive.readCentralDirectory(path);
+            return archive;
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private void readCentralDirectory(final Path path) throws ZipException
+    {
+        // the end of central directory record is followed by a comment of up to 64k
+        int end = buffer.limit() - 22;
+        final int min = Math.max(0, end - 0xffff);
+        while (end >= min && buffer.getInt(end) != END_OF_CENTRAL_DIRECTORY)
+        {
+            end--;
+        }
+        if (end < min)
+        {
+            throw new ZipException("Not a zip file: " + path);
+        }
+        final int count = buffer.getShort(end + 10) & 0xffff;
+        final int offset = buffer.getInt(end + 16);
+        if (count == 0xffff || offset == -1 || (end >= 20 && buffer.getInt(end - 20) == ZIP64_LOCATOR))
+        {
+            throw new ZipException("Zip64 archives are not supported: " + path);
+        }
+        int position = offset;
+        for (int i = 0; i < count; i++)
+        {
+            if (position < 0 || position + 46 > end || buffer.getInt(position) != CENTRAL_HEADER)
+            {
+                throw new ZipException("Invalid central directory: " + path);
+            }
+            final int nameLength = buffer.getShort(position + 28) & 0xffff;
+            final int length = 46 + nameLength + (buffer.getShort(position + 30) & 0xffff) + (buffer.getShort(position + 32) & 0xffff);
+            final ByteBuffer header = slice(position, length);
+            final byte[] name = new byte[nameLength];
+            ((ByteBuffer) header.duplicate().position(46)).get(name);
+            final Entry entry = new Entry(new String(name, StandardCharsets.UTF_8), header);
+            if (entry.compressedSize() == -1 || entry.size() == -1 || entry.localHeaderOffset() == -1)
+            {
+                throw new ZipException("Zip64 archives are not supported: " + path);
+            }
+            entries.add(entry);
+            position += length;
+        }
+    }
+
+    List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * @return the uncompressed content of the entry
+     */
+    byte[] read(final Entry entry) throws IOException
+    {
+        final ByteBuffer data = data(entry);
+        final byte[] bytes = new byte[entry.size()];
+        if (entry.method() == STORED)
+        {
+            data.get(bytes);
+            return bytes;
+        }
+        if (entry.method() != DEFLATED)
+        {
+            throw new ZipException("Unsupported compression method of " + entry.name);
+        }
+        final byte[] compressed = new byte[entry.compressedSize()];
+        data.get(compressed);
+        final Inflater inflater = new Inflater(true);
+        try
+        {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < bytes.length && !inflater.finished())
+            {
+                final int inflated = inflater.inflate(bytes, length, bytes.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != bytes.length)
+            {
+                throw new ZipException("Invalid entry size of " + entry.name);
+            }
+            return bytes;
+        }
+        catch (DataFormatException ex)
+        {
+            throw new ZipException("Invalid compressed data of " + entry.name + ": " + ex.getMessage());
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    // the compressed data of the entry, the local header can have a different extra field than the central directory
+    private ByteBuffer data(final Entry entry) throws ZipException
+    {
+        final int offset = entry.localHeaderOffset();
+        if (buffer.getInt(offset) != LOCAL_HEADER)
+        {
+            throw new ZipException("Invalid local header of " + entry.name);
+        }
+        final int start = offset + 30 + (buffer.getShort(offset + 26) & 0xffff) + (buffer.getShort(offset + 28) & 0xffff);
+        return slice(start, entry.compressedSize());
+    }
+
+    private ByteBuffer slice(final int position, final int length)
+    {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position).limit(position + length);
+        return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * Destination of the entries of a new zip file.
+     */
+    interface Output extends Closeable
+    {
+        /**
+         * Copies an entry of an archive.
+         */
+        void copy(ZipArchive archive, Entry entry) throws IOException;
+
+        /**
+         * Writes a new entry.
+         *
+         * @param dosTime the last modification time and date, in the dos format
+         */
+        void write(String name, byte[] bytes, int dosTime) throws IOException;
+    }
+
+    /**
+     * Writes a zip file, copying the entries of other archives as they are.
+     * Throws a <code>ZipException</code> when the file would need the zip64 format.
+     */
+    static final class Writer implements Output
+    {
+        private final FileChannel channel;
+        private final List<ByteBuffer> centralDirectory = new ArrayList<>();
+
+        Writer(final Path path) throws IOException
+        {
+            channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * Copies the compressed data of the entry.
+         */
+        @Override
+        public void copy(final ZipArchive archive, final Entry entry) throws IOException
+        {
+            checkCount();
+            final int offset = position();
+            final ByteBuffer data = archive.data(entry);
+            // the sizes are known, the data descriptor is not copied
+            final int flags = entry.flags() & ~DATA_DESCRIPTOR_FLAG;
+            final int nameLength = entry.header.getShort(28) & 0xffff;
+            final ByteBuffer local = ByteBuffer.allocate(30 + nameLength).order(ByteOrder.LITTLE_ENDIAN);
+            local.putInt(LOCAL_HEADER)
+                    .putShort(entry.header.getShort(6))
+                    .putShort((short) flags)
+                    .putShort((short) entry.method())
+                    .putInt(entry.dosTime())
+                    .putInt(entry.header.getInt(16))
+                    .putInt(entry.compressedSize())
+                    .putInt(entry.size())
+                    .putShort((short) nameLength)
+                    .putShort((short) 0);
+            local.put((ByteBuffer) entry.header.duplicate().position(46).limit(46 + nameLength));
+            local.flip();
+            writeFully(local);
+            writeFully(data);
+
+            final ByteBuffer central = ByteBuffer.allocate(entry.header.limit()).order(ByteOrder.LITTLE_ENDIAN);
+            central.put(entry.header.duplicate());
+            central.putShort(8, (short) flags);
+            central.putInt(42, offset);
+            central.flip();
+            centralDirectory.add(central);
+        }
+
+        /**
+         * Writes a new deflated entry.
+         *
+         * @param dosTime the last modification time and date, in the dos format
+         */
+        @Override
+        public void write(final String name, final byte[] bytes, final int dosTime) throws IOException
+        {
+            checkCount();
+            final int offset = position();
+            final CRC32 crc = new CRC32();
+            crc.update(bytes);
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            final byte[] compressed;
+            int compressedLength = 0;
+            try
+            {
+                deflater.setInput(bytes);
+                deflater.finish();
+                byte[] out = new byte[Math.max(64, bytes.length / 2)];
+                while (!deflater.finished())
+                {
+                    if (compressedLength == out.length)
+                    {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    compressedLength += deflater.deflate(out, compressedLength, out.length - compressedLength);
+                }
+                compressed = out;
+            }
+            finally
+            {
+                deflater.end();
+            }
+            final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            final ByteBuffer local = ByteBuffer.allocate(30 + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+            local.putInt(LOCAL_HEADER)
+                    .putShort((short) 20)
+                    .putShort((short) UTF8_FLAG)
+                    .putShort((short) DEFLATED)
+                    .putInt(dosTime)
+                    .putInt((int) crc.getValue())
+                    .putInt(compressedLength)
+                    .putInt(bytes.length)
+                    .putShort((short) nameBytes.length)
+                    .putShort((short) 0)
+                    .put(nameBytes);
+            local.flip();
+            writeFully(local);
+            writeFully(ByteBuffer.wrap(compressed, 0, compressedLength));
+
+            final ByteBuffer central = ByteBuffer.allocate(46 + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+            central.putInt(CENTRAL_HEADER)
+                    .putShort((short) 20)
+                    .putShort((short) 20)
+                    .putShort((short) UTF8_FLAG)
+                    .putShort((short) DEFLATED)
+                    .putInt(dosTime)
+                    .putInt((int) crc.getValue())
+                    .putInt(compressedLength)
+                    .putInt(bytes.length)
+                    .putShort((short) nameBytes.length)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putInt(0)
+                    .putInt(offset)
+                    .put(nameBytes);
+            central.flip();
+            centralDirectory.add(central);
+        }
+
+        private void checkCount() throws ZipException
+        {
+            if (centralDirectory.size() >= 0xffff - 1)
+            {
+                throw new ZipException("Zip64 archives are not supported");
+            }
+        }
+
+        private int position() throws IOException
+        {
+            final long position = channel.position();
+            if (position > 0xffffffffL - 1)
+            {
+                throw new ZipException("Zip64 archives are not supported");
+            }
+            return (int) position;
+        }
+
+        private void writeFully(final ByteBuffer bytes) throws IOException
+        {
+            while (bytes.hasRemaining())
+            {
+                channel.write(bytes);
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                final int offset = position();
+                for (ByteBuffer header : centralDirectory)
+                {
+                    writeFully(header);
+                }
+                final int size = position() - offset;
+                final ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+                end.putInt(END_OF_CENTRAL_DIRECTORY)
+                        .putShort((short) 0)
+                        .putShort((short) 0)
+                        .putShort((short) centralDirectory.size())
+                        .putShort((short) centralDirectory.size())
+                        .putInt(size)
+                        .putInt(offset)
+                        .putShort((short) 0);
+                end.flip();
+                writeFully(end);
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Writes a zip file with <code>java.util.zip</code>, recompressing the copied entries.
+     * Supports zip64, but not entries with the same name, only the first one is kept.
+     */
+    static final class StreamWriter implements Output
+    {
+        private final ZipOutputStream out;
+        private final Set<String> names = new HashSet<>();
+
+        StreamWriter(final Path path) throws IOException
+        {
+            out = new ZipOutputStream(Files.newOutputStream(path));
+        }
+
+        @Override
+        public void copy(final ZipArchive archive, final Entry entry) throws IOException
+        {
+            write(entry.name, archive.read(entry), entry.dosTime());
+        }
+
+        @Override
+        public void write(final String name, final byte[] bytes, final int dosTime) throws IOException
+        {
+            if (!names.add(name))
+            {
+                return;
+            }
+            final ZipEntry entry = new ZipEntry(name);
+            entry.setTime(javaTime(dosTime));
+            out.putNextEntry(entry);
+            out.write(bytes);
+            out.closeEntry();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+
+    static long javaTime(final int dosTime)
+    {
+        return new GregorianCalendar(((dosTime >> 25) & 0x7f) + 1980, ((dosTime >> 21) & 0x0f) - 1, (dosTime >> 16) & 0x1f,
+                (dosTime >> 11) & 0x1f, (dosTime >> 5) & 0x3f, (dosTime << 1) & 0x3e).getTimeInMillis();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.test.BaseTest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AgentFilterTest extends BaseTest
+{
+    private static final long LONG_CONSTANT = 0x123456789AL;
+    private static final double DOUBLE_CONSTANT = 1.5e300;
+
+    @Test
+    public void prefilter() throws Exception
+    {
+        assertTrue(Transformer.referencesAsync(readClass(ContinuationClassesTest.HandlerSample.class)));
+        // long and double constants take two entries
+        assertFalse(Transformer.referencesAsync(readClass(AgentFilterTest.class)));
+        assertFalse(Transformer.referencesAsync(readClass(String.class)));
+    }
+
+    @Test
+    public void filters() throws Exception
+    {
+        final String name = ContinuationClassesTest.HandlerSample.class.getName().replace('.', '/');
+        final byte[] bytes = readClass(ContinuationClassesTest.HandlerSample.class);
+
+        assertNotNull(Transformer.forRuntime("").transform(getClass().getClassLoader(), name, null, null, bytes));
+        assertNotNull(Transformer.forRuntime("include=org.example,com.ea.async").transform(getClass().getClassLoader(), name, null, null, bytes));
+        assertNull(Transformer.forRuntime("include=org.example").transform(getClass().getClassLoader(), name, null, null, bytes));
+        assertNull(Transformer.forRuntime("include=com.ea;exclude=com.ea.async.instrumentation").transform(getClass().getClassLoader(), name, null, null, bytes));
+        // package prefixes, not name prefixes
+        assertNotNull(Transformer.forRuntime("exclude=com.ea.async.instrument").transform(getClass().getClassLoader(), name, null, null, bytes));
+    }
+}
@@ -29,16 +29,30 @@
 package com.ea.async.instrumentation;
 
 import com.ea.async.instrumentation.FrameAnalyzer.ExtendedValue;
+import com.ea.async.test.ArrayVarsTest;
 import com.ea.async.test.BaseTest;
+import com.ea.async.test.ExceptionTest;
+import com.ea.async.test.LocalVarsTest;
+import com.ea.async.test.LoopTest;
+import com.ea.async.test.MultipleAwaitTest;
+import com.ea.async.test.PrimitiveTest;
+import com.ea.async.test.SynchronizedTest;
+import com.ea.async.test.TryWithResourcesTest;
 
 import org.junit.Test;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.BasicValue;
 import org.objectweb.asm.tree.analysis.Frame;
 
+import java.util.BitSet;
+
 import static org.junit.Assert.*;
 import static org.objectweb.asm.Opcodes.*;
 
@@ -188,5 +202,103 @@ public class AnalyserTest extends BaseTest
         assertEquals("java/lang/Exception", frame.getStack(0).getType().getInternalName());
     }
 
+    @Test
+    public void stackMapFramesMatchFullAnalysis() throws Exception
+    {
+        int compared = 0;
+        for (Class<?> clazz : new Class<?>[]{ LoopTest.class, ExceptionTest.class, LocalVarsTest.class, PrimitiveTest.class,
+                TryWithResourcesTest.class, ArrayVarsTest.class, MultipleAwaitTest.class, SynchronizedTest.class })
+        {
+            final ClassNode cn = new ClassNode();
+            new ClassReader(clazz.getResourceAsStream(clazz.getSimpleName() + ".class")).accept(cn, ClassReader.EXPAND_FRAMES);
+            for (MethodNode method : cn.methods)
+            {
+                final BitSet targets = new BitSet();
+                for (int i = 0; i < method.instructions.size(); i++)
+                {
+                    final AbstractInsnNode insn = method.instructions.get(i);
+                    if (insn instanceof MethodInsnNode && ((MethodInsnNode) insn).name.equals("await"))
+                    {
+                        targets.set(i);
+                    }
+                }
+                if (targets.isEmpty())
+                {
+                    continue;
+                }
+                final Frame<BasicValue>[] seeded = FrameAnalyzer.analyzeFromStackMaps(cn.name, method, targets);
+                final Frame<BasicValue>[] full = new FrameAnalyzer().analyze(cn.name, method);
+                if (seeded == null)
+                {
+                    continue;
+                }
+                for (int i = targets.nextSetBit(0); i >= 0; i = targets.nextSetBit(i + 1))
+                {
+                    assertEquals(method.name, describe(full[i]), describe(seeded[i]));
+                    compared++;
+                }
+            }
+        }
+        assertTrue(compared > 10);
+    }
+
+    @Test
+    public void stackMapFramesFallback() throws Exception
+    {
+        // monitors are only tracked by the full analysis
+        MethodNode mv = new MethodNode(ACC_PUBLIC, "apply", "(Ljava/lang/Object;)V", null, null);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitInsn(MONITORENTER);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitInsn(MONITOREXIT);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(1, 2);
+        final BitSet targets = new BitSet();
+        targets.set(2);
+        assertNull(FrameAnalyzer.analyzeFromStackMaps("com/ea/async/Bogus", mv, targets));
+
+        // branches without stack map frames
+        mv = new MethodNode(ACC_PUBLIC, "apply", "(I)I", null, null);
+        Label l0 = new Label();
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitJumpInsn(IFEQ, l0);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IRETURN);
+        mv.visitLabel(l0);
+        mv.visitInsn(ICONST_0);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(1, 2);
+        assertNull(FrameAnalyzer.analyzeFromStackMaps("com/ea/async/Bogus", mv, targets));
+
+        // straight line code doesn't need frames
+        mv = new MethodNode(ACC_PUBLIC, "apply", "(Ljava/lang/String;)Ljava/lang/Integer;", null, null);
+        mv.visitTypeInsn(NEW, "java/lang/Integer");
+        mv.visitInsn(DUP);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Integer", "<init>", "(Ljava/lang/String;)V", false);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(3, 2);
+        targets.clear();
+        targets.set(3);
+        final Frame<BasicValue>[] frames = FrameAnalyzer.analyzeFromStackMaps("com/ea/async/Bogus", mv, targets);
+        assertNotNull(frames);
+        assertEquals(3, frames[3].getStackSize());
+        assertTrue(((ExtendedValue) frames[3].getStack(0)).isUninitialized());
+        assertNull(frames[4]);
+    }
 
+    private static String describe(final Frame<BasicValue> frame)
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < frame.getLocals(); i++)
+        {
+            sb.append(frame.getLocal(i)).append(' ');
+        }
+        sb.append("| ");
+        for (int i = 0; i < frame.getStackSize(); i++)
+        {
+            sb.append(frame.getStack(i)).append(' ');
+        }
+        return sb.toString();
+    }
 }
@@ -0,0 +1,153 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.test.BaseTest;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BatchInstrumenterTest extends BaseTest
+{
+    @Test(timeout = 60_000L)
+    public void outputDoesNotDependOnThreads() throws Exception
+    {
+        final Path serial = copyTestClasses("target/batchInstrumenter/serial");
+        final Path parallel = copyTestClasses("target/batchInstrumenter/parallel");
+        // not a class file
+        Files.write(serial.resolve("com/ea/async/test/Broken.class"), new byte[]{ 1, 2, 3 });
+        Files.write(parallel.resolve("com/ea/async/test/Broken.class"), new byte[]{ 1, 2, 3 });
+
+        final List<String> serialErrors = new ArrayList<>();
+        final List<BatchInstrumenter.Result> serialResults = instrument(serial, 1, serialErrors);
+        final List<String> parallelErrors = new ArrayList<>();
+        final List<BatchInstrumenter.Result> parallelResults = instrument(parallel, 4, parallelErrors);
+
+        assertEquals(serialErrors, parallelErrors);
+        assertEquals(serialResults.size(), parallelResults.size());
+        int instrumented = 0;
+        for (int i = 0; i < serialResults.size(); i++)
+        {
+            final BatchInstrumenter.Result serialResult = serialResults.get(i);
+            final BatchInstrumenter.Result parallelResult = parallelResults.get(i);
+            assertEquals(serial.relativize(serialResult.getSource()), parallel.relativize(parallelResult.getSource()));
+            assertEquals(serialResult.isInstrumented(), parallelResult.isInstrumented());
+            assertEquals(serialResult.getGeneratedClasses(), parallelResult.getGeneratedClasses());
+            if (serialResult.getSource().endsWith("Broken.class"))
+            {
+                assertNotNull(serialResult.getException());
+                assertNotNull(parallelResult.getException());
+                assertFalse(serialResult.isInstrumented());
+            }
+            else
+            {
+                assertNull(parallelResult.getException());
+            }
+            if (serialResult.isInstrumented())
+            {
+                instrumented++;
+                assertArrayEquals(Files.readAllBytes(serialResult.getTarget()), Files.readAllBytes(parallelResult.getTarget()));
+                for (String generated : serialResult.getGeneratedClasses())
+                {
+                    assertArrayEquals(Files.readAllBytes(serial.resolve(generated + ".class")), Files.readAllBytes(parallel.resolve(generated + ".class")));
+                }
+            }
+        }
+        assertTrue(instrumented > 10);
+    }
+
+    @Test(timeout = 60_000L)
+    public void linkageErrorsOnlyFailTheirFile() throws Exception
+    {
+        final Path dir = copyTestClasses("target/batchInstrumenter/linkage");
+        final Transformer transformer = new Transformer();
+        final boolean heapFrames = transformer.isHeapFrames();
+        final BatchInstrumenter instrumenter = new BatchInstrumenter(transformer);
+        instrumenter.setContinuationClasses(true);
+        // the return types that aren't CompletableFutures are read through the class loader
+        instrumenter.setClassLoader(new ClassLoader(null)
+        {
+            @Override
+            public InputStream getResourceAsStream(final String name)
+            {
+                throw new NoClassDefFoundError(name);
+            }
+        });
+        final List<BatchInstrumenter.Result> results;
+        try (Stream<Path> files = Files.walk(dir))
+        {
+            results = instrumenter.instrument(files.filter(p -> p.toString().endsWith(".class")).sorted().collect(Collectors.toList()));
+        }
+        assertTrue(results.stream().anyMatch(r -> r.getException() != null));
+        assertTrue(results.stream().anyMatch(BatchInstrumenter.Result::isInstrumented));
+        // the options of the transformer are restored
+        assertEquals(heapFrames, transformer.isHeapFrames());
+    }
+
+    private List<BatchInstrumenter.Result> instrument(final Path dir, final int threads, final List<String> errors) throws Exception
+    {
+        final Transformer transformer = new Transformer();
+        transformer.setErrorListener(errors::add);
+        final BatchInstrumenter instrumenter = new BatchInstrumenter(transformer);
+        instrumenter.setThreads(threads);
+        instrumenter.setContinuationClasses(true);
+        try (Stream<Path> files = Files.walk(dir))
+        {
+            return instrumenter.instrument(files
+                    .filter(p -> p.toString().endsWith(".class"))
+                    .sorted()
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    private Path copyTestClasses(final String path) throws Exception
+    {
+        final Path dir = Paths.get(path);
+        FileUtils.deleteDirectory(dir.toFile());
+        final Path packageDir = dir.resolve("com/ea/async/test");
+        FileUtils.copyDirectory(Paths.get("target/test-classes/com/ea/async/test").toFile(), packageDir.toFile());
+        return dir;
+    }
+}
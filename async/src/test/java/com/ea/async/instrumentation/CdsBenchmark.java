@@ -0,0 +1,197 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.ea.async.Async.await;
+
+/**
+ * Compares the startup time of an application instrumented by the runtime agent
+ * with the same application instrumented at build time, with and without an AppCDS archive.
+ * <p>
+ * Classes transformed at load time can't be archived, the pre-instrumented jar with continuation classes
+ * has nothing left to generate at runtime, so all its classes can be archived.
+ * <p>
+ * Not a unit test, run it with the test classpath after <code>mvn package</code>:
+ * <code>java com.ea.async.instrumentation.CdsBenchmark [path-to-java] [ea-async-jar]</code>.
+ * The archives need a jdk with <code>-XX:ArchiveClassesAtExit</code> (13 or later), otherwise they are skipped.
+ */
+public class CdsBenchmark
+{
+    private static final int RUNS = 10;
+
+    /**
+     * The application being started.
+     */
+    public static class App
+    {
+        public static void main(String[] args)
+        {
+            final CompletableFuture<String> future = new CompletableFuture<>();
+            final CompletableFuture<Integer> result = new App().count(future, 100);
+            ForkJoinPool.commonPool().execute(() -> future.complete("a"));
+            if (result.join() != 100)
+            {
+                throw new AssertionError();
+            }
+        }
+
+        CompletableFuture<Integer> count(final CompletableFuture<String> future, final int times)
+        {
+            int count = 0;
+            for (int i = 0; i < times; i++)
+            {
+                count += await(length(future));
+            }
+            return CompletableFuture.completedFuture(count);
+        }
+
+        CompletableFuture<Integer> length(final CompletableFuture<String> future)
+        {
+            return CompletableFuture.completedFuture(await(future).length());
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        final String java = args.length > 0 ? args[0] : Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        final File asyncJar = args.length > 1 ? new File(args[1]) : findAsyncJar();
+        final String slf4j = new File(Logger.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+
+        final Path dir = Paths.get("target/cds-benchmark");
+        FileUtils.deleteDirectory(dir.toFile());
+        final Path classes = dir.resolve("classes");
+        final String appName = App.class.getName().replace('.', '/');
+        final Path appClass = classes.resolve(appName + ".class");
+        Files.createDirectories(appClass.getParent());
+        Files.write(appClass, IOUtils.toByteArray(CdsBenchmark.class.getResourceAsStream("/" + appName + ".class")));
+        final File plainJar = jar(classes, dir.resolve("plain.jar"));
+
+        if (new Main().doMain(new String[]{ "-continuationClasses", classes.toString() }) != 0)
+        {
+            throw new IllegalStateException("Error instrumenting");
+        }
+        final File instrumentedJar = jar(classes, dir.resolve("instrumented.jar"));
+
+        final String sep = File.pathSeparator;
+        final String plainCp = plainJar + sep + asyncJar + sep + slf4j;
+        final String instrumentedCp = instrumentedJar + sep + asyncJar + sep + slf4j;
+        final String agent = "-javaagent:" + asyncJar;
+
+        report("runtime agent", java, agent, "-cp", plainCp, App.class.getName());
+        report("pre-instrumented", java, "-cp", instrumentedCp, App.class.getName());
+
+        final Path agentArchive = dir.resolve("agent.jsa");
+        final Path instrumentedArchive = dir.resolve("instrumented.jsa");
+        // the jvm refuses to archive with agents unless explicitly allowed, and then leaves out the transformed classes
+        final String allowAgent = "-XX:+AllowArchivingWithJavaAgent";
+        if (run(java, "-XX:+UnlockDiagnosticVMOptions", allowAgent, "-XX:ArchiveClassesAtExit=" + agentArchive, agent, "-cp", plainCp, App.class.getName()) == 0
+                && run(java, "-XX:ArchiveClassesAtExit=" + instrumentedArchive, "-cp", instrumentedCp, App.class.getName()) == 0)
+        {
+            report("runtime agent + AppCDS", java, "-XX:+UnlockDiagnosticVMOptions", allowAgent, "-XX:SharedArchiveFile=" + agentArchive, agent, "-cp", plainCp, App.class.getName());
+            report("pre-instrumented + AppCDS", java, "-XX:SharedArchiveFile=" + instrumentedArchive, "-cp", instrumentedCp, App.class.getName());
+        }
+        else
+        {
+            System.out.println("AppCDS dynamic archives not supported by " + java + ", skipped");
+        }
+    }
+
+    private static void report(final String name, final String... command) throws Exception
+    {
+        // the first run warms up the file system caches
+        run(command);
+        final long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++)
+        {
+            final long start = System.nanoTime();
+            if (run(command) != 0)
+            {
+                throw new IllegalStateException("Failed: " + String.join(" ", command));
+            }
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        System.out.printf("%-28s median %4d ms, min %4d ms%n", name, times[RUNS / 2] / 1_000_000, times[0] / 1_000_000);
+    }
+
+    private static int run(final String... command) throws IOException, InterruptedException
+    {
+        final File log = new File("target/cds-benchmark/run.log");
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start().waitFor();
+    }
+
+    private static File jar(final Path root, final Path jar) throws IOException
+    {
+        final List<Path> files;
+        try (Stream<Path> walk = Files.walk(root))
+        {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar.toFile())))
+        {
+            for (Path file : files)
+            {
+                out.putNextEntry(new JarEntry(root.relativize(file).toString().replace(File.separatorChar, '/')));
+                out.write(Files.readAllBytes(file));
+                out.closeEntry();
+            }
+        }
+        return jar.toFile();
+    }
+
+    private static File findAsyncJar()
+    {
+        final File[] jars = new File("target").listFiles((d, name) -> name.startsWith("ea-async-")
+                && name.endsWith(".jar") && !name.endsWith("-sources.jar") && !name.endsWith("-javadoc.jar"));
+        if (jars == null || jars.length == 0)
+        {
+            throw new IllegalStateException("ea-async jar not found, run mvn package or pass its path");
+        }
+        return jars[0];
+    }
+}
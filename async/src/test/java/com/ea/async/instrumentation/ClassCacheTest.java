@@ -0,0 +1,97 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.test.BaseTest;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClassCacheTest extends BaseTest
+{
+    @Test
+    public void servesCachedClasses() throws Exception
+    {
+        final Path dir = Paths.get("target/class-cache");
+        FileUtils.deleteDirectory(dir.toFile());
+        final String name = ContinuationClassesTest.HandlerSample.class.getName().replace('.', '/');
+        final byte[] original = readClass(ContinuationClassesTest.HandlerSample.class);
+
+        final byte[] instrumented = Transformer.forRuntime("cacheDir=" + dir).transform(getClass().getClassLoader(), name, null, null, original);
+        assertEquals(1, Files.list(dir).count());
+        final Path entry = Files.list(dir).findFirst().get();
+        assertArrayEquals(instrumented, Files.readAllBytes(entry));
+
+        // a new jvm would read the cached bytes
+        final byte[] marker = { 1, 2, 3 };
+        Files.write(entry, marker);
+        assertArrayEquals(marker, Transformer.forRuntime("cacheDir=" + dir).transform(getClass().getClassLoader(), name, null, null, original));
+    }
+
+    @Test
+    public void keyDependsOnTheOptions() throws Exception
+    {
+        final Path dir = Paths.get("target/class-cache-key");
+        final byte[] bytes = { 1, 2, 3 };
+        final ClassCache cache = new ClassCache(dir, "a");
+        assertEquals(cache.key(bytes, "l"), new ClassCache(dir, "a").key(bytes, "l"));
+        assertNotEquals(cache.key(bytes, "l"), new ClassCache(dir, "b").key(bytes, "l"));
+        assertNotEquals(cache.key(bytes, "l"), cache.key(new byte[]{ 1, 2 }, "l"));
+        assertNotEquals(cache.key(bytes, "l"), cache.key(bytes, "m"));
+        assertTrue(cache.key(bytes, "l").endsWith(".class"));
+    }
+
+    @Test
+    public void fingerprintsChangeWithTheJars() throws Exception
+    {
+        final Path jar = Paths.get("target/class-cache-fingerprint/lib.jar");
+        Files.createDirectories(jar.getParent());
+        Files.write(jar, new byte[]{ 1, 2, 3 });
+        final String classPath = jar + File.pathSeparator + "target/classes";
+        final String fingerprint = ClassCache.classPathFingerprint(classPath);
+        assertEquals(fingerprint, ClassCache.classPathFingerprint(classPath));
+        Files.write(jar, new byte[]{ 1, 2, 3, 4 });
+        assertNotEquals(fingerprint, ClassCache.classPathFingerprint(classPath));
+
+        final ClassLoader loader = getClass().getClassLoader();
+        assertNotEquals(ClassCache.loaderFingerprint(loader, getClass().getProtectionDomain()),
+                ClassCache.loaderFingerprint(loader, Test.class.getProtectionDomain()));
+        assertNotEquals(ClassCache.loaderFingerprint(loader, null), ClassCache.loaderFingerprint(null, null));
+    }
+}
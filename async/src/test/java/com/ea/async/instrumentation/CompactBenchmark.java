@@ -0,0 +1,106 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.test.BaseTest;
+
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Compares the default and the compact layout of async methods.
+ * <p>
+ * Not a unit test, run it with the test classpath:
+ * <code>java com.ea.async.instrumentation.CompactBenchmark</code>
+ */
+public class CompactBenchmark extends BaseTest
+{
+    private static final int WARMUP = 200_000;
+    private static final int ITERATIONS = 2_000_000;
+
+    public static void main(String[] args) throws Exception
+    {
+        final CompactBenchmark benchmark = new CompactBenchmark();
+        withAndWithoutHeapFrames(heapFrames ->
+        {
+            for (boolean compact : new boolean[]{ false, true })
+            {
+                benchmark.run(heapFrames, compact);
+            }
+        });
+    }
+
+    private void run(final boolean heapFrames, final boolean compact) throws Exception
+    {
+        final byte[] bytes = transform(CompactTest.HandlerSample.class, transformer ->
+        {
+            transformer.setHeapFrames(heapFrames);
+            transformer.setCompact(compact);
+        });
+        int codeSize = 0;
+        for (Map.Entry<String, Integer> entry : MethodSizes.read(bytes).entrySet())
+        {
+            codeSize += entry.getValue();
+        }
+        final CompactTest.Handler handler = createClass(CompactTest.Handler.class, bytes);
+        final CompletableFuture<String> done = CompletableFuture.completedFuture("b");
+        long hash = 0;
+
+        for (int i = 0; i < WARMUP; i++)
+        {
+            hash += handler.handle("a", 2, done).join().length();
+            hash += suspended(handler);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            hash += handler.handle("a", 2, done).join().length();
+        }
+        final long synchronous = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            hash += suspended(handler);
+        }
+        final long suspending = System.nanoTime() - start;
+
+        System.out.printf("heapFrames=%-5s compact=%-5s class=%5d bytes code=%5d bytes sync=%6.1f ns/op suspended=%6.1f ns/op (%d)%n",
+                heapFrames, compact, bytes.length, codeSize,
+                synchronous / (double) ITERATIONS, suspending / (double) ITERATIONS, hash);
+    }
+
+    private int suspended(final CompactTest.Handler handler)
+    {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        final CompletableFuture<String> result = handler.handle("a", 2, future);
+        future.complete("b");
+        return result.join().length();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.Task;
+import com.ea.async.test.BaseTest;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import static com.ea.async.Async.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompactTest extends BaseTest
+{
+    public interface Handler
+    {
+        CompletableFuture<String> handle(String prefix, int count, CompletableFuture<String> future);
+    }
+
+    public static class HandlerSample implements Handler
+    {
+        @Deprecated
+        @Override
+        public CompletableFuture<String> handle(final String prefix, final int count, final CompletableFuture<String> future)
+        {
+            if (prefix == null)
+            {
+                throw new IllegalArgumentException();
+            }
+            String result = prefix;
+            for (int i = 0; i < count; i++)
+            {
+                result += await(future);
+            }
+            return CompletableFuture.completedFuture(result);
+        }
+    }
+
+    public static class TaskSample implements AsyncFunction<CompletableFuture<String>, String>
+    {
+        @Override
+        public Task<String> apply(final CompletableFuture<String> future)
+        {
+            return Task.fromValue(await(future) + "!");
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void entryStartsTheContinuedMethod() throws Exception
+    {
+        withAndWithoutHeapFrames(heapFrames ->
+        {
+            final byte[] bytes = transform(HandlerSample.class, compact(heapFrames));
+            final ClassNode cn = new ClassNode();
+            new ClassReader(bytes).accept(cn, 0);
+            final MethodNode entry = cn.methods.stream().filter(m -> m.name.equals("handle")).findFirst().get();
+            boolean callsContinued = false;
+            for (AbstractInsnNode insn = entry.instructions.getFirst(); insn != null; insn = insn.getNext())
+            {
+                if (insn instanceof MethodInsnNode)
+                {
+                    final MethodInsnNode methodInsn = (MethodInsnNode) insn;
+                    assertFalse(methodInsn.name, methodInsn.name.equals("join") || methodInsn.name.equals("isDone"));
+                    callsContinued |= methodInsn.name.equals("async$handle");
+                }
+            }
+            assertTrue(callsContinued);
+
+            final Handler handler = createClass(Handler.class, bytes);
+            assertTrue(handler.getClass().getMethod("handle", String.class, int.class, CompletableFuture.class).isAnnotationPresent(Deprecated.class));
+            assertEquals("a", handler.handle("a", 0, null).join());
+            assertEquals("abb", handler.handle("a", 2, CompletableFuture.completedFuture("b")).join());
+
+            final CompletableFuture<String> future = getBlockedFuture("c");
+            final CompletableFuture<String> result = handler.handle("a", 3, future);
+            assertFalse(result.isDone());
+            completeFutures();
+            assertEquals("accc", result.join());
+        });
+    }
+
+    @Test(timeout = 10_000L)
+    public void exceptionsBeforeTheFirstAwaitAreThrown() throws Exception
+    {
+        withAndWithoutHeapFrames(heapFrames ->
+        {
+            final Handler handler = createClass(Handler.class, transform(HandlerSample.class, compact(heapFrames)));
+            try
+            {
+                handler.handle(null, 1, getBlockedFuture("a"));
+                fail();
+            }
+            catch (IllegalArgumentException ex)
+            {
+                // expected
+            }
+        });
+    }
+
+    @Test(timeout = 10_000L)
+    @SuppressWarnings("unchecked")
+    public void keepsTheReturnType() throws Exception
+    {
+        withAndWithoutHeapFrames(heapFrames ->
+        {
+            final AsyncFunction<CompletableFuture<String>, String> function = createClass(AsyncFunction.class, transform(TaskSample.class, compact(heapFrames)));
+            assertEquals("a!", function.apply(CompletableFuture.completedFuture("a")).join());
+            final CompletableFuture<String> future = getBlockedFuture("b");
+            final Task<String> result = function.apply(future);
+            assertFalse(result.isDone());
+            completeFutures();
+            assertEquals("b!", result.join());
+        });
+    }
+
+    private static Consumer<Transformer> compact(final boolean heapFrames)
+    {
+        return transformer ->
+        {
+            transformer.setHeapFrames(heapFrames);
+            transformer.setCompact(true);
+        };
+    }
+}
@@ -38,5 +38,6 @@ public class ConstantTest
     public void testSignalingConstant()
     {
         assertEquals("Signaling constants must match", Transformer.EA_ASYNC_RUNNING, InitializeAsync.EA_ASYNC_RUNNING);
+        assertEquals("Marker constants must match", Transformer.INSTRUMENTED_MARKER, InitializeAsync.INSTRUMENTED_MARKER);
     }
 }
@@ -0,0 +1,160 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.Task;
+import com.ea.async.test.BaseTest;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static com.ea.async.Async.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ContinuationClassesTest extends BaseTest
+{
+    public interface Handler
+    {
+        CompletableFuture<String> handle(int count, CompletableFuture<String> future);
+    }
+
+    public static class HandlerSample implements Handler
+    {
+        @Override
+        public CompletableFuture<String> handle(final int count, final CompletableFuture<String> future)
+        {
+            String result = "";
+            for (int i = 0; i < count; i++)
+            {
+                result += await(future);
+            }
+            return CompletableFuture.completedFuture(result);
+        }
+    }
+
+    public static class TaskSample implements AsyncFunction<CompletableFuture<String>, String>
+    {
+        @Override
+        public Task<String> apply(final CompletableFuture<String> future)
+        {
+            final String first = await(future);
+            return Task.fromValue(first + await(future));
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void resumesThroughTheGeneratedClass() throws Exception
+    {
+        final Map<String, byte[]> classes = transformWithContinuationClasses(HandlerSample.class);
+        assertTrue(classes.containsKey(HandlerSample.class.getName() + "$async$handle"));
+        assertNoRuntimeLinkage(classes.get(HandlerSample.class.getName()));
+
+        final Handler handler = (Handler) load(classes, HandlerSample.class).newInstance();
+        assertEquals("aa", handler.handle(2, CompletableFuture.completedFuture("a")).join());
+        final CompletableFuture<String> future = getBlockedFuture("b");
+        final CompletableFuture<String> result = handler.handle(3, future);
+        assertFalse(result.isDone());
+        completeFutures();
+        assertEquals("bbb", result.join());
+    }
+
+    @Test(timeout = 10_000L)
+    @SuppressWarnings("unchecked")
+    public void keepsTheReturnType() throws Exception
+    {
+        final Map<String, byte[]> classes = transformWithContinuationClasses(TaskSample.class);
+        assertNoRuntimeLinkage(classes.get(TaskSample.class.getName()));
+
+        final AsyncFunction<CompletableFuture<String>, String> function = (AsyncFunction<CompletableFuture<String>, String>) load(classes, TaskSample.class).newInstance();
+        final CompletableFuture<String> future = getBlockedFuture("a");
+        final Task<String> result = function.apply(future);
+        assertFalse(result.isDone());
+        completeFutures();
+        assertEquals("aa", result.join());
+    }
+
+    private void assertNoRuntimeLinkage(final byte[] bytes)
+    {
+        final ClassNode cn = new ClassNode();
+        new ClassReader(bytes).accept(cn, 0);
+        for (MethodNode method : cn.methods)
+        {
+            for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext())
+            {
+                assertFalse(method.name, insn.getType() == AbstractInsnNode.INVOKE_DYNAMIC_INSN);
+                assertFalse(method.name, insn instanceof LdcInsnNode && ((LdcInsnNode) insn).cst instanceof Handle);
+            }
+        }
+    }
+
+    private Map<String, byte[]> transformWithContinuationClasses(final Class<?> clazz) throws Exception
+    {
+        final Map<String, byte[]> classes = new HashMap<>();
+        classes.put(clazz.getName(), transform(clazz, transformer ->
+        {
+            transformer.setHeapFrames(true);
+            transformer.setContinuationClassListener((name, bytes) -> classes.put(name.replace('/', '.'), bytes));
+        }));
+        return classes;
+    }
+
+    private Class<?> load(final Map<String, byte[]> classes, final Class<?> clazz) throws Exception
+    {
+        // the continuation classes must be in the same package and class loader
+        final ClassLoader loader = new ClassLoader(getClass().getClassLoader())
+        {
+            @Override
+            protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException
+            {
+                synchronized (getClassLoadingLock(name))
+                {
+                    final byte[] bytes = classes.get(name);
+                    if (bytes == null)
+                    {
+                        return super.loadClass(name, resolve);
+                    }
+                    Class<?> loaded = findLoadedClass(name);
+                    return loaded != null ? loaded : defineClass(name, bytes, 0, bytes.length);
+                }
+            }
+        };
+        return loader.loadClass(clazz.getName());
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.Task;
+import com.ea.async.test.BaseTest;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.ea.async.Async.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HeapFramesTest extends BaseTest
+{
+    public interface FutureFunction
+    {
+        CompletableFuture<String> apply(CompletableFuture<String> future);
+    }
+
+    public static class LoopSample implements AsyncFunction<List<CompletableFuture<Integer>>, String>
+    {
+        @Override
+        public Task<String> apply(final List<CompletableFuture<Integer>> futures)
+        {
+            long l = 1;
+            double d = 0.5;
+            float f = 0.25f;
+            String str = "";
+            for (CompletableFuture<Integer> future : futures)
+            {
+                int i = await(future);
+                l += i;
+                d += i;
+                f += i;
+                str += ":" + i;
+            }
+            return Task.fromValue(str + " " + l + " " + d + " " + f);
+        }
+    }
+
+    public static class TryCatchSample implements FutureFunction
+    {
+        @Override
+        public CompletableFuture<String> apply(final CompletableFuture<String> future)
+        {
+            String str = "a";
+            try
+            {
+                str += await(future);
+            }
+            catch (RuntimeException ex)
+            {
+                str += "!" + ex.getCause().getMessage();
+            }
+            return CompletableFuture.completedFuture(str + await(CompletableFuture.completedFuture("b")));
+        }
+    }
+
+    public interface Layered
+    {
+        CompletableFuture<String> inner(CompletableFuture<String> future);
+
+        CompletableFuture<String> outer(CompletableFuture<String> future);
+    }
+
+    public static class LayeredSample implements Layered
+    {
+        @Override
+        public CompletableFuture<String> inner(final CompletableFuture<String> future)
+        {
+            return CompletableFuture.completedFuture(await(future) + "?");
+        }
+
+        @Override
+        public CompletableFuture<String> outer(final CompletableFuture<String> future)
+        {
+            return CompletableFuture.completedFuture(await(future) + "!");
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void linksContinuationsDirectly() throws Exception
+    {
+        final Layered layered = createClass(Layered.class, transformWithHeapFrames(LayeredSample.class));
+        final CompletableFuture<String> blocked = getBlockedFuture("x");
+        final CompletableFuture<String> inner = layered.inner(blocked);
+        assertTrue(((Object) inner) instanceof Continuation.Result);
+        final CompletableFuture<String> outer = layered.outer(inner);
+        // the outer continuation is linked to the inner result without a dependent stage
+        assertEquals(0, inner.getNumberOfDependents());
+        completeFutures();
+        assertEquals("x?", inner.join());
+        assertEquals("x?!", outer.join());
+
+        // completing the result from outside also resumes the linked continuation
+        final CompletableFuture<String> inner2 = layered.inner(new CompletableFuture<>());
+        final CompletableFuture<String> outer2 = layered.outer(inner2);
+        inner2.complete("z");
+        assertEquals("z!", outer2.join());
+
+        // completeAsync doesn't call complete in JDK 9 and later
+        final CompletableFuture<String> inner3 = layered.inner(new CompletableFuture<>());
+        final CompletableFuture<String> outer3 = layered.outer(inner3);
+        ((Continuation.Result) (Object) inner3).completeAsync(() -> "w");
+        assertEquals("w!", outer3.join());
+    }
+
+    @Test(timeout = 10_000L)
+    public void linkedContinuationsGetTheSameException() throws Exception
+    {
+        final Layered layered = createClass(Layered.class, transformWithHeapFrames(LayeredSample.class));
+        final CompletableFuture<String> inner = layered.inner(new CompletableFuture<>());
+        // the first is linked, the second uses whenComplete
+        final CompletableFuture<String> linked = layered.outer(inner);
+        final CompletableFuture<String> dependent = layered.outer(inner);
+        final CompletionException exception = new CompletionException(new IllegalStateException("x"));
+        inner.completeExceptionally(exception);
+
+        final Throwable linkedException = linked.handle((v, ex) -> ex).join();
+        final Throwable dependentException = dependent.handle((v, ex) -> ex).join();
+        assertEquals(dependentException.getClass(), linkedException.getClass());
+        assertEquals(dependentException.getCause(), linkedException.getCause());
+    }
+
+    public static class RelaySample implements AsyncBiFunction<CompletableFuture<Integer>, CompletableFuture<Integer>, Integer>
+    {
+        @Override
+        public Task<Integer> apply(final CompletableFuture<Integer> awaited, final CompletableFuture<Integer> completed)
+        {
+            final int value = await(awaited);
+            completed.complete(value + 1);
+            return Task.fromValue(value);
+        }
+    }
+
+    @Test(timeout = 30_000L)
+    public void deepResumptionsDoNotGrowTheStack() throws Exception
+    {
+        final int count = 100_000;
+        final byte[] bytes = transformWithHeapFrames(RelaySample.class);
+        @SuppressWarnings("unchecked")
+        final AsyncBiFunction<CompletableFuture<Integer>, CompletableFuture<Integer>, Integer> relay = createClass(AsyncBiFunction.class, bytes);
+        final List<CompletableFuture<Integer>> futures = IntStream.range(0, count + 1)
+                .mapToObj(i -> new CompletableFuture<Integer>())
+                .collect(Collectors.toList());
+        // each resumed invocation completes the future awaited by the next one
+        for (int i = 0; i < count; i++)
+        {
+            relay.apply(futures.get(i), futures.get(i + 1));
+        }
+        futures.get(0).complete(0);
+
+        assertTrue(futures.get(count).isDone());
+        assertEquals((Integer) count, futures.get(count).join());
+    }
+
+    public static class CompleteAndJoinSample implements AsyncBiFunction<CompletableFuture<Integer>, CompletableFuture<Integer>, Integer>
+    {
+        @Override
+        public Task<Integer> apply(final CompletableFuture<Integer> awaited, final CompletableFuture<Integer> completed)
+        {
+            await(awaited);
+            final Task<Integer> dependent = increment(completed);
+            completed.complete(1);
+            // the dependent invocation is resumed by complete
+            return Task.fromValue(dependent.join());
+        }
+
+        private Task<Integer> increment(final CompletableFuture<Integer> future)
+        {
+            return Task.fromValue(await(future) + 1);
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void completeAndJoinInsideResumedInvocation() throws Exception
+    {
+        @SuppressWarnings("unchecked")
+        final AsyncBiFunction<CompletableFuture<Integer>, CompletableFuture<Integer>, Integer> function =
+                createClass(AsyncBiFunction.class, transformWithHeapFrames(CompleteAndJoinSample.class));
+        final CompletableFuture<Integer> awaited = new CompletableFuture<>();
+        final Task<Integer> result = function.apply(awaited, new CompletableFuture<>());
+        awaited.complete(0);
+        assertEquals((Integer) 2, result.join());
+    }
+
+    @Test(timeout = 10_000L)
+    public void loopWithPrimitives() throws Exception
+    {
+        final byte[] bytes = transformWithHeapFrames(LoopSample.class);
+        assertNoLambdas(bytes);
+        final List<CompletableFuture<Integer>> futures = IntStream.range(0, 5)
+                .mapToObj(i -> getBlockedFuture((Integer) i))
+                .collect(Collectors.toList());
+        @SuppressWarnings("unchecked")
+        final Task<String> task = createClass(AsyncFunction.class, bytes).apply(futures);
+        assertFalse(task.isDone());
+        completeFutures();
+        assertTrue(task.isDone());
+        assertEquals(":0:1:2:3:4 11 10.5 10.25", task.join());
+    }
+
+    @Test(timeout = 10_000L)
+    public void completedFutures() throws Exception
+    {
+        final byte[] bytes = transformWithHeapFrames(LoopSample.class);
+        final List<CompletableFuture<Integer>> futures = IntStream.range(0, 3)
+                .mapToObj(CompletableFuture::completedFuture)
+                .collect(Collectors.toList());
+        @SuppressWarnings("unchecked")
+        final Task<String> task = createClass(AsyncFunction.class, bytes).apply(futures);
+        assertEquals(":0:1:2 4 3.5 3.25", task.join());
+    }
+
+    @Test(timeout = 10_000L)
+    public void tryCatch() throws Exception
+    {
+        final byte[] bytes = transformWithHeapFrames(TryCatchSample.class);
+        assertNoLambdas(bytes);
+
+        final CompletableFuture<String> blocked = getBlockedFuture("x");
+        final CompletableFuture<String> res1 = createClass(FutureFunction.class, bytes).apply(blocked);
+        assertFalse(res1.isDone());
+        completeFutures();
+        assertEquals("axb", res1.join());
+
+        final CompletableFuture<String> failing = new CompletableFuture<>();
+        final CompletableFuture<String> res2 = createClass(FutureFunction.class, bytes).apply(failing);
+        assertFalse(res2.isDone());
+        failing.completeExceptionally(new RuntimeException("y"));
+        assertEquals("a!yb", res2.join());
+    }
+
+    private byte[] transformWithHeapFrames(final Class<?> clazz) throws Exception
+    {
+        final byte[] bytes = transform(clazz, transformer -> transformer.setHeapFrames(true));
+        DevDebug.debugSaveTrace(clazz.getName().replace('.', '/'), bytes);
+        return bytes;
+    }
+
+    private void assertNoLambdas(final byte[] bytes)
+    {
+        final ClassNode cn = new ClassNode();
+        new ClassReader(bytes).accept(cn, 0);
+        for (MethodNode mn : cn.methods)
+        {
+            for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext())
+            {
+                if (insn instanceof InvokeDynamicInsnNode)
+                {
+                    fail("Unexpected invokedynamic in " + mn.name);
+                }
+            }
+        }
+    }
+}
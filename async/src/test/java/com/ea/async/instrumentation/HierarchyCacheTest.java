@@ -0,0 +1,71 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HierarchyCacheTest
+{
+    @Test
+    public void cachesPerClassLoader()
+    {
+        final HierarchyCache cache = new HierarchyCache();
+        final ClassLoader loader1 = new URLClassLoader(new URL[0]);
+        final ClassLoader loader2 = new URLClassLoader(new URL[0]);
+        assertNull(cache.get(loader1, "a/Future"));
+        cache.put(loader1, "a/Future", true);
+        cache.put(null, "a/Future", false);
+        assertTrue(cache.get(loader1, "a/Future"));
+        assertEquals(false, cache.get(null, "a/Future"));
+        assertNull(cache.get(loader2, "a/Future"));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getClassLoaderCount());
+    }
+
+    @Test(timeout = 10_000L)
+    public void dropsCollectedClassLoaders() throws Exception
+    {
+        final HierarchyCache cache = new HierarchyCache();
+        cache.put(new URLClassLoader(new URL[0]), "a/Future", true);
+        assertEquals(1, cache.getClassLoaderCount());
+        while (cache.getClassLoaderCount() > 0)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.test.BaseTest;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class InstrumentedJarCacheTest extends BaseTest
+{
+    @Test(timeout = 60_000L)
+    public void jarsAreInstrumentedOnce() throws Exception
+    {
+        final Path cacheDir = Paths.get("target/instrumentedJarCache");
+        FileUtils.deleteDirectory(cacheDir.toFile());
+        final Path jar = JarInstrumentationTest.createJar(Paths.get("target/instrumentedJarCache-input/lib-1.0.jar"));
+
+        final List<String> dependencies = Arrays.asList("com.example:base:jar:1.0", "com.example:util:jar:2.0");
+        final InstrumentedJarCache cache = new InstrumentedJarCache(cacheDir, "heapFrames=false");
+        final Path cached = cache.instrument("com.example", "lib", "1.0", jar, dependencies, new BatchInstrumenter(new Transformer()));
+        assertTrue(cached.startsWith(cacheDir.resolve("com.example/lib/1.0")));
+        assertTrue(cached.getFileName().toString().startsWith("lib-1.0-"));
+        try (ZipFile zipFile = new ZipFile(cached.toFile()))
+        {
+            assertNotNull(zipFile.getEntry(Transformer.INSTRUMENTED_MARKER));
+        }
+
+        // not instrumented again
+        final BatchInstrumenter failing = new BatchInstrumenter(new Transformer())
+        {
+            @Override
+            public List<Result> instrumentJar(final Path jar, final Path output)
+            {
+                throw new AssertionError("instrumented again");
+            }
+        };
+        final long modified = Files.getLastModifiedTime(cached).toMillis();
+        assertEquals(cached, cache.instrument("com.example", "lib", "1.0", jar, dependencies, failing));
+        assertEquals(modified, Files.getLastModifiedTime(cached).toMillis());
+        // by another project, with the dependencies in another order
+        assertEquals(cached, new InstrumentedJarCache(cacheDir, "heapFrames=false").instrument("com.example", "lib", "1.0", jar,
+                Arrays.asList("com.example:util:jar:2.0", "com.example:base:jar:1.0"), failing));
+
+        // other coordinates, options or dependencies are cached separately
+        assertNotEquals(cached, cache.instrument("com.example", "other", "1.0", jar, dependencies, new BatchInstrumenter(new Transformer())));
+        final InstrumentedJarCache heapFrames = new InstrumentedJarCache(cacheDir, "heapFrames=true");
+        assertNotEquals(cached, heapFrames.instrument("com.example", "lib", "1.0", jar, dependencies, new BatchInstrumenter(new Transformer())));
+        final Path otherDependencies = cache.instrument("com.example", "lib", "1.0", jar,
+                Arrays.asList("com.example:base:jar:1.1", "com.example:util:jar:2.0"), new BatchInstrumenter(new Transformer()));
+        assertNotEquals(cached, otherDependencies);
+        try (Stream<Path> files = Files.list(cached.getParent()))
+        {
+            assertEquals(3, files.count());
+        }
+    }
+
+    @Test(timeout = 60_000L)
+    public void unusedJarsAreEvicted() throws Exception
+    {
+        final Path cacheDir = Paths.get("target/instrumentedJarCacheEviction");
+        FileUtils.deleteDirectory(cacheDir.toFile());
+        final Path jar = JarInstrumentationTest.createJar(Paths.get("target/instrumentedJarCache-input/lib-1.0.jar"));
+        final InstrumentedJarCache cache = new InstrumentedJarCache(cacheDir, "heapFrames=false");
+        final long expired = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(InstrumentedJarCache.MAX_UNUSED_DAYS + 1);
+
+        final Path unused = cache.instrument("com.example", "lib", "0.9", jar, Collections.emptyList(), new BatchInstrumenter(new Transformer()));
+        final Path used = cache.instrument("com.example", "lib", "1.0", jar, Collections.emptyList(), new BatchInstrumenter(new Transformer()));
+        Files.setLastModifiedTime(unused, FileTime.fromMillis(expired));
+        Files.setLastModifiedTime(used, FileTime.fromMillis(expired));
+        // using a jar refreshes its time
+        assertEquals(used, cache.instrument("com.example", "lib", "1.0", jar, Collections.emptyList(), new BatchInstrumenter(new Transformer())));
+
+        final Path added = cache.instrument("com.example", "lib", "1.1", jar, Collections.emptyList(), new BatchInstrumenter(new Transformer()));
+        assertTrue(Files.exists(added));
+        assertTrue(Files.exists(used));
+        assertFalse(Files.exists(unused));
+    }
+}
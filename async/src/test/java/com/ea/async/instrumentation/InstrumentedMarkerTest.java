@@ -0,0 +1,129 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.test.BaseTest;
+
+import org.junit.Test;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ByteVector;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.concurrent.CompletableFuture;
+
+import static com.ea.async.Async.await;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InstrumentedMarkerTest extends BaseTest
+{
+    public static class Sample
+    {
+        public CompletableFuture<String> concat(final CompletableFuture<String> a, final CompletableFuture<String> b)
+        {
+            return CompletableFuture.completedFuture(await(a) + await(b));
+        }
+    }
+
+    private static class Marker extends Attribute
+    {
+        Marker()
+        {
+            super(Transformer.INSTRUMENTED_ATTRIBUTE);
+        }
+
+        @Override
+        protected ByteVector write(final ClassWriter classWriter, final byte[] code, final int codeLength, final int maxStack, final int maxLocals)
+        {
+            return new ByteVector(0);
+        }
+    }
+
+    @Test
+    public void instrumentedClassesAreMarked() throws Exception
+    {
+        final byte[] original = readClass(Sample.class);
+        assertFalse(Transformer.isInstrumented(original));
+
+        final Transformer transformer = new Transformer();
+        final byte[] bytes = transformer.transform(getClass().getClassLoader(), new ClassReader(original));
+        assertNotNull(bytes);
+        assertTrue(Transformer.isInstrumented(bytes));
+        assertFalse(Transformer.referencesAsync(bytes));
+        assertFalse(transformer.needsInstrumentation(new ClassReader(bytes)));
+        assertNull(transformer.transform(getClass().getClassLoader(), "x", null, null, bytes));
+        assertNull(transformer.transform(getClass().getClassLoader(), new ClassReader(bytes)));
+        // the attributes come before the members of the class
+        final boolean[] visited = new boolean[2];
+        new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM7)
+        {
+            @Override
+            public void visitAttribute(final Attribute attribute)
+            {
+                visited[0] = Transformer.INSTRUMENTED_ATTRIBUTE.equals(attribute.type) && !visited[1];
+            }
+
+            @Override
+            public MethodVisitor visitMethod(final int access, final String name, final String descriptor, final String signature, final String[] exceptions)
+            {
+                visited[1] = true;
+                return null;
+            }
+        }, 0);
+        assertTrue(visited[0]);
+    }
+
+    @Test
+    public void markedClassesAreNotInstrumentedAgain() throws Exception
+    {
+        final byte[] original = readClass(Sample.class);
+        // the marker is the last attribute, as if another tool had rewritten the class
+        final ClassWriter cw = new ClassWriter(0);
+        new ClassReader(original).accept(new ClassVisitor(Opcodes.ASM7, cw)
+        {
+            @Override
+            public void visitEnd()
+            {
+                super.visitAttribute(new Marker());
+                super.visitEnd();
+            }
+        }, 0);
+        final byte[] marked = cw.toByteArray();
+        assertTrue(Transformer.isInstrumented(marked));
+        assertFalse(Transformer.referencesAsync(marked));
+        assertTrue(mentionsAwait(new ClassReader(marked)));
+        assertNull(new Transformer().transform(getClass().getClassLoader(), new ClassReader(marked)));
+    }
+}
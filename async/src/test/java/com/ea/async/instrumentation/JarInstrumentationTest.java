@@ -0,0 +1,235 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.test.BaseTest;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JarInstrumentationTest extends BaseTest
+{
+    private static final byte[] README = "not a class".getBytes(StandardCharsets.UTF_8);
+
+    @Test(timeout = 60_000L)
+    public void jarToJar() throws Exception
+    {
+        final Path jar = createJar(Paths.get("target/jarInstrumentation/input.jar"));
+        final Path outputDir = Paths.get("target/jarInstrumentation/output");
+        Files.deleteIfExists(outputDir.resolve("input.jar"));
+
+        assertEquals(0, new Main().doMain(new String[]{ "-continuationClasses", "-d", outputDir.toString(), jar.toString() }));
+        final Path output = outputDir.resolve("input.jar");
+
+        int instrumented = 0;
+        int copied = 0;
+        try (ZipFile in = new ZipFile(jar.toFile()); ZipFile out = new ZipFile(output.toFile()))
+        {
+            for (ZipEntry entry : Collections.list(in.entries()))
+            {
+                final ZipEntry outEntry = out.getEntry(entry.getName());
+                assertNotNull(entry.getName(), outEntry);
+                final byte[] original = read(in, entry);
+                final byte[] bytes = read(out, outEntry);
+                if (entry.getName().endsWith(".class") && Transformer.referencesAsync(original))
+                {
+                    assertFalse(entry.getName(), mentionsAwait(new ClassReader(bytes)));
+                    instrumented++;
+                }
+                else
+                {
+                    // copied without being recompressed
+                    assertArrayEquals(original, bytes);
+                    assertEquals(entry.getMethod(), outEntry.getMethod());
+                    assertEquals(entry.getCompressedSize(), outEntry.getCompressedSize());
+                    assertEquals(entry.getCrc(), outEntry.getCrc());
+                    copied++;
+                }
+            }
+            assertTrue(instrumented > 10);
+            assertTrue(copied > 1);
+            assertNotNull(out.getEntry(Transformer.INSTRUMENTED_MARKER));
+            // the continuation classes are added next to the instrumented classes
+            assertTrue(Collections.list(out.entries()).stream().anyMatch(e -> e.getName().contains("async$")));
+        }
+
+        // instrumenting again doesn't change it
+        final byte[] first = Files.readAllBytes(output);
+        assertEquals(0, new Main().doMain(new String[]{ "-continuationClasses", output.toString() }));
+        assertArrayEquals(first, Files.readAllBytes(output));
+    }
+
+    @Test(timeout = 60_000L)
+    public void jarsWithTheSameNameFail() throws Exception
+    {
+        final Path first = createJar(Paths.get("target/jarInstrumentation/first/lib.jar"));
+        final Path second = createJar(Paths.get("target/jarInstrumentation/second/lib.jar"));
+        final Path outputDir = Paths.get("target/jarInstrumentation/sameName");
+        Files.deleteIfExists(outputDir.resolve("lib.jar"));
+
+        assertEquals(1, new Main().doMain(new String[]{ "-d", outputDir.toString(), first.toString(), second.toString() }));
+        assertFalse(Files.exists(outputDir.resolve("lib.jar")));
+    }
+
+    @Test(timeout = 60_000L)
+    public void sameOutputAsClassFiles() throws Exception
+    {
+        final Path jar = createJar(Paths.get("target/jarInstrumentation/inPlace.jar"));
+        final BatchInstrumenter instrumenter = new BatchInstrumenter(new Transformer());
+        final List<BatchInstrumenter.Result> results = instrumenter.instrumentJar(jar, jar);
+        try (ZipFile zipFile = new ZipFile(jar.toFile()))
+        {
+            for (BatchInstrumenter.Result result : results)
+            {
+                assertNull(result.getException());
+                if (result.isInstrumented())
+                {
+                    assertEquals(jar, result.getTarget());
+                    final byte[] original = IOUtils.toByteArray(getClass().getResourceAsStream("/" + result.getEntry()));
+                    final byte[] expected = new Transformer().instrument(getClass().getClassLoader(), new ByteArrayInputStream(original));
+                    assertArrayEquals(expected, read(zipFile, zipFile.getEntry(result.getEntry())));
+                }
+            }
+        }
+    }
+
+    @Test(timeout = 60_000L)
+    public void signaturesAreRemovedAndDuplicatesKept() throws Exception
+    {
+        final Path jar = Paths.get("target/jarInstrumentation/signed.jar");
+        Files.createDirectories(jar.getParent());
+        final String name = InstrumentedMarkerTest.Sample.class.getName().replace('.', '/') + ".class";
+        try (ZipArchive.Writer writer = new ZipArchive.Writer(jar))
+        {
+            writer.write("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8), 0);
+            writer.write("META-INF/APP.SF", README, 0);
+            writer.write("META-INF/APP.RSA", README, 0);
+            writer.write("README.txt", README, 0);
+            writer.write("README.txt", "second".getBytes(StandardCharsets.UTF_8), 0);
+            writer.write(name, IOUtils.toByteArray(getClass().getResourceAsStream("/" + name)), 0);
+        }
+        final Path output = Paths.get("target/jarInstrumentation/signed-output.jar");
+        new BatchInstrumenter(new Transformer()).instrumentJar(jar, output);
+        try (ZipArchive archive = ZipArchive.open(output, false))
+        {
+            final List<String> names = archive.getEntries().stream().map(e -> e.name).collect(Collectors.toList());
+            assertTrue(names.contains("META-INF/MANIFEST.MF"));
+            assertFalse(names.contains("META-INF/APP.SF"));
+            assertFalse(names.contains("META-INF/APP.RSA"));
+            assertEquals(2, names.stream().filter("README.txt"::equals).count());
+        }
+    }
+
+    @Test(timeout = 120_000L)
+    public void tooManyEntriesAreWrittenAsZip64() throws Exception
+    {
+        final Path jar = Paths.get("target/jarInstrumentation/large.jar");
+        Files.createDirectories(jar.getParent());
+        final String name = InstrumentedMarkerTest.Sample.class.getName().replace('.', '/') + ".class";
+        try (ZipArchive.Writer writer = new ZipArchive.Writer(jar))
+        {
+            writer.write(name, IOUtils.toByteArray(getClass().getResourceAsStream("/" + name)), 0);
+            // the most entries of a plain zip file, the marker doesn't fit
+            for (int i = 1; i < 0xffff - 1; i++)
+            {
+                writer.write("r/" + i, README, 0);
+            }
+        }
+        final Path output = Paths.get("target/jarInstrumentation/large-output.jar");
+        final List<BatchInstrumenter.Result> results = new BatchInstrumenter(new Transformer()).instrumentJar(jar, output);
+        assertTrue(results.get(0).isInstrumented());
+        try (ZipFile zipFile = new ZipFile(output.toFile()))
+        {
+            assertEquals(0xffff, zipFile.size());
+            assertNotNull(zipFile.getEntry(Transformer.INSTRUMENTED_MARKER));
+        }
+    }
+
+    static Path createJar(final Path jar) throws Exception
+    {
+        Files.createDirectories(jar.getParent());
+        final Path classes = Paths.get("target/test-classes");
+        final List<Path> files;
+        try (Stream<Path> stream = Files.walk(classes.resolve("com/ea/async/test")))
+        {
+            files = stream.filter(p -> p.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+        }
+        try (OutputStream os = Files.newOutputStream(jar); ZipOutputStream out = new ZipOutputStream(os))
+        {
+            final ZipEntry stored = new ZipEntry("README.txt");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(README.length);
+            final CRC32 crc = new CRC32();
+            crc.update(README);
+            stored.setCrc(crc.getValue());
+            out.putNextEntry(stored);
+            out.write(README);
+            out.closeEntry();
+            for (Path file : files)
+            {
+                out.putNextEntry(new ZipEntry(classes.relativize(file).toString().replace('\\', '/')));
+                out.write(Files.readAllBytes(file));
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    private static byte[] read(final ZipFile zipFile, final ZipEntry entry) throws Exception
+    {
+        try (InputStream in = zipFile.getInputStream(entry))
+        {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
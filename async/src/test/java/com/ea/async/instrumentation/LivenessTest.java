@@ -0,0 +1,91 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.Task;
+import com.ea.async.test.BaseTest;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.concurrent.CompletableFuture;
+
+import static com.ea.async.Async.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+public class LivenessTest extends BaseTest
+{
+    public static class DeadLocalSample implements AsyncFunction<CompletableFuture<String>, String>
+    {
+        @Override
+        public Task<String> apply(final CompletableFuture<String> future)
+        {
+            byte[] buffer = new byte[1024];
+            int length = buffer.length;
+            String str = await(future);
+            for (int i = 0; i < 3; i++)
+            {
+                long[] temp = new long[i + 1];
+                str += temp.length;
+                str += await(future);
+            }
+            return Task.fromValue(str + length);
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void deadLocalsAreNotSaved() throws Exception
+    {
+        final byte[] bytes = transform(DeadLocalSample.class);
+
+        final ClassNode cn = new ClassNode();
+        new ClassReader(bytes).accept(cn, 0);
+        MethodNode continued = null;
+        for (MethodNode mn : cn.methods)
+        {
+            if (mn.name.startsWith("async$"))
+            {
+                continued = mn;
+            }
+        }
+        assertNotNull(continued);
+        assertFalse(continued.desc, continued.desc.contains("[B"));
+        assertFalse(continued.desc, continued.desc.contains("[J"));
+
+        final CompletableFuture<String> future = getBlockedFuture("x");
+        @SuppressWarnings("unchecked")
+        final Task<String> task = createClass(AsyncFunction.class, bytes).apply(future);
+        completeFutures();
+        assertEquals("x1x2x3x1024", task.join());
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.test.BaseTest;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static com.ea.async.Async.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MethodSizeLimitTest extends BaseTest
+{
+    public interface Router
+    {
+        CompletableFuture<String> route(String path, int count, CompletableFuture<String> future);
+    }
+
+    public static class RouterSample implements Router
+    {
+        @Override
+        public CompletableFuture<String> route(final String path, final int count, final CompletableFuture<String> future)
+        {
+            final String first = await(future);
+            long total = 0;
+            final StringBuilder sb = new StringBuilder(path);
+            for (int i = 0; i < count; i++)
+            {
+                sb.append(await(future));
+                total += i;
+            }
+            try
+            {
+                sb.append(await(future));
+            }
+            catch (RuntimeException ex)
+            {
+                sb.append("error");
+            }
+            return CompletableFuture.completedFuture(first + sb + total);
+        }
+    }
+
+    public interface Handler
+    {
+        CompletableFuture<String> handle(String path, int count, Supplier<CompletableFuture<String>> calls);
+    }
+
+    public static class HandlerSample implements Handler
+    {
+        @Override
+        public CompletableFuture<String> handle(final String path, final int count, final Supplier<CompletableFuture<String>> calls)
+        {
+            final String user = await(calls.get());
+            final String session = user + await(calls.get());
+            final long total = count + (long) session.length();
+            final String body = session + await(calls.get()) + total;
+            // the code after this await has branches, it stays in the continuation method
+            final String suffix = body.isEmpty() ? "" : await(calls.get());
+            return CompletableFuture.completedFuture(path + body + suffix);
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void outlinesTheSuspensionAboveTheLimit() throws Exception
+    {
+        withAndWithoutHeapFrames(heapFrames ->
+        {
+            final List<String> errors = new ArrayList<>();
+            final byte[] bytes = transform(RouterSample.class, limit(heapFrames, 1, errors));
+            assertTrue(methodNames(bytes).contains("suspend$route$continued"));
+            // still above the limit
+            assertEquals(1, errors.size());
+            assertTrue(errors.get(0), errors.get(0).contains("RouterSample.route"));
+
+            final Router router = createClass(Router.class, bytes);
+            assertEquals("a/aaa1", router.route("/", 2, CompletableFuture.completedFuture("a")).join());
+            final CompletableFuture<String> future = getBlockedFuture("b");
+            final CompletableFuture<String> result = router.route("/", 3, future);
+            assertFalse(result.isDone());
+            completeFutures();
+            assertEquals("b/bbbb3", result.join());
+        });
+    }
+
+    @Test(timeout = 10_000L)
+    public void splitsTheCodeBetweenAwaitsWithHeapFrames() throws Exception
+    {
+        withAndWithoutHeapFrames(heapFrames ->
+        {
+            final List<String> errors = new ArrayList<>();
+            final byte[] bytes = transform(HandlerSample.class, limit(heapFrames, 1, errors));
+            final List<String> names = methodNames(bytes);
+            assertEquals(heapFrames, names.contains("async$handle$segment1"));
+            assertEquals(heapFrames, names.contains("async$handle$segment2"));
+            assertFalse(names.contains("async$handle$segment3"));
+            assertFalse(names.contains("async$handle$segment4"));
+            assertEquals(heapFrames, names.contains("suspend$handle$segment"));
+            assertEquals(1, errors.size());
+
+            final Handler handler = createClass(Handler.class, bytes);
+            assertEquals("/aaa5a", handler.handle("/", 3, () -> CompletableFuture.completedFuture("a")).join());
+            // suspends at each await
+            final CompletableFuture<String> result = handler.handle("/", 3, () -> getBlockedFuture("b"));
+            assertFalse(result.isDone());
+            completeFutures();
+            assertEquals("/bbb5b", result.join());
+        });
+    }
+
+    @Test(timeout = 10_000L)
+    public void splitMethodsStayBelowTheLimit() throws Exception
+    {
+        final Map<String, Integer> sizes = MethodSizes.read(transform(HandlerSample.class, limit(true, MethodSizes.HUGE_METHOD_LIMIT, new ArrayList<>())));
+        final int limit = sizes.get("async$handle(Lcom/ea/async/instrumentation/Continuation;)V") / 2;
+        final List<String> errors = new ArrayList<>();
+        final byte[] bytes = transform(HandlerSample.class, limit(true, limit, errors));
+        assertEquals(0, errors.size());
+        assertTrue(methodNames(bytes).contains("async$handle$segment1"));
+        for (Map.Entry<String, Integer> entry : MethodSizes.read(bytes).entrySet())
+        {
+            if (entry.getKey().startsWith("async$"))
+            {
+                assertTrue(entry.getKey() + ": " + entry.getValue(), entry.getValue() <= limit);
+            }
+        }
+
+        final Handler handler = createClass(Handler.class, bytes);
+        final CompletableFuture<String> result = handler.handle("/", 1, () -> getBlockedFuture("c"));
+        completeFutures();
+        assertEquals("/ccc3c", result.join());
+    }
+
+    @Test
+    public void smallMethodsAreNotChanged() throws Exception
+    {
+        withAndWithoutHeapFrames(heapFrames ->
+        {
+            final List<String> errors = new ArrayList<>();
+            final byte[] bytes = transform(RouterSample.class, limit(heapFrames, MethodSizes.HUGE_METHOD_LIMIT, errors));
+            assertFalse(methodNames(bytes).contains("suspend$route$continued"));
+            assertEquals(0, errors.size());
+        });
+    }
+
+    @Test
+    public void sizeBoundIsAboveTheCodeSize() throws Exception
+    {
+        final byte[] bytes = transform(RouterSample.class, limit(false, MethodSizes.HUGE_METHOD_LIMIT, new ArrayList<>()));
+        final Map<String, Integer> sizes = MethodSizes.read(bytes);
+        final ClassNode cn = new ClassNode();
+        new ClassReader(bytes).accept(cn, 0);
+        for (MethodNode method : cn.methods)
+        {
+            final int size = sizes.get(method.name + method.desc);
+            final int bound = Transformer.maxCodeSize(method);
+            assertTrue(method.name + ": " + bound + " < " + size, bound >= size);
+        }
+    }
+
+    private List<String> methodNames(final byte[] bytes)
+    {
+        final ClassNode cn = new ClassNode();
+        new ClassReader(bytes).accept(cn, 0);
+        final List<String> names = new ArrayList<>();
+        cn.methods.forEach(m -> names.add(m.name));
+        return names;
+    }
+
+    private static Consumer<Transformer> limit(final boolean heapFrames, final int methodSizeLimit, final List<String> errors)
+    {
+        return transformer ->
+        {
+            transformer.setHeapFrames(heapFrames);
+            transformer.setMethodSizeLimit(methodSizeLimit);
+            transformer.setErrorListener(errors::add);
+        };
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.test.BaseTest;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NativeImageTest extends BaseTest
+{
+    @Test
+    public void writesReflectConfig() throws Exception
+    {
+        final String name = ContinuationClassesTest.HandlerSample.class.getName().replace('.', '/');
+        final Path root = Paths.get("target/classes-native");
+        final Path path = root.resolve(name + ".class");
+        Files.createDirectories(path.getParent());
+        Files.write(path, IOUtils.toByteArray(getClass().getResourceAsStream("/" + name + ".class")));
+        Files.deleteIfExists(root.resolve(NativeImageMetadata.REFLECT_CONFIG));
+
+        // in place, the metadata goes to the root of the class directory
+        assertEquals(0, new Main().doMain(new String[]{ "-nativeImage", path.toString() }));
+        assertTrue(Files.exists(path.resolveSibling(path.getFileName().toString().replace(".class", "$async$handle.class"))));
+        final String config = new String(Files.readAllBytes(root.resolve(NativeImageMetadata.REFLECT_CONFIG)), StandardCharsets.UTF_8);
+        assertTrue(config, config.contains("\"name\": \"" + name.replace('/', '.') + "$async$handle\""));
+
+        // already instrumented, the existing entries are kept
+        assertEquals(0, new Main().doMain(new String[]{ "-nativeImage", root.toString() }));
+        assertEquals(config, new String(Files.readAllBytes(root.resolve(NativeImageMetadata.REFLECT_CONFIG)), StandardCharsets.UTF_8));
+    }
+}
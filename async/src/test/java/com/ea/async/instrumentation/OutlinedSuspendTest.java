@@ -0,0 +1,114 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.test.BaseTest;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static com.ea.async.Async.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutlinedSuspendTest extends BaseTest
+{
+    public interface FutureFunction
+    {
+        CompletableFuture<String> apply(CompletableFuture<String> future);
+    }
+
+    public static class CacheSample implements FutureFunction
+    {
+        @Override
+        public CompletableFuture<String> apply(final CompletableFuture<String> future)
+        {
+            final String value = await(future);
+            final String other = await(future);
+            return CompletableFuture.completedFuture(value + other + "!");
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void suspensionIsOutlined() throws Exception
+    {
+        withAndWithoutHeapFrames(heapFrames ->
+        {
+            final byte[] bytes = transform(CacheSample.class, t -> t.setHeapFrames(heapFrames));
+            final ClassNode cn = new ClassNode();
+            new ClassReader(bytes).accept(cn, 0);
+            final MethodNode replacement = cn.methods.stream()
+                    .filter(m -> m.name.equals("apply") && m.desc.equals("(Ljava/util/concurrent/CompletableFuture;)Ljava/util/concurrent/CompletableFuture;"))
+                    .findFirst().get();
+            for (AbstractInsnNode insn = replacement.instructions.getFirst(); insn != null; insn = insn.getNext())
+            {
+                assertFalse(insn.getType() == AbstractInsnNode.INVOKE_DYNAMIC_INSN);
+                if (insn instanceof MethodInsnNode)
+                {
+                    final MethodInsnNode methodInsn = (MethodInsnNode) insn;
+                    assertFalse(methodInsn.name, methodInsn.name.equals("thenCompose") || methodInsn.name.equals("exceptionally"));
+                    assertFalse(methodInsn.owner.equals(Continuation.NAME));
+                }
+            }
+            assertNotNull(cn.methods.stream().filter(m -> m.name.startsWith("suspend$apply")).findFirst().orElse(null));
+
+            final Map<String, Integer> sizes = MethodSizes.read(bytes);
+            final int size = sizes.get("apply(Ljava/util/concurrent/CompletableFuture;)Ljava/util/concurrent/CompletableFuture;");
+            assertTrue("size: " + size, size <= MethodSizes.FREQ_INLINE_SIZE);
+
+            final FutureFunction function = createClass(FutureFunction.class, bytes);
+            assertEquals("aa!", function.apply(CompletableFuture.completedFuture("a")).join());
+            final CompletableFuture<String> future = getBlockedFuture("b");
+            final CompletableFuture<String> result = function.apply(future);
+            assertFalse(result.isDone());
+            completeFutures();
+            assertEquals("bb!", result.join());
+        });
+    }
+
+    @Test
+    public void readsMethodSizes() throws Exception
+    {
+        final byte[] bytes = readClass(CacheSample.class);
+        final ClassNode cn = new ClassNode();
+        new ClassReader(bytes).accept(cn, 0);
+        final Map<String, Integer> sizes = MethodSizes.read(bytes);
+        assertEquals(cn.methods.size(), sizes.size());
+        assertTrue(sizes.get("<init>()V") > 0);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreInstrumentedTest
+{
+    @Test
+    public void skipsTheAgentWhenTheMarkerIsVisible() throws Exception
+    {
+        final Path instrumented = Files.createDirectories(Paths.get("target/pre-instrumented/a"));
+        final Path plain = Files.createDirectories(Paths.get("target/pre-instrumented/b"));
+        Files.deleteIfExists(plain.resolve(InitializeAsync.INSTRUMENTED_MARKER));
+        copyClass(ContinuationClassesTest.HandlerSample.class, plain);
+        Transformer.writeInstrumentedMarker(instrumented);
+
+        final ClassLoader loader = new URLClassLoader(new URL[]{ instrumented.toUri().toURL(), plain.toUri().toURL() }, null);
+        assertTrue(InitializeAsync.isPreInstrumented(loader));
+        // no marker at all
+        final ClassLoader plainLoader = new URLClassLoader(new URL[]{ plain.toUri().toURL() }, null);
+        assertFalse(InitializeAsync.isPreInstrumented(plainLoader));
+        assertFalse(InitializeAsync.isPreInstrumented(null));
+    }
+
+    @Test
+    public void instrumentedJarsHaveTheMarker() throws Exception
+    {
+        final String name = ContinuationClassesTest.HandlerSample.class.getName().replace('.', '/') + ".class";
+        final Path plainJar = Paths.get("target/pre-instrumented/plain.jar");
+        Files.createDirectories(plainJar.getParent());
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(plainJar)))
+        {
+            out.putNextEntry(new ZipEntry(name));
+            out.write(IOUtils.toByteArray(getClass().getResourceAsStream("/" + name)));
+        }
+        assertFalse(InitializeAsync.isPreInstrumented(new URLClassLoader(new URL[]{ plainJar.toUri().toURL() }, null)));
+
+        final Path instrumentedJar = Paths.get("target/pre-instrumented/instrumented.jar");
+        new BatchInstrumenter(new Transformer()).instrumentJar(plainJar, instrumentedJar);
+        assertTrue(InitializeAsync.isPreInstrumented(new URLClassLoader(new URL[]{ instrumentedJar.toUri().toURL() }, null)));
+    }
+
+    @Test
+    public void mainWritesTheMarker() throws Exception
+    {
+        final Path root = Paths.get("target/pre-instrumented/main");
+        final Path path = copyClass(ContinuationClassesTest.HandlerSample.class, root);
+        Files.deleteIfExists(root.resolve(InitializeAsync.INSTRUMENTED_MARKER));
+
+        // only one of the classes of the directory
+        new Main().doMain(new String[]{ path.toString() });
+        assertFalse(Files.exists(root.resolve(InitializeAsync.INSTRUMENTED_MARKER)));
+
+        new Main().doMain(new String[]{ root.toString() });
+        assertTrue(Files.exists(root.resolve(InitializeAsync.INSTRUMENTED_MARKER)));
+    }
+
+    private Path copyClass(final Class<?> clazz, final Path root) throws Exception
+    {
+        final String name = clazz.getName().replace('.', '/');
+        final Path path = root.resolve(name + ".class");
+        Files.createDirectories(path.getParent());
+        Files.copy(getClass().getResourceAsStream("/" + name + ".class"), path, StandardCopyOption.REPLACE_EXISTING);
+        return path;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.Task;
+import com.ea.async.test.BaseTest;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static com.ea.async.Async.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TailAwaitTest extends BaseTest
+{
+    public interface FutureFunction
+    {
+        CompletableFuture<String> apply(CompletableFuture<String> future);
+    }
+
+    public static class TailSample implements FutureFunction
+    {
+        @Override
+        public CompletableFuture<String> apply(final CompletableFuture<String> future)
+        {
+            return CompletableFuture.completedFuture(await(future));
+        }
+    }
+
+    public static class TailAfterSuspensionSample implements FutureFunction
+    {
+        @Override
+        public CompletableFuture<String> apply(final CompletableFuture<String> future)
+        {
+            final String first = await(future);
+            return CompletableFuture.completedFuture(await(CompletableFuture.supplyAsync(() -> first + "b")));
+        }
+    }
+
+    public static class TryBlockSample implements FutureFunction
+    {
+        @Override
+        public CompletableFuture<String> apply(final CompletableFuture<String> future)
+        {
+            try
+            {
+                return CompletableFuture.completedFuture(await(future));
+            }
+            catch (RuntimeException ex)
+            {
+                return CompletableFuture.completedFuture("error");
+            }
+        }
+    }
+
+    public static class TaskSample implements AsyncFunction<CompletableFuture<String>, String>
+    {
+        @Override
+        public Task<String> apply(final CompletableFuture<String> future)
+        {
+            return Task.fromValue(await(future));
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void returnsTheAwaitedFuture() throws Exception
+    {
+        withAndWithoutHeapFrames(heapFrames ->
+        {
+            final FutureFunction function = createClass(FutureFunction.class, transform(TailSample.class, t -> t.setHeapFrames(heapFrames)));
+            final CompletableFuture<String> future = new CompletableFuture<>();
+            final CompletableFuture<String> result = function.apply(future);
+            assertSame(future, result);
+            future.complete("a");
+            assertEquals("a", result.join());
+
+            assertEquals("c", function.apply(CompletableFuture.completedFuture("c")).join());
+        });
+    }
+
+    @Test(timeout = 10_000L)
+    public void tailAwaitAfterSuspension() throws Exception
+    {
+        withAndWithoutHeapFrames(heapFrames ->
+        {
+            final FutureFunction function = createClass(FutureFunction.class, transform(TailAfterSuspensionSample.class, t -> t.setHeapFrames(heapFrames)));
+            final CompletableFuture<String> future = getBlockedFuture("a");
+            final CompletableFuture<String> result = function.apply(future);
+            assertFalse(result.isDone());
+            completeFutures();
+            assertEquals("ab", result.join());
+        });
+    }
+
+    @Test(timeout = 10_000L)
+    public void awaitInsideTryBlockStillSuspends() throws Exception
+    {
+        withAndWithoutHeapFrames(heapFrames ->
+        {
+            final FutureFunction function = createClass(FutureFunction.class, transform(TryBlockSample.class, t -> t.setHeapFrames(heapFrames)));
+            final CompletableFuture<String> future = new CompletableFuture<>();
+            final CompletableFuture<String> result = function.apply(future);
+            assertNotSame(future, result);
+            future.completeExceptionally(new RuntimeException());
+            assertEquals("error", result.join());
+        });
+    }
+
+    @Test(timeout = 10_000L)
+    @SuppressWarnings("unchecked")
+    public void adaptsToTheReturnType() throws Exception
+    {
+        withAndWithoutHeapFrames(heapFrames ->
+        {
+            final AsyncFunction<CompletableFuture<String>, String> function = createClass(AsyncFunction.class, transform(TaskSample.class, t -> t.setHeapFrames(heapFrames)));
+            final CompletableFuture<String> future = getBlockedFuture("a");
+            final Task<String> result = function.apply(future);
+            assertFalse(result.isDone());
+            completeFutures();
+            assertEquals("a", result.join());
+        });
+    }
+}
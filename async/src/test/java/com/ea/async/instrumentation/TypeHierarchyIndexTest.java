@@ -0,0 +1,107 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.Task;
+import com.ea.async.test.BaseTest;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static com.ea.async.Async.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TypeHierarchyIndexTest extends BaseTest
+{
+    public interface Promise<T> extends CompletionStage<T>
+    {
+    }
+
+    public static abstract class PromiseImpl<T> implements Promise<T>
+    {
+    }
+
+    public static class TaskSubclass<T> extends Task<T>
+    {
+    }
+
+    public static class PromiseSample
+    {
+        public Promise<String> run(final CompletableFuture<String> future)
+        {
+            await(future);
+            return null;
+        }
+    }
+
+    @Test
+    public void subtypes() throws Exception
+    {
+        final TypeHierarchyIndex index = TypeHierarchyIndex.of(Collections.singletonList(Paths.get("target/test-classes")));
+        assertTrue(index.isCompletableFuture(internalName(TaskSubclass.class)));
+        assertTrue(index.isCompletionStage(internalName(TaskSubclass.class)));
+        // through interfaces
+        assertFalse(index.isCompletableFuture(internalName(PromiseImpl.class)));
+        assertTrue(index.isCompletionStage(internalName(PromiseImpl.class)));
+        assertTrue(index.isCompletionStage(internalName(Promise.class)));
+        assertFalse(index.isCompletionStage(internalName(PromiseSample.class)));
+        // not indexed
+        assertNull(index.isCompletionStage("java/lang/String"));
+        assertTrue(index.isCompletionStage("java/util/concurrent/CompletionStage"));
+    }
+
+    @Test
+    public void reportsInterfaceOnlyStages() throws Exception
+    {
+        final List<String> errors = new ArrayList<>();
+        final Transformer transformer = new Transformer();
+        transformer.setErrorListener(errors::add);
+        transformer.setHierarchyIndex(TypeHierarchyIndex.of(Collections.singletonList(Paths.get("target/test-classes"))));
+        transformer.transform(getClass().getClassLoader(), new ClassReader(IOUtils.toByteArray(
+                getClass().getResourceAsStream("/" + internalName(PromiseSample.class) + ".class"))));
+        assertEquals(2, errors.size());
+        assertTrue(errors.get(0), errors.get(0).contains("must return a CompletableFuture subclass"));
+    }
+
+    private static String internalName(final Class<?> clazz)
+    {
+        return clazz.getName().replace('.', '/');
+    }
+}
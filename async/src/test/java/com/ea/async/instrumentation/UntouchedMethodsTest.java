@@ -0,0 +1,101 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.instrumentation;
+
+import com.ea.async.test.BaseTest;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.concurrent.CompletableFuture;
+
+import static com.ea.async.Async.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class UntouchedMethodsTest extends BaseTest
+{
+    public static class MixedSample implements OutlinedSuspendTest.FutureFunction
+    {
+        @Override
+        public CompletableFuture<String> apply(final CompletableFuture<String> future)
+        {
+            return CompletableFuture.completedFuture(plain(await(future)));
+        }
+
+        public String plain(final String value)
+        {
+            try
+            {
+                return Integer.toString(Integer.parseInt(value) + 1);
+            }
+            catch (NumberFormatException ex)
+            {
+                return value + "!";
+            }
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void untouchedMethodsAreCopied() throws Exception
+    {
+        final byte[] original = readClass(MixedSample.class);
+        final byte[] bytes = transform(MixedSample.class);
+        assertNotNull(bytes);
+        assertFalse(mentionsAwait(new ClassReader(bytes)));
+
+        final MethodNode before = method(original, "plain");
+        final MethodNode after = method(bytes, "plain");
+        assertEquals(before.instructions.size(), after.instructions.size());
+        assertEquals(before.tryCatchBlocks.size(), after.tryCatchBlocks.size());
+        assertEquals(before.localVariables.size(), after.localVariables.size());
+        assertTrue(method(bytes, "apply").instructions.size() > method(original, "apply").instructions.size());
+        // the constant pool is copied from the original class
+        assertTrue(new ClassReader(bytes).getItemCount() >= new ClassReader(original).getItemCount());
+
+        final OutlinedSuspendTest.FutureFunction sample = createClass(OutlinedSuspendTest.FutureFunction.class, bytes);
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        final CompletableFuture<String> result = sample.apply(future);
+        assertFalse(result.isDone());
+        future.complete("41");
+        assertEquals("42", result.join());
+        assertEquals("a!", sample.apply(CompletableFuture.completedFuture("a")).join());
+    }
+
+    private static MethodNode method(final byte[] bytes, final String name)
+    {
+        final ClassNode cn = new ClassNode();
+        new ClassReader(bytes).accept(cn, 0);
+        return cn.methods.stream().filter(m -> m.name.equals(name)).findFirst().get();
+    }
+}
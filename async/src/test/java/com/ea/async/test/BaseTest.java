@@ -236,53 +236,77 @@ public class BaseTest
 
     public boolean mentionsAwait(ClassReader cr)
     {
-        for (int i = 1, c = cr.getItemCount(); i < c; i++)
+        // the constant pool of the instrumented classes is copied from the original class,
+        // looking at the code instead
+        final boolean[] mentions = { false };
+        cr.accept(new ClassVisitor(ASM7)
         {
-            final int address = cr.getItem(i);
-            if (address > 0
-                    && cr.readByte(address - 1) == 7
-                    && equalsUtf8(cr, address, ASYNC_NAME))
+            @Override
+            public MethodVisitor visitMethod(final int access, final String name, final String descriptor, final String signature, final String[] exceptions)
             {
-                // CONSTANT_Class_info {
-                //    u1 tag; = 7
-                //    u2 name_index; -> utf8
-                // }
-                return true;
+                return new MethodVisitor(ASM7)
+                {
+                    @Override
+                    public void visitMethodInsn(final int opcode, final String owner, final String name, final String descriptor, final boolean isInterface)
+                    {
+                        mentions[0] |= ASYNC_NAME.equals(owner);
+                    }
+
+                    @Override
+                    public void visitLdcInsn(final Object value)
+                    {
+                        mentions[0] |= value instanceof Type && ASYNC_NAME.equals(((Type) value).getInternalName());
+                    }
+                };
             }
-        }
-        return false;
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return mentions[0];
     }
 
-    private boolean equalsUtf8(final ClassReader cr, final int pointerToUtf8Index, final String str)
+    /**
+     * A test body run with and without heap frames.
+     */
+    public interface HeapFramesBody
     {
-        int utf8_index = cr.readUnsignedShort(pointerToUtf8Index);
-        if (utf8_index == 0)
-        {
-            return false;
-        }
+        void run(boolean heapFrames) throws Exception;
+    }
 
-        //  CONSTANT_Utf8_info {
-        //    u1 tag;  = 1
-        //    u2 length;
-        //    u1 bytes[length];
-        // }
+    /**
+     * Runs the body without and then with heap frames.
+     */
+    protected static void withAndWithoutHeapFrames(final HeapFramesBody body) throws Exception
+    {
+        body.run(false);
+        body.run(true);
+    }
 
-        int utf8_address = cr.getItem(utf8_index);
-        final int utf8_length = cr.readUnsignedShort(utf8_address);
-        if (utf8_length == str.length())
-        {
-            // assuming the str is utf8 "safe", no special chars
-            int idx = utf8_address + 2;
-            for (int ic = 0; ic < utf8_length; ic++, idx++)
-            {
-                if (str.charAt(ic) != (char) cr.readByte(idx))
-                {
-                    return false;
-                }
-            }
-            return true;
-        }
-        return false;
+    /**
+     * @return the class file of a class of the test class path
+     */
+    protected static byte[] readClass(final Class<?> clazz) throws IOException
+    {
+        return IOUtils.toByteArray(clazz.getResourceAsStream("/" + clazz.getName().replace('.', '/') + ".class"));
+    }
+
+    /**
+     * Instruments a class of the test class path with a new transformer, with the default options.
+     */
+    protected byte[] transform(final Class<?> clazz) throws Exception
+    {
+        return transform(clazz, transformer -> {
+        });
+    }
+
+    /**
+     * Instruments a class of the test class path with a new transformer.
+     *
+     * @param configure sets the options of the transformer
+     */
+    protected byte[] transform(final Class<?> clazz, final Consumer<Transformer> configure) throws Exception
+    {
+        final Transformer transformer = new Transformer();
+        configure.accept(transformer);
+        return transformer.transform(getClass().getClassLoader(), new ClassReader(readClass(clazz)));
     }
 
     public void debugTransform(String className) throws Exception
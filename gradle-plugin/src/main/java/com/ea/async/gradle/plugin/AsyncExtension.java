@@ -0,0 +1,102 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.gradle.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options of the EA Async instrumentation, configured in the <code>async</code> block of the build script.
+ */
+public class AsyncExtension
+{
+    private boolean continuationClasses;
+    private boolean nativeImage;
+    private int threads;
+    private List<String> instrumentDependencies = new ArrayList<>();
+
+    /**
+     * Generates a continuation class for each async method, using heap frames.
+     * The instrumented classes don't link lambdas or method handles at runtime, and require ea-async at runtime.
+     * @return true if continuation classes are generated
+     */
+    public boolean isContinuationClasses()
+    {
+        return continuationClasses;
+    }
+
+    public void setContinuationClasses(final boolean continuationClasses)
+    {
+        this.continuationClasses = continuationClasses;
+    }
+
+    /**
+     * Instruments for GraalVM native images, implies continuation classes.
+     * Writes the native-image reflection configuration of the generated classes to the output directory.
+     * @return true if instrumenting for native images
+     */
+    public boolean isNativeImage()
+    {
+        return nativeImage;
+    }
+
+    public void setNativeImage(final boolean nativeImage)
+    {
+        this.nativeImage = nativeImage;
+    }
+
+    /**
+     * Number of threads instrumenting the changed classes, 0 for the number of processors.
+     * @return the number of threads
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    public void setThreads(final int threads)
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * Dependencies to instrument, as <code>group:module</code>, the module can be <code>*</code>.
+     * The instrumented jars replace the original ones in the runtime class path of the source sets.
+     * @return the selected dependencies
+     */
+    public List<String> getInstrumentDependencies()
+    {
+        return instrumentDependencies;
+    }
+
+    public void setInstrumentDependencies(final List<String> instrumentDependencies)
+    {
+        this.instrumentDependencies = instrumentDependencies;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.gradle.plugin;
+
+import com.ea.async.instrumentation.NativeImageMetadata;
+import com.ea.async.instrumentation.Transformer;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileType;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.CompileClasspath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.SkipWhenEmpty;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.work.ChangeType;
+import org.gradle.work.FileChange;
+import org.gradle.work.Incremental;
+import org.gradle.work.InputChanges;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Instruments the classes compiled by a Java compilation task into a separate directory,
+ * which replaces the compiled classes in the output of the source set.
+ * <p>
+ * Only the class files changed since the previous run are instrumented, in parallel, by a work item of the Worker API.
+ * The generated continuation classes of each class file are kept in an index, so they are deleted
+ * with the class that generated them. The output only depends on the inputs, so it can be cached.
+ */
+@CacheableTask
+public class AsyncInstrumentTask extends DefaultTask
+{
+    private final WorkerExecutor workerExecutor;
+    private final ConfigurableFileCollection classes;
+    private final ConfigurableFileCollection classpath;
+    private final Property<Boolean> continuationClasses;
+    private final Property<Boolean> nativeImage;
+    private final Property<Integer> threads;
+    private final DirectoryProperty outputDir;
+    private final RegularFileProperty generatedClassesIndex;
+
+    @Inject
+    public AsyncInstrumentTask(final ObjectFactory objects, final WorkerExecutor workerExecutor)
+    {
+        this.workerExecutor = workerExecutor;
+        classes = objects.fileCollection();
+        classpath = objects.fileCollection();
+        continuationClasses = objects.property(Boolean.class);
+        continuationClasses.convention(false);
+        nativeImage = objects.property(Boolean.class);
+        nativeImage.convention(false);
+        threads = objects.property(Integer.class);
+        threads.convention(0);
+        outputDir = objects.directoryProperty();
+        generatedClassesIndex = objects.fileProperty();
+    }
+
+    /**
+     * @return the directory with the compiled classes
+     */
+    @InputFiles
+    @SkipWhenEmpty
+    @Incremental
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public ConfigurableFileCollection getClasses()
+    {
+        return classes;
+    }
+
+    /**
+     * @return the compile class path, used to find the <code>CompletableFuture</code> subclasses
+     */
+    @CompileClasspath
+    public ConfigurableFileCollection getClasspath()
+    {
+        return classpath;
+    }
+
+    @Input
+    public Property<Boolean> getContinuationClasses()
+    {
+        return continuationClasses;
+    }
+
+    @Input
+    public Property<Boolean> getNativeImage()
+    {
+        return nativeImage;
+    }
+
+    /**
+     * @return the number of threads instrumenting the changed classes, 0 for the number of processors
+     */
+    @Internal
+    public Property<Integer> getThreads()
+    {
+        return threads;
+    }
+
+    @OutputDirectory
+    public DirectoryProperty getOutputDir()
+    {
+        return outputDir;
+    }
+
+    /**
+     * @return the file listing the continuation classes generated for each class file
+     */
+    @OutputFile
+    public RegularFileProperty getGeneratedClassesIndex()
+    {
+        return generatedClassesIndex;
+    }
+
+    @TaskAction
+    public void instrument(final InputChanges inputChanges) throws IOException
+    {
+        final Path output = outputDir.get().getAsFile().toPath();
+        final Path indexFile = generatedClassesIndex.get().getAsFile().toPath();
+        final Map<String, List<String>> index = new TreeMap<>();
+        if (inputChanges.isIncremental())
+        {
+            readIndex(indexFile, index);
+        }
+        else
+        {
+            deleteContents(output);
+        }
+
+        final List<String> changed = new ArrayList<>();
+        for (FileChange change : inputChanges.getFileChanges(classes))
+        {
+            if (change.getFileType() == FileType.DIRECTORY)
+            {
+                continue;
+            }
+            final String path = relativePath(change.getFile());
+            // the continuation classes of a modified class are generated again
+            final List<String> generated = index.remove(path);
+            if (generated != null)
+            {
+                for (String name : generated)
+                {
+                    Files.deleteIfExists(output.resolve(name + ".class"));
+                }
+            }
+            if (change.getChangeType() == ChangeType.REMOVED)
+            {
+                Files.deleteIfExists(output.resolve(path));
+            }
+            else
+            {
+                changed.add(path);
+            }
+        }
+        Collections.sort(changed);
+
+        final Path root = classes.getSingleFile().toPath();
+        final Path report = getTemporaryDir().toPath().resolve("generated.txt");
+        Files.deleteIfExists(report);
+        if (!changed.isEmpty())
+        {
+            // a single work item, so the class path is read once, its instrumenter uses the threads
+            final WorkQueue queue = workerExecutor.noIsolation();
+            queue.submit(InstrumentAction.class, parameters -> {
+                parameters.getClassesDir().set(root.toFile());
+                parameters.getClasspath().from(classpath, root.toFile());
+                parameters.getFiles().set(changed);
+                parameters.getOutputDir().set(output.toFile());
+                parameters.getContinuationClasses().set(continuationClasses.get() || nativeImage.get());
+                parameters.getThreads().set(threads.get() > 0 ? threads.get() : Runtime.getRuntime().availableProcessors());
+                parameters.getReport().set(report.toFile());
+            });
+            queue.await();
+            readIndex(report, index);
+        }
+
+        writeIndex(indexFile, index);
+        final Path reflectConfig = output.resolve(NativeImageMetadata.REFLECT_CONFIG);
+        Files.deleteIfExists(reflectConfig);
+        if (nativeImage.get())
+        {
+            final NativeImageMetadata metadata = new NativeImageMetadata();
+            index.values().forEach(names -> names.forEach(metadata::addClass));
+            if (!metadata.isEmpty())
+            {
+                metadata.write(output);
+            }
+        }
+        // the agent is not needed for these classes
+        Transformer.writeInstrumentedMarker(output);
+    }
+
+    private String relativePath(final File file)
+    {
+        for (File dir : classes.getFiles())
+        {
+            final Path root = dir.toPath();
+            if (file.toPath().startsWith(root))
+            {
+                return root.relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+            }
+        }
+        throw new IllegalArgumentException("Not a class directory file: " + file);
+    }
+
+    /**
+     * Reads lines with a class file, relative to the class directory,
+     * and the internal names of its continuation classes: <code>path=name,name</code>
+     */
+    static void readIndex(final Path file, final Map<String, List<String>> index) throws IOException
+    {
+        if (!Files.exists(file))
+        {
+            return;
+        }
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8))
+        {
+            final int separator = line.lastIndexOf('=');
+            if (separator > 0)
+            {
+                index.put(line.substring(0, separator), Arrays.asList(line.substring(separator + 1).split(",")));
+            }
+        }
+    }
+
+    static void writeIndex(final Path file, final Map<String, List<String>> index) throws IOException
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, List<String>> entry : index.entrySet())
+        {
+            if (!entry.getValue().isEmpty())
+            {
+                sb.append(entry.getKey()).append('=').append(String.join(",", entry.getValue())).append('\n');
+            }
+        }
+        Files.createDirectories(file.getParent());
+        Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void deleteContents(final Path dir) throws IOException
+    {
+        if (!Files.isDirectory(dir))
+        {
+            return;
+        }
+        final List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dir))
+        {
+            paths = walk.filter(p -> !p.equals(dir))
+                    .sorted(Comparator.reverseOrder())
+                    .collect(Collectors.toList());
+        }
+        for (Path path : paths)
+        {
+            Files.delete(path);
+        }
+    }
+}
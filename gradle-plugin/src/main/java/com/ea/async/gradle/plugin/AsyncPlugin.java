@@ -28,117 +28,112 @@
 
 package com.ea.async.gradle.plugin;
 
-import com.ea.async.instrumentation.Transformer;
-
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.artifacts.dsl.DependencyHandler;
+import org.gradle.api.attributes.Attribute;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.plugins.JavaPlugin;
+import org.gradle.api.plugins.JavaPluginConvention;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.SourceSet;
+import org.gradle.api.tasks.TaskProvider;
 import org.gradle.api.tasks.compile.JavaCompile;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
 
 /**
  * A plugin that allows easily integrating EA Async instrumentation into the Gradle build process.
  */
 public class AsyncPlugin implements Plugin<Project>
 {
+    /**
+     * Requested by the runtime class paths, false in the variants of the dependencies selected for instrumentation.
+     */
+    static final Attribute<Boolean> INSTRUMENTED = Attribute.of("com.ea.async.instrumented", Boolean.class);
 
     /**
-     * Applies the plugin to the project. Prepares Java compilation tasks to be followed up on by instrumentation.
+     * Applies the plugin to the project. Adds an instrumentation task for each source set,
+     * whose output replaces the classes compiled by the Java compilation task,
+     * and the transform replacing the selected dependencies with their instrumented jars.
      * @param project the Gradle project to which the plugin was applied
      */
     @Override
     public void apply(final Project project)
     {
-        project.getTasks().withType(JavaCompile.class, task ->
-        {
-            // This will be called for every JavaCompile task, whether already existing or added dynamically later
-            task.doLast("EA Async instrumentation", t -> instrumentCompileResults(task));
-        });
+        final AsyncExtension extension = project.getExtensions().create("async", AsyncExtension.class);
+        project.getDependencies().getAttributesSchema().attribute(INSTRUMENTED);
+        project.afterEvaluate(p -> registerDependencyTransform(project, extension));
+        project.getPlugins().withType(JavaPlugin.class, plugin ->
+                project.getConvention().getPlugin(JavaPluginConvention.class).getSourceSets()
+                        .all(sourceSet -> addInstrumentTask(project, extension, sourceSet)));
     }
 
     /**
-     * Rewrites compiled classes output by a Java compilation task.
-     * Called for each compilation task after it finishes.
-     * @param task the Java compilation task whose output to instrument
+     * Registers the task instrumenting the classes compiled from a source set,
+     * named <code>instrumentClasses</code> for the main source set and <code>instrument&lt;Name&gt;Classes</code> for the others.
      */
-    private void instrumentCompileResults(final JavaCompile task)
+    private void addInstrumentTask(final Project project, final AsyncExtension extension, final SourceSet sourceSet)
     {
-        // Set up the Transformer to explode on failure
-        final Transformer asyncTransformer = new Transformer();
-        asyncTransformer.setErrorListener(err ->
-        {
-            throw new RuntimeException("Failed to instrument the output of " + task.toString() + ": " + err);
-        });
-        // Create a classloader that can see the same CompletionStage subclasses as the compiler
-        final List<URL> classpathUrls = new ArrayList<>();
-        try
-        {
-            for (File f : task.getClasspath().plus(task.getOutputs().getFiles()).getFiles())
-            {
-                classpathUrls.add(f.toURI().toURL());
-            }
-        }
-        catch (MalformedURLException e)
-        {
-            throw new RuntimeException("Bad URL when preparing instrumentation of " + task.toString(), e);
-        }
-        final ClassLoader classLoader = new URLClassLoader(classpathUrls.toArray(new URL[0]));
-        // Rewrite the class files in the output directory
-        instrumentFile(task.getDestinationDir(), task, asyncTransformer, classLoader);
+        final TaskProvider<JavaCompile> compile = project.getTasks().named(sourceSet.getCompileJavaTaskName(), JavaCompile.class);
+        final TaskProvider<AsyncInstrumentTask> instrument = project.getTasks().register(
+                sourceSet.getTaskName("instrument", "classes"), AsyncInstrumentTask.class, task ->
+                {
+                    task.setDescription("Instruments the " + sourceSet.getName() + " classes with EA Async.");
+                    task.dependsOn(compile);
+                    task.getClasses().from(compile.map(JavaCompile::getDestinationDir));
+                    task.getClasspath().from(sourceSet.getCompileClasspath());
+                    task.getContinuationClasses().set(project.provider(extension::isContinuationClasses));
+                    task.getNativeImage().set(project.provider(extension::isNativeImage));
+                    task.getThreads().set(project.provider(extension::getThreads));
+                    task.getOutputDir().set(project.getLayout().getBuildDirectory().dir("classes/ea-async/" + sourceSet.getName()));
+                    task.getGeneratedClassesIndex().set(project.getLayout().getBuildDirectory().file("ea-async/" + sourceSet.getName() + "-generated-classes.txt"));
+                });
+
+        // the instrumented classes replace the compiled ones in the source set output,
+        // so the jar, the tests and the dependent projects use them
+        final ConfigurableFileCollection classesDirs = (ConfigurableFileCollection) sourceSet.getOutput().getClassesDirs();
+        // where the java compilation task writes the classes, without realizing the task when the files are resolved
+        final Provider<File> compiledDir = project.provider(() -> sourceSet.getJava().getOutputDir());
+        final FileCollection otherDirs = project.files(new ArrayList<>(classesDirs.getFrom()))
+                .filter(dir -> !dir.equals(compiledDir.get()));
+        classesDirs.setFrom(otherDirs, instrument.flatMap(AsyncInstrumentTask::getOutputDir));
+        classesDirs.builtBy(instrument);
+        project.getTasks().named(sourceSet.getClassesTaskName()).configure(task -> task.dependsOn(instrument));
+
+        // the selected dependencies are transformed into their instrumented jars wherever the runtime class path is resolved,
+        // in the same position, for the tests, the distributions and the packaged applications
+        project.getConfigurations().getByName(sourceSet.getRuntimeClasspathConfigurationName())
+                .getAttributes().attribute(INSTRUMENTED, true);
     }
 
     /**
-     * Recursively instruments the specified file system entry and its descendants.
-     * @param fsEntry a File in the output directory of a task
-     * @param task the JavaCompile task whose output is being instrumented
-     * @param asyncTransformer the transformer used to instrument the classes
-     * @param classLoader the classloader to supply to the transformer
+     * Registers the transform instrumenting the dependencies selected in the extension,
+     * once the build script has configured them.
      */
-    private void instrumentFile(final File fsEntry, final JavaCompile task,
-                                final Transformer asyncTransformer, final ClassLoader classLoader)
+    private void registerDependencyTransform(final Project project, final AsyncExtension extension)
     {
-        if (fsEntry.isDirectory())
+        final List<String> patterns = new ArrayList<>(extension.getInstrumentDependencies());
+        if (patterns.isEmpty())
         {
-            // Recurse into subdirectories and files
-            for (File subentry : Objects.requireNonNull(fsEntry.listFiles())) {
-                instrumentFile(subentry, task, asyncTransformer, classLoader);
-            }
+            return;
         }
-        else if (fsEntry.isFile() && fsEntry.getName().endsWith(".class"))
+        final DependencyHandler dependencies = project.getDependencies();
+        dependencies.getComponents().all(InstrumentedDependencyRule.class, rule -> rule.params(patterns));
+        dependencies.registerTransform(InstrumentDependencyTransform.class, spec ->
         {
-            // Instrument a class
-            byte[] instrumentedClass;
-            try (FileInputStream fis = new FileInputStream(fsEntry))
-            {
-                instrumentedClass = asyncTransformer.instrument(classLoader, fis);
-            }
-            catch (IOException e)
+            spec.getFrom().attribute(INSTRUMENTED, false);
+            spec.getTo().attribute(INSTRUMENTED, true);
+            spec.parameters(parameters ->
             {
-                throw new RuntimeException("Failed to instrument '" + fsEntry.getPath() + "' from " + task.toString(), e);
-            }
-            if (instrumentedClass != null)
-            {
-                // Transformer#instrument returns null if no changes were needed
-                try
-                {
-                    Files.write(Paths.get(fsEntry.getAbsolutePath()), instrumentedClass);
-                }
-                catch (IOException e)
-                {
-                    throw new RuntimeException("Failed to write '" + fsEntry.getPath() + "'", e);
-                }
-            }
-        }
+                parameters.setContinuationClasses(extension.isContinuationClasses());
+                parameters.setNativeImage(extension.isNativeImage());
+                parameters.setThreads(extension.getThreads());
+            });
+        });
     }
 
 }
@@ -0,0 +1,164 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.gradle.plugin;
+
+import com.ea.async.instrumentation.BatchInstrumenter;
+import com.ea.async.instrumentation.Transformer;
+import com.ea.async.instrumentation.TypeHierarchyIndex;
+
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Instruments the changed class files of an {@link AsyncInstrumentTask}.
+ * The class files that don't need instrumentation are copied to the output directory.
+ * <p>
+ * Only the jars of the class path are indexed, they are cached while they don't change.
+ * The types of the class directories are read through the class loader when an async method needs them.
+ */
+public abstract class InstrumentAction implements WorkAction<InstrumentAction.Parameters>
+{
+    public interface Parameters extends WorkParameters
+    {
+        DirectoryProperty getClassesDir();
+
+        ConfigurableFileCollection getClasspath();
+
+        /**
+         * @return the files to instrument, relative to the class directory
+         */
+        ListProperty<String> getFiles();
+
+        DirectoryProperty getOutputDir();
+
+        Property<Boolean> getContinuationClasses();
+
+        Property<Integer> getThreads();
+
+        /**
+         * @return where the generated continuation classes of each file are listed
+         */
+        RegularFileProperty getReport();
+    }
+
+    @Override
+    public void execute()
+    {
+        final Parameters parameters = getParameters();
+        final Path classesDir = parameters.getClassesDir().get().getAsFile().toPath();
+        final Path outputDir = parameters.getOutputDir().get().getAsFile().toPath();
+        final Transformer transformer = new Transformer();
+        transformer.setErrorListener(err ->
+        {
+            throw new RuntimeException("Failed to instrument the classes of " + classesDir + ": " + err);
+        });
+        final List<URL> classpathUrls = new ArrayList<>();
+        final List<Path> classPath = new ArrayList<>();
+        try
+        {
+            for (File f : parameters.getClasspath().getFiles())
+            {
+                classpathUrls.add(f.toURI().toURL());
+                if (f.isFile())
+                {
+                    classPath.add(f.toPath());
+                }
+            }
+            // the jars are indexed once per gradle daemon while they don't change
+            transformer.setHierarchyIndex(TypeHierarchyIndex.of(classPath));
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Failed to index the class path of " + classesDir, e);
+        }
+        final Map<String, List<String>> generated = new TreeMap<>();
+        try (URLClassLoader classLoader = new URLClassLoader(classpathUrls.toArray(new URL[0])))
+        {
+            final List<Path> classFiles = new ArrayList<>();
+            for (String file : parameters.getFiles().get())
+            {
+                if (file.endsWith(".class"))
+                {
+                    classFiles.add(classesDir.resolve(file));
+                }
+                else
+                {
+                    copy(classesDir.resolve(file), outputDir.resolve(file));
+                }
+            }
+            final BatchInstrumenter instrumenter = new BatchInstrumenter(transformer);
+            instrumenter.setClassLoader(classLoader);
+            instrumenter.setThreads(parameters.getThreads().get());
+            instrumenter.setOutputDirectory(outputDir);
+            instrumenter.setContinuationClasses(parameters.getContinuationClasses().get());
+            for (BatchInstrumenter.Result result : instrumenter.instrument(classFiles))
+            {
+                if (result.getException() != null)
+                {
+                    throw new RuntimeException("Failed to instrument '" + result.getSource() + "'", result.getException());
+                }
+                final String path = classesDir.relativize(result.getSource()).toString().replace(File.separatorChar, '/');
+                if (!result.isInstrumented())
+                {
+                    copy(result.getSource(), outputDir.resolve(path));
+                }
+                generated.put(path, result.getGeneratedClasses());
+            }
+            AsyncInstrumentTask.writeIndex(parameters.getReport().get().getAsFile().toPath(), generated);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Failed to instrument the classes of " + classesDir, e);
+        }
+    }
+
+    private static void copy(final Path source, final Path target) throws IOException
+    {
+        Files.createDirectories(target.getParent());
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
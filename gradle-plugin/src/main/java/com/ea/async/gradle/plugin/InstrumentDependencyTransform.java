@@ -0,0 +1,144 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.gradle.plugin;
+
+import com.ea.async.instrumentation.BatchInstrumenter;
+import com.ea.async.instrumentation.Transformer;
+import com.ea.async.instrumentation.TypeHierarchyIndex;
+
+import org.gradle.api.artifacts.transform.InputArtifact;
+import org.gradle.api.artifacts.transform.InputArtifactDependencies;
+import org.gradle.api.artifacts.transform.TransformAction;
+import org.gradle.api.artifacts.transform.TransformOutputs;
+import org.gradle.api.artifacts.transform.TransformParameters;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.FileSystemLocation;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Instruments the jar of a dependency selected in the <code>async</code> block.
+ * <p>
+ * The instrumented jar keeps the name of the original one and takes its place in the resolved runtime class paths,
+ * so the tests, the distributions and the packaged applications use it.
+ * Gradle keeps the transformed jars in its user home, keyed by the jar, its dependencies and the parameters,
+ * so each version of a dependency is instrumented once.
+ */
+public abstract class InstrumentDependencyTransform implements TransformAction<InstrumentDependencyTransform.Parameters>
+{
+    public interface Parameters extends TransformParameters
+    {
+        @Input
+        boolean isContinuationClasses();
+
+        void setContinuationClasses(boolean continuationClasses);
+
+        @Input
+        boolean isNativeImage();
+
+        void setNativeImage(boolean nativeImage);
+
+        @Internal
+        int getThreads();
+
+        void setThreads(int threads);
+    }
+
+    @InputArtifact
+    @Classpath
+    public abstract Provider<FileSystemLocation> getInputArtifact();
+
+    /**
+     * @return the dependencies of the jar, used to find the <code>CompletableFuture</code> subclasses
+     */
+    @InputArtifactDependencies
+    @Classpath
+    public abstract FileCollection getDependencies();
+
+    @Override
+    public void transform(final TransformOutputs outputs)
+    {
+        final Parameters parameters = getParameters();
+        final File jar = getInputArtifact().get().getAsFile();
+        final Transformer transformer = new Transformer();
+        transformer.setErrorListener(err ->
+        {
+            throw new RuntimeException("Failed to instrument " + jar + ": " + err);
+        });
+        final List<URL> classpathUrls = new ArrayList<>();
+        final List<Path> classPath = new ArrayList<>();
+        try
+        {
+            classpathUrls.add(jar.toURI().toURL());
+            classPath.add(jar.toPath());
+            for (File f : getDependencies().getFiles())
+            {
+                classpathUrls.add(f.toURI().toURL());
+                classPath.add(f.toPath());
+            }
+            // the jars are indexed once per gradle daemon while they don't change
+            transformer.setHierarchyIndex(TypeHierarchyIndex.of(classPath));
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Failed to index the dependencies of " + jar, e);
+        }
+        final File output = outputs.file(jar.getName());
+        try (URLClassLoader classLoader = new URLClassLoader(classpathUrls.toArray(new URL[0])))
+        {
+            final BatchInstrumenter instrumenter = new BatchInstrumenter(transformer);
+            instrumenter.setClassLoader(classLoader);
+            instrumenter.setThreads(parameters.getThreads());
+            instrumenter.setContinuationClasses(parameters.isContinuationClasses() || parameters.isNativeImage());
+            instrumenter.setNativeImage(parameters.isNativeImage());
+            for (BatchInstrumenter.Result result : instrumenter.instrumentJar(jar.toPath(), output.toPath()))
+            {
+                if (result.getException() != null)
+                {
+                    throw new RuntimeException("Failed to instrument " + result + " from " + jar, result.getException());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Failed to instrument " + jar, e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.gradle.plugin;
+
+import org.gradle.api.artifacts.ComponentMetadataContext;
+import org.gradle.api.artifacts.ComponentMetadataDetails;
+import org.gradle.api.artifacts.ComponentMetadataRule;
+
+import javax.inject.Inject;
+import java.util.List;
+
+/**
+ * Marks the variants of the dependencies selected in the <code>async</code> block as not instrumented,
+ * so the runtime class paths, which request instrumented variants, get their jars through the {@link InstrumentDependencyTransform}.
+ */
+public class InstrumentedDependencyRule implements ComponentMetadataRule
+{
+    private final List<String> patterns;
+
+    @Inject
+    public InstrumentedDependencyRule(final List<String> patterns)
+    {
+        this.patterns = patterns;
+    }
+
+    @Override
+    public void execute(final ComponentMetadataContext context)
+    {
+        final ComponentMetadataDetails details = context.getDetails();
+        if (isSelected(patterns, details.getId().getGroup(), details.getId().getName()))
+        {
+            details.allVariants(variant -> variant.attributes(attributes -> attributes.attribute(AsyncPlugin.INSTRUMENTED, false)));
+        }
+    }
+
+    /**
+     * @return true if the module is selected by one of the <code>group:module</code> patterns, the module can be <code>*</code>
+     */
+    static boolean isSelected(final List<String> patterns, final String group, final String module)
+    {
+        for (String pattern : patterns)
+        {
+            final String[] parts = pattern.trim().split(":");
+            if (parts.length == 2 && parts[0].equals(group)
+                    && ("*".equals(parts[1]) || parts[1].equals(module)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
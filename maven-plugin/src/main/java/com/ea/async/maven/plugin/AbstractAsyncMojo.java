@@ -28,7 +28,10 @@
 
 package com.ea.async.maven.plugin;
 
+import com.ea.async.instrumentation.BatchInstrumenter;
+import com.ea.async.instrumentation.NativeImageMetadata;
 import com.ea.async.instrumentation.Transformer;
+import com.ea.async.instrumentation.TypeHierarchyIndex;
 
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -38,14 +41,16 @@ import org.apache.maven.project.MavenProject;
 import org.codehaus.plexus.archiver.ArchiverException;
 import org.codehaus.plexus.components.io.resources.PlexusIoFileResourceCollection;
 import org.codehaus.plexus.components.io.resources.PlexusIoResource;
-import org.codehaus.plexus.util.IOUtil;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 
 public abstract class AbstractAsyncMojo extends AbstractMojo
@@ -87,6 +92,56 @@ public abstract class AbstractAsyncMojo extends AbstractMojo
     @Parameter
     protected boolean verbose = false;
 
+    /**
+     * Keeps the state of suspended async methods in a single continuation object.
+     * The instrumented classes will require ea-async at runtime.
+     */
+    @Parameter
+    protected boolean heapFrames = false;
+
+    /**
+     * Generates async methods that only start their continuation method,
+     * instead of containing a second copy of the method body.
+     */
+    @Parameter
+    protected boolean compact = false;
+
+    /**
+     * Continuation methods larger than this, in bytes of bytecode, have their suspension code moved to separate methods,
+     * and with heap frames the straight-line code between awaits.
+     * Defaults to the JIT's HugeMethodLimit.
+     */
+    @Parameter
+    protected int methodSizeLimit = 0;
+
+    /**
+     * Generates a continuation class for each async method, implies heapFrames.
+     * The instrumented classes don't link lambdas or method handles at runtime.
+     */
+    @Parameter
+    protected boolean continuationClasses = false;
+
+    /**
+     * Instruments for GraalVM native images, implies continuationClasses.
+     * Writes the native-image reflection configuration of the generated classes to the output directory.
+     */
+    @Parameter
+    protected boolean nativeImage = false;
+
+    /**
+     * Number of threads instrumenting the classes.
+     * Defaults to the number of processors.
+     */
+    @Parameter
+    protected int threads = 0;
+
+    /**
+     * Only instruments the classes that changed since the last build,
+     * using a manifest of the instrumented classes kept in the build directory.
+     */
+    @Parameter
+    protected boolean incremental = true;
+
     @Component
     protected MavenProject project;
 
@@ -159,40 +214,95 @@ public abstract class AbstractAsyncMojo extends AbstractMojo
                 return;
             }
             final Iterator<PlexusIoResource> it = getFiles(contentDirectory);
-            final Transformer transformer = new Transformer();
-            transformer.setErrorListener(error -> getLog().error(error));
+            final NativeImageMetadata metadata = new NativeImageMetadata();
             int instrumentedCount = 0;
-            ClassLoader classLoader = createClassLoader();
+            boolean error = false;
+            final InstrumentationManifest manifest = incremental
+                    ? InstrumentationManifest.read(getManifestFile(), getOptions())
+                    : null;
+            final List<String> names = new ArrayList<>();
+            final List<Path> files = new ArrayList<>();
             while (it.hasNext())
             {
                 final PlexusIoResource resource = it.next();
                 if (resource.isFile() && resource.getName().endsWith(".class"))
                 {
-                    byte[] bytes = null;
-                    try (InputStream in = resource.getContents())
+                    final Path file = contentDirectory.toPath().resolve(resource.getName());
+                    final String name = contentDirectory.toPath().relativize(file).toString();
+                    names.add(name);
+                    if (manifest == null || !manifest.isUnchanged(name, file))
                     {
-                        bytes = transformer.instrument(classLoader, in);
+                        files.add(file);
                     }
-                    catch (Exception e)
+                }
+            }
+            if (files.isEmpty())
+            {
+                // nothing changed, the class path isn't indexed
+                if (manifest != null)
+                {
+                    manifest.retain(names);
+                    manifest.write();
+                }
+                getLog().info("Orbit Async " + getType() + " instrumented: 0"
+                        + (manifest != null ? ", unchanged: " + names.size() : ""));
+                return;
+            }
+            final BatchInstrumenter instrumenter = createInstrumenter();
+            if (!getOutputDirectory().equals(contentDirectory))
+            {
+                instrumenter.setOutputDirectory(getOutputDirectory().toPath());
+            }
+            for (BatchInstrumenter.Result result : instrumenter.instrument(files))
+            {
+                final Path name = contentDirectory.toPath().relativize(result.getSource());
+                if (manifest != null)
+                {
+                    if (result.getException() != null)
+                    {
+                        // tried again in the next build
+                        manifest.remove(name.toString());
+                    }
+                    else
+                    {
+                        manifest.update(name.toString(), result.getSource());
+                    }
+                }
+                if (result.getException() != null)
+                {
+                    getLog().error("Error instrumenting " + name, result.getException());
+                    error = true;
+                }
+                else if (result.isInstrumented())
+                {
+                    if (isVerbose())
                     {
-                        getLog().error("Error instrumenting " + resource.getName(), e);
+                        getLog().info("instrumented: " + name);
                     }
-                    if (bytes != null)
+                    else if (getLog().isDebugEnabled())
                     {
-                        if (isVerbose())
-                        {
-                            getLog().info("instrumented: " + resource.getName());
-                        }
-                        else if (getLog().isDebugEnabled())
-                        {
-                            getLog().debug("instrumented: " + resource.getName());
-                        }
-                        IOUtil.copy(bytes, new FileOutputStream(new File(getOutputDirectory(), resource.getName())));
-                        instrumentedCount++;
+                        getLog().debug("instrumented: " + name);
                     }
+                    result.getGeneratedClasses().forEach(metadata::addClass);
+                    instrumentedCount++;
                 }
             }
-            getLog().info("Orbit Async " + getType() + " instrumented: " + instrumentedCount);
+            if (nativeImage && !metadata.isEmpty())
+            {
+                metadata.write(getOutputDirectory().toPath());
+            }
+            if (!error && getIncludes() == DEFAULT_INCLUDES && getExcludes() == DEFAULT_EXCLUDES)
+            {
+                // all the classes were instrumented, the agent is not needed for them
+                Transformer.writeInstrumentedMarker(getOutputDirectory().toPath());
+            }
+            if (manifest != null)
+            {
+                manifest.retain(names);
+                manifest.write();
+            }
+            getLog().info("Orbit Async " + getType() + " instrumented: " + instrumentedCount
+                    + (manifest != null ? ", unchanged: " + (names.size() - files.size()) : ""));
         }
         catch (Exception e)
         {
@@ -201,6 +311,67 @@ public abstract class AbstractAsyncMojo extends AbstractMojo
     }
 
 
+    /**
+     * Creates an instrumenter configured with the options of the plugin,
+     * which finds the <code>CompletableFuture</code> subclasses in the class path of the project.
+     */
+    protected BatchInstrumenter createInstrumenter() throws Exception
+    {
+        final Transformer transformer = new Transformer();
+        transformer.setErrorListener(error -> getLog().error(error));
+        transformer.setHeapFrames(heapFrames);
+        transformer.setCompact(compact);
+        if (methodSizeLimit > 0)
+        {
+            transformer.setMethodSizeLimit(methodSizeLimit);
+        }
+        ClassLoader classLoader = createClassLoader();
+        if (classLoader instanceof URLClassLoader)
+        {
+            // the jars are indexed once per build
+            final List<Path> classPath = new ArrayList<>();
+            for (URL url : ((URLClassLoader) classLoader).getURLs())
+            {
+                classPath.add(Paths.get(url.toURI()));
+            }
+            transformer.setHierarchyIndex(TypeHierarchyIndex.of(classPath));
+        }
+        final BatchInstrumenter instrumenter = new BatchInstrumenter(transformer);
+        instrumenter.setClassLoader(classLoader);
+        instrumenter.setThreads(threads);
+        instrumenter.setContinuationClasses(continuationClasses || nativeImage);
+        instrumenter.setNativeImage(nativeImage);
+        return instrumenter;
+    }
+
+    private Path getManifestFile()
+    {
+        final String buildDirectory = project != null ? project.getBuild().getDirectory() : getClassesDirectory().getParent();
+        return Paths.get(buildDirectory, "ea-async", getType() + ".manifest");
+    }
+
+    // the options that change the instrumented classes
+    private String getOptions()
+    {
+        return Transformer.class.getPackage().getImplementationVersion()
+                + "," + getTransformerOptions()
+                + ",outputDirectory=" + getOutputDirectory().getAbsolutePath()
+                + ",includes=" + String.join(";", getIncludes())
+                + ",excludes=" + String.join(";", getExcludes());
+    }
+
+    /**
+     * @return the options that change the bytecode of the instrumented classes
+     */
+    protected String getTransformerOptions()
+    {
+        return "heapFrames=" + heapFrames
+                + ",compact=" + compact
+                + ",methodSizeLimit=" + methodSizeLimit
+                + ",continuationClasses=" + continuationClasses
+                + ",nativeImage=" + nativeImage;
+    }
+
     private Iterator<PlexusIoResource> getFiles(final File contentDirectory) throws IOException
     {
         if (!contentDirectory.isDirectory())
@@ -0,0 +1,209 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.maven.plugin;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Records the class files left by the last instrumentation of a directory, so the next build only
+ * instruments the classes that were compiled again.
+ * <p>
+ * Each class is recorded with its size, modification time and hash after it was instrumented, or checked
+ * if it didn't need instrumentation. A class whose size and modification time didn't change is skipped without being read.
+ * The manifest is discarded when the instrumentation options change.
+ */
+class InstrumentationManifest
+{
+    private static final String OPTIONS = "#options=";
+
+    private final Path file;
+    private final String options;
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    private static final class Entry
+    {
+        final long size;
+        final long lastModified;
+        final String hash;
+
+        Entry(final long size, final long lastModified, final String hash)
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private InstrumentationManifest(final Path file, final String options)
+    {
+        this.file = file;
+        this.options = options;
+    }
+
+    /**
+     * Reads the manifest, if it exists and was written with the same options.
+     *
+     * @param file    the manifest file
+     * @param options the instrumentation options
+     */
+    static InstrumentationManifest read(final Path file, final String options) throws IOException
+    {
+        final InstrumentationManifest manifest = new InstrumentationManifest(file, options);
+        if (!Files.exists(file))
+        {
+            return manifest;
+        }
+        final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(OPTIONS + options))
+        {
+            return manifest;
+        }
+        for (String line : lines.subList(1, lines.size()))
+        {
+            // name=size,lastModified,hash
+            final int equals = line.lastIndexOf('=');
+            final String[] values = line.substring(equals + 1).split(",");
+            if (equals < 0 || values.length != 3)
+            {
+                // corrupted, instruments everything again
+                manifest.entries.clear();
+                return manifest;
+            }
+            manifest.entries.put(line.substring(0, equals), new Entry(Long.parseLong(values[0]), Long.parseLong(values[1]), values[2]));
+        }
+        return manifest;
+    }
+
+    /**
+     * @param name the name of the class file, relative to the class directory
+     * @param path the class file
+     * @return true if the file is the same that was recorded
+     */
+    boolean isUnchanged(final String name, final Path path) throws IOException
+    {
+        final Entry entry = entries.get(name);
+        if (entry == null)
+        {
+            return false;
+        }
+        final long size = Files.size(path);
+        if (size != entry.size)
+        {
+            return false;
+        }
+        final long lastModified = Files.getLastModifiedTime(path).toMillis();
+        if (lastModified == entry.lastModified)
+        {
+            return true;
+        }
+        // touched but maybe not changed
+        if (hash(path).equals(entry.hash))
+        {
+            entries.put(name, new Entry(size, lastModified, entry.hash));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records the current state of the class file.
+     */
+    void update(final String name, final Path path) throws IOException
+    {
+        entries.put(name, new Entry(Files.size(path), Files.getLastModifiedTime(path).toMillis(), hash(path)));
+    }
+
+    void remove(final String name)
+    {
+        entries.remove(name);
+    }
+
+    /**
+     * Forgets the class files that no longer exist.
+     *
+     * @param names the names of the current class files
+     */
+    void retain(final Collection<String> names)
+    {
+        final Set<String> current = new HashSet<>(names);
+        entries.keySet().removeIf(name -> !current.contains(name));
+    }
+
+    void write() throws IOException
+    {
+        Files.createDirectories(file.getParent());
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            writer.write(OPTIONS + options);
+            writer.newLine();
+            for (Map.Entry<String, Entry> entry : entries.entrySet())
+            {
+                final Entry value = entry.getValue();
+                writer.write(entry.getKey() + "=" + value.size + "," + value.lastModified + "," + value.hash);
+                writer.newLine();
+            }
+        }
+    }
+
+    private static String hash(final Path path) throws IOException
+    {
+        try
+        {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new DigestInputStream(Files.newInputStream(path), digest))
+            {
+                final byte[] buffer = new byte[8192];
+                while (in.read(buffer) >= 0)
+                {
+                    // only digesting
+                }
+            }
+            return String.format("%064x", new BigInteger(1, digest.digest()));
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+}
@@ -28,11 +28,15 @@
 
 package com.ea.async.maven.plugin;
 
+import com.ea.async.instrumentation.BatchInstrumenter;
+import com.ea.async.instrumentation.InstrumentedJarCache;
+
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Execute;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
 
 import java.io.File;
@@ -51,7 +55,21 @@ import java.util.Set;
 @Execute(goal = "instrument", phase = LifecyclePhase.PROCESS_CLASSES)
 public class MainMojo extends AbstractAsyncMojo
 {
+    /**
+     * Dependencies to instrument, as <code>groupId:artifactId</code>, the artifactId can be <code>*</code>.
+     * The instrumented jars replace the original ones for the following plugins of the build,
+     * like surefire, shade or assembly.
+     */
+    @Parameter
+    private String[] instrumentDependencies;
 
+    /**
+     * Directory where the instrumented dependency jars are cached,
+     * shared by the projects using the same local repository.
+     * The jars that were not used for 30 days are deleted.
+     */
+    @Parameter(defaultValue = "${settings.localRepository}/.cache/ea-async")
+    private File dependencyCacheDirectory;
 
     protected String getType()
     {
@@ -70,6 +88,81 @@ public class MainMojo extends AbstractAsyncMojo
     public void execute() throws MojoExecutionException
     {
         super.execute();
+        if (instrumentDependencies != null && instrumentDependencies.length > 0)
+        {
+            instrumentDependencies();
+        }
+    }
+
+    /**
+     * Replaces the files of the selected dependencies with their instrumented jars.
+     */
+    private void instrumentDependencies() throws MojoExecutionException
+    {
+        try
+        {
+            final InstrumentedJarCache cache = new InstrumentedJarCache(dependencyCacheDirectory.toPath(), getTransformerOptions());
+            BatchInstrumenter instrumenter = null;
+            for (Artifact artifact : project.getArtifacts())
+            {
+                final File file = artifact.getFile();
+                // already replaced by an execution in the forked lifecycle
+                if (file == null || !file.isFile() || !isInstrumentedDependency(artifact)
+                        || file.toPath().toAbsolutePath().startsWith(dependencyCacheDirectory.toPath().toAbsolutePath()))
+                {
+                    continue;
+                }
+                if (instrumenter == null)
+                {
+                    instrumenter = createInstrumenter();
+                }
+                final File instrumented = cache.instrument(artifact.getGroupId(), artifact.getArtifactId(), artifact.getVersion(),
+                        file.toPath(), getDependenciesOf(artifact), instrumenter).toFile();
+                if (isVerbose())
+                {
+                    getLog().info("instrumented dependency: " + artifact.getId() + " -> " + instrumented);
+                }
+                artifact.setFile(instrumented);
+            }
+        }
+        catch (Exception e)
+        {
+            throw new MojoExecutionException("Error instrumenting the dependencies", e);
+        }
+    }
+
+    /**
+     * @return the resolved artifacts reached through the artifact, snapshots include the size and time of their file
+     */
+    private List<String> getDependenciesOf(final Artifact artifact)
+    {
+        final List<String> dependencies = new ArrayList<>();
+        for (Artifact other : project.getArtifacts())
+        {
+            final List<String> trail = other.getDependencyTrail();
+            if (other != artifact && trail != null && trail.contains(artifact.getId()))
+            {
+                final File file = other.getFile();
+                dependencies.add(other.isSnapshot() && file != null
+                        ? other.getId() + ":" + file.length() + ":" + file.lastModified()
+                        : other.getId());
+            }
+        }
+        return dependencies;
+    }
+
+    private boolean isInstrumentedDependency(final Artifact artifact)
+    {
+        for (String dependency : instrumentDependencies)
+        {
+            final String[] parts = dependency.trim().split(":");
+            if (parts.length == 2 && parts[0].equals(artifact.getGroupId())
+                    && ("*".equals(parts[1]) || parts[1].equals(artifact.getArtifactId())))
+            {
+                return true;
+            }
+        }
+        return false;
     }
 
     private List<String> generateClassPath()
@@ -0,0 +1,77 @@
+/*
+ Copyright (C) 2026 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.ea.async.maven.plugin;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InstrumentationManifestTest
+{
+    @Test
+    public void unchangedClasses() throws Exception
+    {
+        final Path dir = Files.createDirectories(Paths.get("target/instrumentationManifest"));
+        final Path manifestFile = dir.resolve("classes.manifest");
+        Files.deleteIfExists(manifestFile);
+        final Path file = dir.resolve("A.class");
+        Files.write(file, new byte[]{ 1, 2, 3 });
+
+        InstrumentationManifest manifest = InstrumentationManifest.read(manifestFile, "options");
+        assertFalse(manifest.isUnchanged("A.class", file));
+        manifest.update("A.class", file);
+        manifest.write();
+
+        manifest = InstrumentationManifest.read(manifestFile, "options");
+        assertTrue(manifest.isUnchanged("A.class", file));
+        // touched with the same content
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 10_000));
+        assertTrue(manifest.isUnchanged("A.class", file));
+        // compiled again
+        Files.write(file, new byte[]{ 1, 2, 4 });
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 20_000));
+        assertFalse(manifest.isUnchanged("A.class", file));
+        manifest.update("A.class", file);
+        manifest.write();
+
+        // other options instrument everything again
+        assertFalse(InstrumentationManifest.read(manifestFile, "other").isUnchanged("A.class", file));
+
+        manifest = InstrumentationManifest.read(manifestFile, "options");
+        manifest.retain(Collections.emptyList());
+        assertFalse(manifest.isUnchanged("A.class", file));
+    }
+}